@@ -7,14 +7,37 @@ repositories {
     maven { url = uri("https://jitpack.io") }
 }
 
+val jmh: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+
+configurations["jmhImplementation"].extendsFrom(configurations.implementation.get())
+configurations["jmhRuntimeOnly"].extendsFrom(configurations.runtimeOnly.get())
+
 dependencies {
     implementation("com.mewna:catnip:3.0.0")
     implementation("mysql:mysql-connector-java:5.0.8")
     implementation("org.ini4j:ini4j:0.5.2")
     implementation("javax.json:javax.json-api:1.1.4")
     implementation("org.glassfish:javax.json:1.1.4")
+
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.37")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.37")
 }
 
 application {
     mainClass.set("org.bestever.bebot.Bot")
 }
+
+// ./gradlew jmh [-PjmhInclude=Huffman]
+tasks.register<JavaExec>("jmh") {
+    group = "verification"
+    description = "Runs the JMH benchmarks, writing JSON results to build/reports/jmh/results.json"
+    classpath = jmh.runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    val results = file("$buildDir/reports/jmh/results.json")
+    args("-rf", "json", "-rff", results.absolutePath)
+    findProperty("jmhInclude")?.let { args(it.toString()) }
+    doFirst { results.parentFile.mkdirs() }
+}
@@ -0,0 +1,71 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+
+package org.bestever.bebot;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hashing a password, with the current engine and the jBCrypt one it replaced,
+ * at a few costs so the one in the ini can be picked against real hardware
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BCryptBenchmark {
+	
+	@Param({ "10", "12", "14" })
+	int cost;
+	
+	private static final String PASSWORD = "correct horse battery staple";
+	
+	private String salt;
+	
+	@Setup
+	public void setup() {
+		salt = BCrypt.gensalt(cost, new SecureRandom());
+		// A faster engine is no use if it hashes differently
+		String expected = ClassicBCrypt.hashpw(PASSWORD, salt);
+		if (!BCrypt.hashpw(PASSWORD, salt).equals(expected))
+			throw new IllegalStateException("BCrypt does not match the classic implementation for " + salt);
+	}
+	
+	@Benchmark
+	public String hashpw() {
+		return BCrypt.hashpw(PASSWORD, salt);
+	}
+	
+	@Benchmark
+	public String classicHashpw() {
+		return ClassicBCrypt.hashpw(PASSWORD, salt);
+	}
+}
@@ -0,0 +1,71 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+
+package org.bestever.serverquery;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding launcher packets
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HuffmanBenchmark {
+	
+	@Param
+	LauncherResponseCorpus response;
+	
+	/**
+	 * Reused output for the buffer based calls
+	 */
+	private byte[] out;
+	
+	@Setup
+	public void setup() {
+		out = new byte[Huffman.maxDecodedLength(response.encoded.length) + response.decoded.length + 1];
+	}
+	
+	@Benchmark
+	public int decode() {
+		return Huffman.decode(response.encoded, 0, response.encoded.length, out, 0);
+	}
+	
+	@Benchmark
+	public byte[] decodeToNewArray() {
+		return Huffman.decode(response.encoded);
+	}
+	
+	@Benchmark
+	public int encode() {
+		return Huffman.encode(response.decoded, 0, response.decoded.length, out, 0);
+	}
+}
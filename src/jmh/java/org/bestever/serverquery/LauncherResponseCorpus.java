@@ -0,0 +1,171 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+
+package org.bestever.serverquery;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Launcher responses laid out the way a Zandronum server sends them, used as
+ * input for the benchmarks
+ */
+public enum LauncherResponseCorpus {
+	/**
+	 * Nobody playing, no PWADs, no time limit
+	 */
+	EMPTY_SERVER(0, 0, 0),
+	
+	/**
+	 * Full 64 player server with a couple of PWADs and a time limit
+	 */
+	FULL_SERVER(64, 3, 20),
+	
+	/**
+	 * A few players on a server with a mod pack loaded, no time limit
+	 */
+	LONG_PWAD_LIST(4, 120, 0);
+	
+	/**
+	 * Every flag the query handler knows how to read
+	 */
+	private static final int RESPONSE_FLAGS = ServerQueryFlags.SQF_NAME | ServerQueryFlags.SQF_URL | ServerQueryFlags.SQF_EMAIL
+			| ServerQueryFlags.SQF_MAPNAME | ServerQueryFlags.SQF_MAXCLIENTS | ServerQueryFlags.SQF_MAXPLAYERS
+			| ServerQueryFlags.SQF_PWADS | ServerQueryFlags.SQF_GAMETYPE | ServerQueryFlags.SQF_GAMENAME
+			| ServerQueryFlags.SQF_IWAD | ServerQueryFlags.SQF_FORCEPASSWORD | ServerQueryFlags.SQF_FORCEJOINPASSWORD
+			| ServerQueryFlags.SQF_GAMESKILL | ServerQueryFlags.SQF_BOTSKILL | ServerQueryFlags.SQF_LIMITS
+			| ServerQueryFlags.SQF_TEAMDAMAGE | ServerQueryFlags.SQF_NUMPLAYERS | ServerQueryFlags.SQF_PLAYERDATA
+			| ServerQueryFlags.SQF_TEAMINFO_NUMBER | ServerQueryFlags.SQF_TEAMINFO_NAME | ServerQueryFlags.SQF_TEAMINFO_COLOR
+			| ServerQueryFlags.SQF_TEAMINFO_SCORE | ServerQueryFlags.SQF_TESTING_SERVER | ServerQueryFlags.SQF_DATA_MD5SUM
+			| ServerQueryFlags.SQF_ALL_DMFLAGS | ServerQueryFlags.SQF_SECURITY_SETTINGS;
+	
+	/**
+	 * The reply as the query handler sees it, after Huffman decoding
+	 */
+	final byte[] decoded;
+	
+	/**
+	 * The reply as it comes off the wire
+	 */
+	final byte[] encoded;
+	
+	/**
+	 * How many players the reply lists
+	 */
+	final int players;
+	
+	/**
+	 * The time limit the reply has, the time left is only sent when it is not 0
+	 */
+	final int timelimit;
+	
+	LauncherResponseCorpus(int players, int pwads, int timelimit) {
+		this.players = players;
+		this.timelimit = timelimit;
+		this.decoded = buildResponse(players, pwads, timelimit);
+		this.encoded = Huffman.encode(decoded);
+	}
+	
+	/**
+	 * Parses the reply once and checks it comes back as it was built, so the
+	 * benchmarks do not measure a parser that got lost halfway through
+	 * @throws IllegalStateException If the reply was parsed wrong
+	 */
+	void verify() throws NetworkPacketProcessException {
+		QueryResult result = QueryHandler.processIncomingPacket(NetworkBuffer.wrap(decoded, decoded.length));
+		if (result.num_players != players || result.getNumberOfPlayers() != players)
+			throw new IllegalStateException(this + ": expected " + players + " players, parsed " + result.num_players + "/" + result.getNumberOfPlayers());
+		for (int i = 0; i < players; i++)
+			if (!playerName(i).equals(result.getPlayerName(i)))
+				throw new IllegalStateException(this + ": expected player " + i + " to be \"" + playerName(i) + "\", parsed \"" + result.getPlayerName(i) + "\"");
+		if (result.timelimit != timelimit || result.timeleft != (timelimit != 0 ? timelimit - 1 : 0))
+			throw new IllegalStateException(this + ": parsed timelimit " + result.timelimit + " and timeleft " + result.timeleft);
+	}
+	
+	/**
+	 * @param i The index of the player
+	 * @return The name the reply gives the player
+	 */
+	static String playerName(int i) {
+		return "\\cdPlayer\\c-" + i + " [BE]";
+	}
+	
+	/**
+	 * Builds a decoded launcher response
+	 * @param players How many players are in the server
+	 * @param pwads How many PWADs are loaded
+	 * @param timelimit The time limit, 0 for none
+	 * @return The response bytes
+	 */
+	private static byte[] buildResponse(int players, int pwads, int timelimit) {
+		ByteBuffer b = ByteBuffer.allocate(16384).order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(5660023); // Challenge accepted
+		b.putInt(123456); // Time
+		putString(b, "3.1-r211231-2209 on Linux 5.10.0-9-amd64");
+		b.putInt(RESPONSE_FLAGS);
+		putString(b, "BE New York :: [Private] Brutal Doom v21 Gold Coop");
+		putString(b, "http://www.best-ever.org/wads/");
+		putString(b, "admin@best-ever.org");
+		putString(b, "MAP07");
+		b.put((byte) 64); // Max clients
+		b.put((byte) 64); // Max players
+		b.put((byte) pwads);
+		for (int i = 0; i < pwads; i++)
+			putString(b, String.format("zdoom-megapack-part%03d_v2.pk3", i));
+		b.put((byte) ServerQueryFlags.GAMEMODE_TEAMPLAY).put((byte) 0).put((byte) 0);
+		putString(b, "DOOM II");
+		putString(b, "doom2.wad");
+		b.put((byte) 0).put((byte) 0); // Passwords
+		b.put((byte) 3).put((byte) 2); // Skill and bot skill
+		b.putShort((short) 30); // Fraglimit
+		b.putShort((short) timelimit);
+		if (timelimit != 0)
+			b.putShort((short) (timelimit - 1)); // Time left, only sent with a time limit
+		b.putShort((short) 0).putShort((short) 40).putShort((short) 50); // Duel, point and win limits
+		b.putFloat(0.5f); // Team damage
+		b.put((byte) players);
+		for (int i = 0; i < players; i++) {
+			putString(b, playerName(i));
+			b.putShort((short) (i * 3)); // Score
+			b.putShort((short) (40 + i)); // Ping
+			b.put((byte) 0).put((byte) 0).put((byte) (i % 2)).put((byte) i);
+		}
+		b.put((byte) 2);
+		putString(b, "Blue");
+		putString(b, "Red");
+		b.putInt(0x0000FF).putInt(0xFF0000);
+		b.putShort((short) 12).putShort((short) 9);
+		b.put((byte) 0);
+		putString(b, "");
+		putString(b, "d41d8cd98f00b204e9800998ecf8427e");
+		b.put((byte) 5);
+		b.putInt(0x00040000).putInt(0x00000082).putInt(0).putInt(0x00100000).putInt(0);
+		b.put((byte) 1);
+		byte[] response = new byte[b.position()];
+		b.flip().get(response);
+		return response;
+	}
+	
+	/**
+	 * Writes a null terminated string
+	 * @param b The buffer to write to
+	 * @param s The string to write
+	 */
+	private static void putString(ByteBuffer b, String s) {
+		b.put(s.getBytes(StandardCharsets.ISO_8859_1)).put((byte) 0);
+	}
+}
@@ -0,0 +1,94 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+
+package org.bestever.serverquery;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Pulling fields out of a network buffer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetworkBufferBenchmark {
+	
+	/**
+	 * How many records are in the packet
+	 */
+	private static final int RECORDS = 64;
+	
+	/**
+	 * Records of a string followed by a short, an int and a byte, like player data
+	 */
+	private byte[] packet;
+	
+	private NetworkBuffer buffer;
+	
+	@Setup
+	public void setup() {
+		NetworkBuffer builder = new NetworkBuffer();
+		for (int i = 0; i < RECORDS; i++) {
+			builder.add(("Player" + i + " [BE]").getBytes());
+			builder.add(new byte[] { 0, 10, 0, 1, 2, 3, 4, 5 });
+		}
+		packet = builder.extractAll();
+		buffer = new NetworkBuffer(packet.length);
+	}
+	
+	@Benchmark
+	public void extract(Blackhole bh) {
+		buffer.reset(packet, packet.length);
+		for (int i = 0; i < RECORDS; i++) {
+			bh.consume(buffer.extractString());
+			bh.consume(buffer.extractShort(true));
+			bh.consume(buffer.extractInt(true));
+			bh.consume(buffer.extractByte());
+		}
+	}
+	
+	@Benchmark
+	public void skip(Blackhole bh) {
+		buffer.reset(packet, packet.length);
+		for (int i = 0; i < RECORDS; i++) {
+			buffer.skipString();
+			buffer.skip(7);
+		}
+		bh.consume(buffer.getNumberOfBytesInBuffer());
+	}
+	
+	@Benchmark
+	public void fill(Blackhole bh) {
+		NetworkBuffer fresh = new NetworkBuffer();
+		fresh.add(packet);
+		bh.consume(fresh.getNumberOfBytesInBuffer());
+	}
+}
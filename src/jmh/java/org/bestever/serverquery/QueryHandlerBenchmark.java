@@ -0,0 +1,73 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+
+package org.bestever.serverquery;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing a launcher response, with and without the Huffman step in front of it
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryHandlerBenchmark {
+	
+	@Param
+	LauncherResponseCorpus response;
+	
+	/**
+	 * Reused decode output, as the query manager does
+	 */
+	private byte[] decodeBuffer;
+	
+	private NetworkBuffer buffer;
+	
+	@Setup
+	public void setup() throws NetworkPacketProcessException {
+		response.verify();
+		decodeBuffer = new byte[Huffman.maxDecodedLength(response.encoded.length)];
+		buffer = new NetworkBuffer(decodeBuffer.length);
+	}
+	
+	@Benchmark
+	public QueryResult processIncomingPacket() throws NetworkPacketProcessException {
+		buffer.reset(response.decoded, response.decoded.length);
+		return QueryHandler.processIncomingPacket(buffer);
+	}
+	
+	@Benchmark
+	public QueryResult decodeAndProcess() throws NetworkPacketProcessException {
+		int length = Huffman.decode(response.encoded, 0, response.encoded.length, decodeBuffer, 0);
+		buffer.reset(decodeBuffer, length);
+		return QueryHandler.processIncomingPacket(buffer);
+	}
+}
@@ -14,8 +14,9 @@ package org.bestever.bebot;
 //ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
 //OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
 
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.util.Arrays;
 
 /**
 * BCrypt implements OpenBSD-style Blowfish password hashing using
@@ -368,9 +369,24 @@ public class BCrypt {
 		51, 52, 53, -1, -1, -1, -1, -1
 	};
 
-	// Expanded Blowfish key
-	private int P[];
-	private int S[];
+	// Size of each of the four S-boxes
+	private static final int S_LEN = 0x100;
+
+	/**
+	 * The arrays one hash works on, reused by every hash on the same thread
+	 */
+	private static final class Engine {
+		final int p[] = new int[BLOWFISH_NUM_ROUNDS + 2];
+		final int s0[] = new int[S_LEN];
+		final int s1[] = new int[S_LEN];
+		final int s2[] = new int[S_LEN];
+		final int s3[] = new int[S_LEN];
+		final int key_words[] = new int[BLOWFISH_NUM_ROUNDS + 2];
+		final int salt_words[] = new int[BLOWFISH_NUM_ROUNDS + 2];
+		final int cdata[] = new int[bf_crypt_ciphertext.length];
+	}
+
+	private static final ThreadLocal<Engine> engines = ThreadLocal.withInitial(Engine::new);
 
 	/**
 	 * Encode a byte array using bcrypt's slightly-modified base64
@@ -379,13 +395,12 @@ public class BCrypt {
 	 *
 	 * @param d	the byte array to encode
 	 * @param len	the number of bytes to encode
-	 * @return	base64-encoded string
+	 * @param rs	where to append the encoded characters
 	 * @exception IllegalArgumentException if the length is invalid
 	 */
-	private static String encode_base64(byte d[], int len)
+	private static void encode_base64(byte d[], int len, StringBuilder rs)
 		throws IllegalArgumentException {
 		int off = 0;
-		StringBuilder rs = new StringBuilder();
 		int c1, c2;
 
 		if (len <= 0 || len > d.length)
@@ -412,7 +427,6 @@ public class BCrypt {
 			rs.append(base64_code[c1 & 0x3f]);
 			rs.append(base64_code[c2 & 0x3f]);
 		}
-		return rs.toString();
 	}
 
 	/**
@@ -422,7 +436,7 @@ public class BCrypt {
 	 * @return	the decoded value of x
 	 */
 	private static byte char64(char x) {
-		if ((int)x < 0 || (int)x > index_64.length)
+		if ((int)x >= index_64.length)
 			return -1;
 		return index_64[(int)x];
 	}
@@ -432,15 +446,15 @@ public class BCrypt {
 	 * byte array. Note that this is *not* compatible with
 	 * the standard MIME-base64 encoding.
 	 * @param s	the string to decode
+	 * @param off	where the encoded part of the string starts
 	 * @param maxolen	the maximum number of bytes to decode
 	 * @return	an array containing the decoded bytes
 	 * @throws IllegalArgumentException if maxolen is invalid
 	 */
-	private static byte[] decode_base64(String s, int maxolen)
+	private static byte[] decode_base64(String s, int off, int maxolen)
 		throws IllegalArgumentException {
-		StringBuilder rs = new StringBuilder();
-		int off = 0, slen = s.length(), olen = 0;
-		byte ret[];
+		byte rs[] = new byte[maxolen];
+		int slen = s.length(), olen = 0;
 		byte c1, c2, c3, c4, o;
 
 		if (maxolen <= 0)
@@ -453,7 +467,7 @@ public class BCrypt {
 				break;
 			o = (byte)(c1 << 2);
 			o |= (c2 & 0x30) >> 4;
-			rs.append((char)o);
+			rs[olen] = o;
 			if (++olen >= maxolen || off >= slen)
 				break;
 			c3 = char64(s.charAt(off++));
@@ -461,136 +475,136 @@ public class BCrypt {
 				break;
 			o = (byte)((c2 & 0x0f) << 4);
 			o |= (c3 & 0x3c) >> 2;
-			rs.append((char)o);
+			rs[olen] = o;
 			if (++olen >= maxolen || off >= slen)
 				break;
 			c4 = char64(s.charAt(off++));
 			o = (byte)((c3 & 0x03) << 6);
 			o |= c4;
-			rs.append((char)o);
+			rs[olen] = o;
 			++olen;
 		}
 
-		ret = new byte[olen];
-		for (off = 0; off < olen; off++)
-			ret[off] = (byte)rs.charAt(off);
-		return ret;
+		return olen == maxolen ? rs : Arrays.copyOf(rs, olen);
+	}
+
+	/**
+	 * Cycically extract the words of key material that are XORed
+	 * into P, which are the same every time the key is applied
+	 * @param data	the bytes to extract the words from
+	 * @param words	where to put them
+	 */
+	private static void stream_words(byte data[], int words[]) {
+		int off = 0;
+		for (int i = 0; i < words.length; i++) {
+			int word = 0;
+			for (int j = 0; j < 4; j++) {
+				word = (word << 8) | (data[off] & 0xff);
+				if (++off == data.length)
+					off = 0;
+			}
+			words[i] = word;
+		}
 	}
 
 	/**
 	 * Blowfish encipher a single 64-bit block encoded as
 	 * two 32-bit halves
+	 * @param e	the key schedule
 	 * @param lr	an array containing the two 32-bit half blocks
 	 * @param off	the position in the array of the blocks
 	 */
-	private final void encipher(int lr[], int off) {
-		int i, n, l = lr[off], r = lr[off + 1];
+	private static void encipher(Engine e, int lr[], int off) {
+		int P[] = e.p, s0[] = e.s0, s1[] = e.s1, s2[] = e.s2, s3[] = e.s3;
+		int l = lr[off], r = lr[off + 1];
 
 		l ^= P[0];
-		for (i = 0; i <= BLOWFISH_NUM_ROUNDS - 2;) {
-			// Feistel substitution on left word
-			n = S[(l >> 24) & 0xff];
-			n += S[0x100 | ((l >> 16) & 0xff)];
-			n ^= S[0x200 | ((l >> 8) & 0xff)];
-			n += S[0x300 | (l & 0xff)];
-			r ^= n ^ P[++i];
-
-			// Feistel substitution on right word
-			n = S[(r >> 24) & 0xff];
-			n += S[0x100 | ((r >> 16) & 0xff)];
-			n ^= S[0x200 | ((r >> 8) & 0xff)];
-			n += S[0x300 | (r & 0xff)];
-			l ^= n ^ P[++i];
+		for (int i = 1; i < BLOWFISH_NUM_ROUNDS; i += 2) {
+			r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^ s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ P[i];
+			l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^ s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ P[i + 1];
 		}
 		lr[off] = r ^ P[BLOWFISH_NUM_ROUNDS + 1];
 		lr[off + 1] = l;
 	}
 
 	/**
-	 * Cycically extract a word of key material
-	 * @param data	the string to extract the data from
-	 * @param offp	a "pointer" (as a one-entry array) to the
-	 * current offset into data
-	 * @return	the next word of material from data
-	 */
-	private static int streamtoword(byte data[], int offp[]) {
-		int i;
-		int word = 0;
-		int off = offp[0];
-
-		for (i = 0; i < 4; i++) {
-			word = (word << 8) | (data[off] & 0xff);
-			off = (off + 1) % data.length;
-		}
-
-		offp[0] = off;
-		return word;
-	}
-
-	/**
-	 * Initialise the Blowfish key schedule
-	 */
-	private void init_key() {
-		P = (int[])P_orig.clone();
-		S = (int[])S_orig.clone();
-	}
-
-	/**
-	 * Key the Blowfish cipher
-	 * @param key	an array containing the key
+	 * Key the Blowfish cipher: XOR the key into P, then replace P
+	 * and the S-boxes by enciphering a running block. The data words
+	 * are XORed into the block first, alternating between the first
+	 * and the second pair, which is how a 16 byte salt streams
+	 * @param e	the key schedule
+	 * @param key_words	the key material for P
+	 * @param d0	the first pair of data words (0 when there is no data)
+	 * @param d1
+	 * @param d2	the second pair of data words
+	 * @param d3
 	 */
-	private void key(byte key[]) {
+	private static void expand(Engine e, int key_words[], int d0, int d1, int d2, int d3) {
+		int P[] = e.p;
 		int i;
-		int koffp[] = { 0 };
-		int lr[] = { 0, 0 };
-		int plen = P.length, slen = S.length;
+		for (i = 0; i < P.length; i++)
+			P[i] ^= key_words[i];
 
-		for (i = 0; i < plen; i++)
-			P[i] = P[i] ^ streamtoword(key, koffp);
-
-		for (i = 0; i < plen; i += 2) {
-			encipher(lr, 0);
-			P[i] = lr[0];
-			P[i + 1] = lr[1];
-		}
-
-		for (i = 0; i < slen; i += 2) {
-			encipher(lr, 0);
-			S[i] = lr[0];
-			S[i + 1] = lr[1];
-		}
-	}
-
-	/**
-	 * Perform the "enhanced key schedule" step described by
-	 * Provos and Mazieres in "A Future-Adaptable Password Scheme"
-	 * http://www.openbsd.org/papers/bcrypt-paper.ps
-	 * @param data	salt information
-	 * @param key	password information
-	 */
-	private void ekskey(byte data[], byte key[]) {
-		int i;
-		int koffp[] = { 0 }, doffp[] = { 0 };
+		// P changes while it is being replaced, so read it from the array
 		int lr[] = { 0, 0 };
-		int plen = P.length, slen = S.length;
-
-		for (i = 0; i < plen; i++)
-			P[i] = P[i] ^ streamtoword(key, koffp);
-
-		for (i = 0; i < plen; i += 2) {
-			lr[0] ^= streamtoword(data, doffp);
-			lr[1] ^= streamtoword(data, doffp);
-			encipher(lr, 0);
+		for (i = 0; i < P.length; i += 2) {
+			if ((i & 2) == 0) {
+				lr[0] ^= d0;
+				lr[1] ^= d1;
+			} else {
+				lr[0] ^= d2;
+				lr[1] ^= d3;
+			}
+			encipher(e, lr, 0);
 			P[i] = lr[0];
 			P[i + 1] = lr[1];
 		}
 
-		for (i = 0; i < slen; i += 2) {
-			lr[0] ^= streamtoword(data, doffp);
-			lr[1] ^= streamtoword(data, doffp);
-			encipher(lr, 0);
-			S[i] = lr[0];
-			S[i + 1] = lr[1];
+		// From here on P stays the same, which is most of the work; keep it
+		// in locals and write the rounds out so only the S-boxes are loaded
+		int p0 = P[0], p1 = P[1], p2 = P[2], p3 = P[3], p4 = P[4], p5 = P[5];
+		int p6 = P[6], p7 = P[7], p8 = P[8], p9 = P[9], p10 = P[10], p11 = P[11];
+		int p12 = P[12], p13 = P[13], p14 = P[14], p15 = P[15], p16 = P[16], p17 = P[17];
+		int s0[] = e.s0, s1[] = e.s1, s2[] = e.s2, s3[] = e.s3;
+		int l = lr[0], r = lr[1];
+		// After the 9 blocks of P the stream is at the second pair
+		boolean first = false;
+		for (int box = 0; box < 4; box++) {
+			int s[] = box == 0 ? s0 : box == 1 ? s1 : box == 2 ? s2 : s3;
+			for (i = 0; i < S_LEN; i += 2) {
+				if (first) {
+					l ^= d0;
+					r ^= d1;
+				} else {
+					l ^= d2;
+					r ^= d3;
+				}
+				first = !first;
+
+				l ^= p0;
+				r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^ s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p1;
+				l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^ s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p2;
+				r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^ s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p3;
+				l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^ s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p4;
+				r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^ s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p5;
+				l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^ s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p6;
+				r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^ s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p7;
+				l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^ s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p8;
+				r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^ s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p9;
+				l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^ s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p10;
+				r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^ s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p11;
+				l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^ s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p12;
+				r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^ s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p13;
+				l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^ s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p14;
+				r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^ s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p15;
+				l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^ s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p16;
+				int t = l;
+				l = r ^ p17;
+				r = t;
+
+				s[i] = l;
+				s[i + 1] = r;
+			}
 		}
 	}
 
@@ -603,10 +617,8 @@ public class BCrypt {
 	 * of rounds of hashing to apply
 	 * @return	an array containing the binary hashed password
 	 */
-	private byte[] crypt_raw(byte password[], byte salt[], int log_rounds) {
+	private static byte[] crypt_raw(byte password[], byte salt[], int log_rounds) {
 		int rounds, i, j;
-		int cdata[] = (int[])bf_crypt_ciphertext.clone();
-		int clen = cdata.length;
 		byte ret[];
 
 		if (log_rounds < 4 || log_rounds > 31)
@@ -614,17 +626,36 @@ public class BCrypt {
 		rounds = 1 << log_rounds;
 		if (salt.length != BCRYPT_SALT_LEN)
 			throw new IllegalArgumentException ("Bad salt length");
+		if (password.length == 0)
+			throw new IllegalArgumentException ("Empty password");
 
-		init_key();
-		ekskey(salt, password);
+		Engine engine = engines.get();
+		int key_words[] = engine.key_words;
+		int salt_words[] = engine.salt_words;
+		int cdata[] = engine.cdata;
+		int clen = cdata.length;
+
+		// Initialise the key schedule
+		System.arraycopy(P_orig, 0, engine.p, 0, engine.p.length);
+		System.arraycopy(S_orig, 0, engine.s0, 0, S_LEN);
+		System.arraycopy(S_orig, S_LEN, engine.s1, 0, S_LEN);
+		System.arraycopy(S_orig, S_LEN * 2, engine.s2, 0, S_LEN);
+		System.arraycopy(S_orig, S_LEN * 3, engine.s3, 0, S_LEN);
+		stream_words(password, key_words);
+		stream_words(salt, salt_words);
+
+		// The "enhanced key schedule" described by Provos and Mazieres in
+		// "A Future-Adaptable Password Scheme", then the expensive part
+		expand(engine, key_words, salt_words[0], salt_words[1], salt_words[2], salt_words[3]);
 		for (i = 0; i < rounds; i++) {
-			key(password);
-			key(salt);
+			expand(engine, key_words, 0, 0, 0, 0);
+			expand(engine, salt_words, 0, 0, 0, 0);
 		}
 
+		System.arraycopy(bf_crypt_ciphertext, 0, cdata, 0, clen);
 		for (i = 0; i < 64; i++) {
 			for (j = 0; j < (clen >> 1); j++)
-				encipher(cdata, j << 1);
+				encipher(engine, cdata, j << 1);
 		}
 
 		ret = new byte[clen * 4];
@@ -634,6 +665,14 @@ public class BCrypt {
 			ret[j++] = (byte)((cdata[i] >> 8) & 0xff);
 			ret[j++] = (byte)(cdata[i] & 0xff);
 		}
+
+		// Do not leave the key material lying around
+		Arrays.fill(key_words, 0);
+		Arrays.fill(engine.p, 0);
+		Arrays.fill(engine.s0, 0);
+		Arrays.fill(engine.s1, 0);
+		Arrays.fill(engine.s2, 0);
+		Arrays.fill(engine.s3, 0);
 		return ret;
 	}
 
@@ -645,12 +684,9 @@ public class BCrypt {
 	 * @return	the hashed password
 	 */
 	public static String hashpw(String password, String salt) {
-		BCrypt B;
-		String real_salt;
 		byte passwordb[], saltb[], hashed[];
 		char minor = (char)0;
 		int rounds, off = 0;
-		StringBuilder rs = new StringBuilder();
 
 		if (salt.charAt(0) != '$' || salt.charAt(1) != '2')
 			throw new IllegalArgumentException ("Invalid salt version");
@@ -668,29 +704,22 @@ public class BCrypt {
 			throw new IllegalArgumentException ("Missing salt rounds");
 		rounds = Integer.parseInt(salt.substring(off, off + 2));
 
-		real_salt = salt.substring(off + 3, off + 25);
-		try {
-			passwordb = (password + (minor >= 'a' ? "\000" : "")).getBytes("UTF-8");
-		} catch (UnsupportedEncodingException uee) {
-			throw new AssertionError("UTF-8 is not supported");
-		}
-
-		saltb = decode_base64(real_salt, BCRYPT_SALT_LEN);
+		passwordb = (minor >= 'a' ? password + "\000" : password).getBytes(StandardCharsets.UTF_8);
+		saltb = decode_base64(salt.substring(0, off + 25), off + 3, BCRYPT_SALT_LEN);
 
-		B = new BCrypt();
-		hashed = B.crypt_raw(passwordb, saltb, rounds);
+		hashed = crypt_raw(passwordb, saltb, rounds);
 
+		StringBuilder rs = new StringBuilder(60);
 		rs.append("$2");
 		if (minor >= 'a')
 			rs.append(minor);
 		rs.append("$");
 		if (rounds < 10)
 			rs.append("0");
-		rs.append(Integer.toString(rounds));
+		rs.append(rounds);
 		rs.append("$");
-		rs.append(encode_base64(saltb, saltb.length));
-		rs.append(encode_base64(hashed,
-		    bf_crypt_ciphertext.length * 4 - 1));
+		encode_base64(saltb, saltb.length, rs);
+		encode_base64(hashed, bf_crypt_ciphertext.length * 4 - 1, rs);
 		return rs.toString();
 	}
 
@@ -713,7 +742,7 @@ public class BCrypt {
 			rs.append("0");
 		rs.append(Integer.toString(log_rounds));
 		rs.append("$");
-		rs.append(encode_base64(rnd, rnd.length));
+		encode_base64(rnd, rnd.length, rs);
 		return rs.toString();
 	}
 
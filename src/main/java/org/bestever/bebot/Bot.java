@@ -18,6 +18,7 @@ package org.bestever.bebot;
 
 import com.mewna.catnip.Catnip;
 import com.mewna.catnip.CatnipOptions;
+import com.mewna.catnip.entity.channel.Channel;
 import com.mewna.catnip.entity.channel.GuildChannel;
 import com.mewna.catnip.entity.channel.MessageChannel;
 import com.mewna.catnip.entity.guild.Guild;
@@ -31,11 +32,11 @@ import com.mewna.catnip.entity.user.User;
 import com.mewna.catnip.shard.DiscordEvent;
 import com.mewna.catnip.shard.GatewayIntent;
 import org.bestever.serverquery.QueryManager;
+import org.bestever.serverquery.QueryResult;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.BufferedReader;
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URL;
@@ -43,15 +44,14 @@ import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.Timer;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.bestever.bebot.AccountType.ADMIN;
 import static org.bestever.bebot.AccountType.MODERATOR;
@@ -106,11 +106,9 @@ public class Bot {
 	public ConfigData cfg_data;
 
 	/**
-	 * Contained a array list of all the servers
+	 * Every running server, by port, owner and version
 	 */
-	public LinkedList<Server> servers;
-
-	public HashMap<String, LinkedList<Server>> vSHashmap;
+	public final ServerRegistry servers = new ServerRegistry();
 
 	/**
 	 * Holds the timer (for timed broadcasts)
@@ -122,6 +120,56 @@ public class Bot {
 	 */
 	private QueryManager queryManager;
 
+	/**
+	 * Every message to Discord goes through this
+	 */
+	private final OutboundMessageQueue outboundQueue = new OutboundMessageQueue();
+
+	/**
+	 * Keeps the latest query reply of every hosted server
+	 */
+	public ServerStatusPoller statusPoller;
+
+	/**
+	 * Writes the logs of every hosted server
+	 */
+	public LogWriter logWriter;
+
+	/**
+	 * Reads the output of every hosted server
+	 */
+	public ProcessReactor processReactor;
+
+	/**
+	 * How long .cpu and .mem wait for the local web server, in milliseconds
+	 */
+	private static final int LOCAL_STATS_TIMEOUT = 5000;
+
+	/**
+	 * Runs the commands users send us, off the Discord event thread
+	 */
+	public CommandDispatcher commandDispatcher;
+
+	/**
+	 * Hashes the passwords of registrations and password changes
+	 */
+	public PasswordHasher passwordHasher;
+
+	/**
+	 * Checks if players are behind a proxy
+	 */
+	public IPIntel ipIntel;
+
+	/**
+	 * Hands out the ports our servers run on
+	 */
+	public PortAllocator portAllocator;
+
+	/**
+	 * Knows what is in the wad directory
+	 */
+	public WadCatalog wadCatalog;
+
 	/**
 	 * The amount of times the "terminate" command has been confirmed.
 	 */
@@ -140,6 +188,12 @@ public class Bot {
 
 	private String guildId;
 
+	/**
+	 * Channels of our guild by name, filled on connect and kept up to date by
+	 * the channel events so sending does not need to search for the channel
+	 */
+	private final Map<String, GuildChannel> channelsByName = new ConcurrentHashMap<>();
+
 	/**
 	 * Set the bot up with the constructor
 	 */
@@ -156,6 +210,7 @@ public class Bot {
 		// Set initial ports
 		this.min_port = cfg_data.bot_min_port;
 		this.max_port = cfg_data.bot_max_port;
+		portAllocator = new PortAllocator(min_port, max_port);
 
 		// Set up the notice timer (if set)
 		if (cfg_data.bot_notice != null) {
@@ -163,11 +218,26 @@ public class Bot {
 			timer.scheduleAtFixedRate(new NoticeTimer(this), 1000, cfg_data.bot_notice_interval * 1000L);
 		}
 
-		// Set up the server arrays
-		this.servers = new LinkedList<>();
-		this.vSHashmap = new HashMap<>();
-		for (Version v : versionParser.list)
-			this.vSHashmap.put(v.name, new LinkedList<Server>());
+		// Start writing server logs, and write out what is left when we exit
+		logWriter = new LogWriter(cfg_data.bot_log_rotate_size, cfg_data.bot_log_gzip);
+		logWriter.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(logWriter::shutdown, "LogWriterShutdown"));
+
+		// Index the wad directory in the background
+		wadCatalog = new WadCatalog(cfg_data.bot_wad_directory_path, cfg_data.bot_wad_catalog_file);
+		wadCatalog.start();
+
+		// A few threads read the output of all our servers
+		processReactor = new ProcessReactor(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+
+		// Commands are run by a few workers so a slow one does not hold up the gateway
+		commandDispatcher = new CommandDispatcher();
+
+		// Hashing a password takes about a second, it gets threads of its own
+		passwordHasher = new PasswordHasher(cfg_data.bcrypt_cost, cfg_data.bcrypt_threads > 0
+				? cfg_data.bcrypt_threads : Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+		ipIntel = new IPIntel(this);
 
 		// Set up MySQL
 		 MySQL.setMySQL(this, cfg_data.mysql_host, cfg_data.mysql_user, cfg_data.mysql_pass, cfg_data.mysql_port, cfg_data.mysql_db);
@@ -179,6 +249,10 @@ public class Bot {
 		queryManager = new QueryManager(this);
 		queryManager.start();
 
+		// Keep polling our own servers with it
+		statusPoller = new ServerStatusPoller(this, queryManager);
+		new Timer("ServerStatusPoller", true).schedule(statusPoller, ServerStatusPoller.TICK_MILLISECONDS, ServerStatusPoller.TICK_MILLISECONDS);
+
 		// Set up the bot and join the channel
 		logMessage(LOGLEVEL_IMPORTANT, "Initializing ZBot");
 
@@ -204,7 +278,11 @@ public class Bot {
 
 		catnip
 				.observable(DiscordEvent.MESSAGE_CREATE)
-				.subscribe(this::onMessage);
+				.subscribe(this::dispatchMessage);
+
+		catnip.observable(DiscordEvent.CHANNEL_CREATE).subscribe(this::onChannelChanged);
+		catnip.observable(DiscordEvent.CHANNEL_UPDATE).subscribe(this::onChannelChanged);
+		catnip.observable(DiscordEvent.CHANNEL_DELETE).subscribe(this::onChannelDeleted);
 
 		catnip.connect();
 	}
@@ -222,6 +300,7 @@ public class Bot {
 			throw new  IllegalStateException("Exactly one guild should be available, got " + guilds);
 		}
 		this.guildId = guilds.iterator().next().id();
+		refreshChannelCache();
 
 		sendMessageToCoreChannel("Hello, world!");
 		sendLogInfoMessage("Bot started.");
@@ -268,18 +347,18 @@ public class Bot {
 	 * @param sender
 	 */
 	public void addExtraWad(String wad, Member sender, MessageChannel channel) {
-		if (!Functions.fileExists(cfg_data.bot_wad_directory_path + wad)) {
-			channel.sendMessage("Error: file " + wad + " does not exist!");
+		if (!wadCatalog.exists(wad)) {
+			sendMessage(channel, "Error: file " + wad + " does not exist!");
 			return;
 		}
 		for (String listWad : cfg_data.bot_extra_wads) {
 			if (listWad.equalsIgnoreCase(wad)) {
-				channel.sendMessage("Error: file " + listWad + " is already in the startup list!");
+				sendMessage(channel, "Error: file " + listWad + " is already in the startup list!");
 				return;
 			}
 		}
 		cfg_data.bot_extra_wads.add(wad);
-		channel.sendMessage("Added " + wad + " to the startup list!");
+		sendMessage(channel, "Added " + wad + " to the startup list!");
 		sendLogModeratorMessage(bold(userInfo(sender)) + " adds " + bold(wad) + " to the startup WAD list");
 	}
 
@@ -300,12 +379,12 @@ public class Bot {
 		for (String listWad : cfg_data.bot_extra_wads) {
 			if (listWad.equalsIgnoreCase(wad)) {
 				cfg_data.bot_extra_wads.remove(wad);
-				channel.sendMessage("Removed " + wad + " from the startup list!");
+				sendMessage(channel, "Removed " + wad + " from the startup list!");
 				sendLogModeratorMessage(bold(userInfo(sender)) + " removes " + bold(wad) + " from the startup WAD list");
 				return;
 			}
 		}
-		channel.sendMessage("Error: file " + wad + " was not found in the startup list!");
+		sendMessage(channel, "Error: file " + wad + " was not found in the startup list!");
 	}
 
 	/**
@@ -314,16 +393,7 @@ public class Bot {
 	 */
 	public void removeServerFromLinkedList(Server server) {
 		logMessage(LOGLEVEL_DEBUG, "Removing server from linked list.");
-		if (servers == null || servers.isEmpty())
-			return;
-		ListIterator<Server> it = servers.listIterator();
-		while (it.hasNext()) {
-			// Check if they refer to the exact same object via reference, if so then we want to remove that
-			if (it.next() == server) {
-				it.remove();
-				return;
-			}
-		}
+		servers.remove(server);
 	}
 
 	/**
@@ -332,17 +402,8 @@ public class Bot {
 	 * @return The server object reference if it exists, null if there's no such object
 	 */
 	public Server getServer(int port) {
-		logMessage(LOGLEVEL_TRIVIAL, "Getting server at port " + port + ".");
-		if (servers == null || servers.isEmpty())
-			return null;
-		ListIterator<Server> it = servers.listIterator();
-		Server desiredServer;
-		while (it.hasNext()) {
-			desiredServer = it.next();
-			if (desiredServer.port == port)
-				return desiredServer;
-		}
-		return null;
+		logMessage(LOGLEVEL_TRIVIAL, () -> "Getting server at port " + port + ".");
+		return servers.getByPort(port);
 	}
 
 	/**
@@ -352,32 +413,15 @@ public class Bot {
 	 */
 	@Nonnull
 	public List<Server> getUserServers(String userId) {
-		logMessage(LOGLEVEL_DEBUG, "Getting all servers from " + userId + ".");
-		if (servers == null || servers.isEmpty())
-			return Collections.emptyList();
-		Server desiredServer;
-		ListIterator<Server> it = servers.listIterator();
-		List<Server> serverList = new ArrayList<>();
-		while (it.hasNext()) {
-			desiredServer = it.next();
-			if (desiredServer.userId.equals(userId)) {
-				serverList.add(desiredServer);
-			}
-		}
-		return serverList;
+		logMessage(LOGLEVEL_DEBUG, () -> "Getting all servers from " + userId + ".");
+		return servers.getByOwner(userId);
 	}
 	
 	@Nullable
 	public List<Server> getAllServers() {
-		if (servers == null || servers.isEmpty())
+		List<Server> serverList = servers.snapshot();
+		if (serverList.isEmpty())
 			return null;
-		Server desiredServer;
-		ListIterator<Server> it = servers.listIterator();
-		List<Server> serverList = new ArrayList<>();
-		while (it.hasNext()) {
-			desiredServer = it.next();
-			serverList.add(desiredServer);
-		}
 		return serverList;
 	}
 
@@ -392,7 +436,7 @@ public class Bot {
 		logMessage(LOGLEVEL_NORMAL, "Killing server on port " + portString + ".");
 		// Ensure it is a valid port
 		if (!Functions.isNumeric(portString)) {
-			channel.sendMessage("Invalid port number (" + portString + "), not terminating server.");
+			sendMessage(channel, "Invalid port number (" + portString + "), not terminating server.");
 			return;
 		}
 
@@ -401,7 +445,7 @@ public class Bot {
 
 		// Handle users sending in a small value (thus saving time
 		if (port < min_port) {
-			channel.sendMessage("Invalid port number (ports start at " + min_port + "), not terminating server.");
+			sendMessage(channel, "Invalid port number (ports start at " + min_port + "), not terminating server.");
 			return;
 		}
 
@@ -414,7 +458,7 @@ public class Bot {
 			targetServer.killServer();
 		}
 		else
-			channel.sendMessage("Error: Could not find a server with the port " + port + "!");
+			sendMessage(channel, "Error: Could not find a server with the port " + port + "!");
 	}
 
 	private static String userInfo(@Nullable Member sender) {
@@ -436,16 +480,16 @@ public class Bot {
 				Server s = getServer(Integer.parseInt(keywords[1]));
 				if (s.auto_restart) {
 					s.auto_restart = false;
-					channel.sendMessage("Autorestart disabled on server.");
+					sendMessage(channel, "Autorestart disabled on server.");
 				}
 				else {
 					s.auto_restart = true;
-					channel.sendMessage("Autorestart set up on server.");
+					sendMessage(channel, "Autorestart set up on server.");
 				}
 			}
 		}
 		else
-			channel.sendMessage("Correct usage is .autorestart <port>");
+			sendMessage(channel, "Correct usage is .autorestart <port>");
 	}
 */
 	/**
@@ -459,16 +503,16 @@ public class Bot {
 				Server s = getServer(Integer.parseInt(keywords[1]));
 				if (s.protected_server) {
 					s.protected_server = false;
-					channel.sendMessage("Kill protection disabled.");
+					sendMessage(channel, "Kill protection disabled.");
 				}
 				else {
 					s.protected_server = true;
-					channel.sendMessage("Kill protection enabled.");
+					sendMessage(channel, "Kill protection enabled.");
 				}
 			}
 		}
 		else
-			channel.sendMessage("Correct usage is .protect <port>");
+			sendMessage(channel, "Correct usage is .protect <port>");
 	}
 
 	/**
@@ -478,18 +522,18 @@ public class Bot {
 	 */
 	private void globalBroadcast(String[] keywords, Member sender, MessageChannel channel) {
 		if (keywords.length > 1) {
-			if (servers != null) {
+			if (!servers.isEmpty()) {
 				String message = Functions.implode(Arrays.copyOfRange(keywords, 1, keywords.length), " ");
 				for (Server s : servers) {
 					s.in.flush(); s.in.println("say \"\\cf--------------\\cc\";\n");
 					s.in.flush(); s.in.println("say \"GLOBAL ANNOUNCEMENT: " + Functions.escapeQuotes(message) + "\";\n");
 					s.in.flush(); s.in.println("say \"\\cf--------------\\cc\";\n");
 				}
-				channel.sendMessage("Global broadcast sent.");
+				sendMessage(channel, "Global broadcast sent.");
 				sendLogModeratorMessage(bold(userInfo(sender)) + " sends global announcement: " + message);
 			}
 			else {
-				channel.sendMessage("There are no servers running at the moment.");
+				sendMessage(channel, "There are no servers running at the moment.");
 			}
 		}
 	}
@@ -526,7 +570,7 @@ public class Bot {
 							s.in.flush(); s.in.println("echo \"-> " + command + " " + Functions.escapeQuotes(args) + " (RCON by " + hostname + ")\";\n");
 							s.in.flush(); s.in.println(command + " " + args + ";\n");
 						}
-						channel.sendMessage("Command '"+thisMessage+"' sent.");
+						sendMessage(channel, "Command '"+thisMessage+"' sent.");
 						String logSender = (isHoster ? "their own" : bold(s.userId) + "'s");
 						String logStr = bold(userInfo(hostname)) + " sends to " + logSender + " server on port " + port + ": " + thisMessage;
 						if (isHoster)
@@ -535,16 +579,16 @@ public class Bot {
 							sendLogModeratorMessage(logStr);
 					}
 					else
-						channel.sendMessage("You do not own this server.");
+						sendMessage(channel, "You do not own this server.");
 				}
 				else
-					channel.sendMessage("Server does not exist.");
+					sendMessage(channel, "Server does not exist.");
 			}
 			else
-				channel.sendMessage("Port must be a number!");
+				sendMessage(channel, "Port must be a number!");
 		}
 		else
-			channel.sendMessage("Incorrect syntax! Correct syntax is .send <port> <command>");
+			sendMessage(channel, "Incorrect syntax! Correct syntax is .send <port> <command>");
 	}
 	
 	/**
@@ -554,7 +598,7 @@ public class Bot {
 	 */
 	private void sendCommandAll(String[] keywords, Member sender, MessageChannel channel) {
 		if (keywords.length > 1) {
-			if (servers != null) {
+			if (!servers.isEmpty()) {
 				String entireMessage = Functions.implode(Arrays.copyOfRange(keywords, 1, keywords.length), " ");
 				String thisMessage = entireMessage.split(";")[0]; // Only send the first message because stacked messages break somehow.. :/
 				thisMessage = thisMessage.replaceAll("^\\s+","");
@@ -562,7 +606,7 @@ public class Bot {
 				String command = thisKeywords[0];
 				String args = Functions.implode(Arrays.copyOfRange(thisKeywords, 1, thisKeywords.length), " ");
 				if (!args.equals("") && (command.equalsIgnoreCase("sv_hostname") || command.equalsIgnoreCase("sv_website") || command.equalsIgnoreCase("logfile"))) {
-					channel.sendMessage("Error: Command " + command + " is not allowed to be sent to all servers");
+					sendMessage(channel, "Error: Command " + command + " is not allowed to be sent to all servers");
 				}
 				else {
 					if (!args.equals("") && (command.equalsIgnoreCase("sv_hostname") || command.equalsIgnoreCase("echo") || command.equalsIgnoreCase("say"))) {
@@ -573,16 +617,35 @@ public class Bot {
 						s.in.flush(); s.in.println("echo \"-> " + command + " " + Functions.escapeQuotes(args) + " (RCON by " + sender + ")\";\n");
 						s.in.flush(); s.in.println(command + " " + args + ";\n");
 					}
-					channel.sendMessage("Command '"+thisMessage+"' sent to all servers.");
+					sendMessage(channel, "Command '"+thisMessage+"' sent to all servers.");
 					sendLogModeratorMessage(bold(userInfo(sender)) + " sends to all servers: " + thisMessage);
 				}
 			}
 			else {
-				channel.sendMessage("There are no servers running at the moment.");
+				sendMessage(channel, "There are no servers running at the moment.");
 			}
 		}
 	}
 
+	/**
+	 * Passes commands and direct messages on to the command dispatcher, this
+	 * runs on the event thread so it must not block
+	 */
+	public void dispatchMessage(Message msg) {
+		final String message = msg.content();
+		final User author = msg.author();
+		if (message == null || author == null)
+			return;
+
+		// Chat in the channels is not for us, direct messages do not need the period
+		if (msg.guildId() != null && !message.startsWith("."))
+			return;
+		if (!commandDispatcher.submit(author.id(), () -> onMessage(msg)))
+			msg.channel().subscribe(
+					channel -> sendMessage(channel, "Your command was dropped, you already have too many commands waiting. Please wait for them to finish."),
+					Throwable::printStackTrace);
+	}
+
 	/**
 	 * Have the bot handle message events
 	 */
@@ -607,7 +670,7 @@ public class Bot {
 			final AccountType userLevel = getRole(member);
 			switch (keywords[0].toLowerCase()) {
 				case ".commands":
-					channel.sendMessage(processCommands(userLevel));
+					sendMessage(channel, processCommands(userLevel));
 					break;
 				case ".file":
 					processFile(keywords, channel);
@@ -616,7 +679,7 @@ public class Bot {
 					processGet(keywords, channel);
 					break;
 				case ".help":
-					channel.sendMessage(Objects.requireNonNullElse(cfg_data.bot_help, "Error: No help available."));
+					sendMessage(channel, Objects.requireNonNullElse(cfg_data.bot_help, "Error: No help available."));
 					break;
 				case ".owner":
 					processOwner(keywords, channel);
@@ -626,16 +689,16 @@ public class Bot {
 					break;
 				case ".uptime":
 					if (keywords.length == 1)
-						channel.sendMessage("I have been running for " + Functions.calculateTime(System.currentTimeMillis() - time_started));
+						sendMessage(channel, "I have been running for " + Functions.calculateTime(System.currentTimeMillis() - time_started));
 					else
 						calculateUptime(keywords[1], channel);
 					break;
 				case ".liststartwads":
-					channel.sendMessage("These wads are automatically loaded when a server is started: " + Functions.implode(cfg_data.bot_extra_wads, ", "));
+					sendMessage(channel, "These wads are automatically loaded when a server is started: " + Functions.implode(cfg_data.bot_extra_wads, ", "));
 					break;
 				case ".versions":
 					for (Version v : versionParser.list)
-						channel.sendMessage(String.format("%s %s - %s", v.name, (v.isDefault ? "(default)" : ""), v.description));
+						sendMessage(channel, String.format("%s %s - %s", v.name, (v.isDefault ? "(default)" : ""), v.description));
 					break;
 				default:
 					break;
@@ -658,7 +721,7 @@ public class Bot {
 						MySQL.loadSlot(member.id(), keywords, userLevel, channel);
 						break;
 					case ".save":
-						channel.sendMessage("Please update slots at " + cfg_data.website_link + "/account");
+						sendMessage(channel, "Please update slots at " + cfg_data.website_link + "/account");
 //						MySQL.saveSlot(hostname, keywords);
 						break;
 					case ".slot":
@@ -673,7 +736,7 @@ public class Bot {
 					case ".rcon":
 					case ".logfile":
 					case ".passwords":
-						channel.sendMessage("Please use .getinfo <port> instead");
+						sendMessage(channel, "Please use .getinfo <port> instead");
 						break;
 					default:
 						break;
@@ -691,7 +754,7 @@ public class Bot {
 					case ".rcon":
 					case ".logfile":
 					case ".passwords":
-						channel.sendMessage("Sorry, I'm not allowed to speak to you");
+						sendMessage(channel, "Sorry, I'm not allowed to speak to you");
 						break;
 					default:
 						break;
@@ -704,47 +767,11 @@ public class Bot {
 //						toggleAutoRestart(keywords, channel);
 //						break;
 					case ".cpu":
-						try {
-							URL url;
-							if (keywords.length > 1 && keywords[1] != null && !keywords[1].isEmpty()) {
-								url = new URL("http://127.0.0.1/bot/cpu?port=" + keywords[1]);
-							}
-							else {
-								url = new URL("http://127.0.0.1/bot/cpu");
-							}
-							URLConnection yc = url.openConnection();
-							BufferedReader in = new BufferedReader(new InputStreamReader(yc.getInputStream()));
-							String inputLine;
-							while ((inputLine = in.readLine()) != null) {
-								channel.sendMessage(inputLine);
-							}
-							in.close();
-						}
-						catch (IOException e) {
-							System.out.println(e);
-						}
+						sendLocalStats("cpu", keywords, channel);
 						break;
 					case ".mem":
 					case ".ram":
-						try {
-							URL url;
-							if (keywords.length > 1 && keywords[1] != null && !keywords[1].isEmpty()) {
-								url = new URL("http://127.0.0.1/bot/mem?port=" + keywords[1]);
-							}
-							else {
-								url = new URL("http://127.0.0.1/bot/mem");
-							}
-							URLConnection yc = url.openConnection();
-							BufferedReader in = new BufferedReader(new InputStreamReader(yc.getInputStream()));
-							String inputLine;
-							while ((inputLine = in.readLine()) != null) {
-								channel.sendMessage(inputLine);
-							}
-							in.close();
-						}
-						catch (IOException e) {
-							System.out.println(e);
-						}
+						sendLocalStats("mem", keywords, channel);
 						break;
 					case ".protect":
 						protectServer(keywords, channel);
@@ -758,7 +785,7 @@ public class Bot {
 					case ".cpu":
 					case ".mem":
 					case ".protect":
-						channel.sendMessage("Error: You do not have permission to use that command!");
+						sendMessage(channel, "Error: You do not have permission to use that command!");
 						break;
 					default:
 						break;
@@ -780,7 +807,7 @@ public class Bot {
 				switch (keywords[0].toLowerCase()) {
 					case ".broadcast":
 					case ".killinactive":
-						channel.sendMessage("Error: You do not have permission to use that command!");
+						sendMessage(channel, "Error: You do not have permission to use that command!");
 						break;
 					default:
 						break;
@@ -807,12 +834,12 @@ public class Bot {
 						break;
 					case ".reloadconfig":
 						reloadConfigFile();
-						channel.sendMessage("Configuration file has been successfully reloaded.");
+						sendMessage(channel, "Configuration file has been successfully reloaded.");
 						sendLogAdminMessage(bold(userInfo(member)) + " reloaded the config file");
 						break;
 					case ".reloadversions":
 						versionParser.load();
-						channel.sendMessage("Versions file has been successfully reloaded.");
+						sendMessage(channel, "Versions file has been successfully reloaded.");
 						sendLogAdminMessage(bold(userInfo(member)) + " reloaded the zandronum versions");
 						break;
 					case ".sendall":
@@ -820,21 +847,27 @@ public class Bot {
 						break;
 					case ".debug":
 						debugMode = !debugMode;
-						channel.sendMessage("Debug mode is now " + (debugMode ? "en" : "dis") + "abled.");
+						sendMessage(channel, "Debug mode is now " + (debugMode ? "en" : "dis") + "abled.");
 						sendLogAdminMessage(bold(userInfo(member)) + " " + (debugMode ? "en" : "dis") + "abled debug mode");
 						break;
+					case ".dbstats":
+						sendMessage(channel, "Database pool: " + MySQL.getPoolStats());
+						break;
+					case ".hashstats":
+						sendMessage(channel, "Password hashing: " + passwordHasher);
+						break;
 					case ".ipintel":
 						cfg_data.ipintel_enabled = !cfg_data.ipintel_enabled;
-						channel.sendMessage("IPIntel is now " + (cfg_data.ipintel_enabled ? "en" : "dis") + "abled.");
+						sendMessage(channel, "IPIntel is now " + (cfg_data.ipintel_enabled ? "en" : "dis") + "abled (" + ipIntel + ").");
 						sendLogAdminMessage(bold(userInfo(member)) + " " + (cfg_data.ipintel_enabled ? "en" : "dis") + "abled IPIntel checking");
 						break;
 					case ".clearrecovery":
 						if (MySQL.clearRecovery()) {
-							channel.sendMessage("Recovery cleared");
+							sendMessage(channel, "Recovery cleared");
 							sendLogAdminMessage(bold(userInfo(member)) + " cleared the recovery");
 						}
 						else {
-							channel.sendMessage("Failed to clear recovery");
+							sendMessage(channel, "Failed to clear recovery");
 						}
 						break;
 					case ".updaterecovery":
@@ -847,11 +880,11 @@ public class Bot {
 										added++;
 
 						if (added != 0) {
-							channel.sendMessage("Added " + added + " servers to recovery");
+							sendMessage(channel, "Added " + added + " servers to recovery");
 							sendLogAdminMessage("**" + userInfo(member) + "** updated the recovery (+"+added+" servers)");
 						}
 						else {
-							channel.sendMessage("No servers to add to recovery");
+							sendMessage(channel, "No servers to add to recovery");
 						}
 						break;
 					default:
@@ -859,7 +892,9 @@ public class Bot {
 				}
 			} else {
 				switch (keywords[0].toLowerCase()) {
+					case ".dbstats":
 					case ".debug":
+					case ".hashstats":
 					case ".ipintel":
 					case ".killall":
 					case ".killversion":
@@ -871,7 +906,7 @@ public class Bot {
 					case ".clearrecovery":
 					case ".updaterecovery":
 					case ".sendall":
-						channel.sendMessage("Error: You do not have permission to use that command!");
+						sendMessage(channel, "Error: You do not have permission to use that command!");
 						break;
 					default:
 						break;
@@ -880,6 +915,45 @@ public class Bot {
 		}
 	}
 
+	/**
+	 * Asks the local web server for resource usage and sends what it says
+	 * @param stat Which page to ask for (cpu or mem)
+	 * @param keywords The command, the second keyword is the port if there is one
+	 * @param channel Where to send the answer
+	 */
+	private void sendLocalStats(String stat, String[] keywords, MessageChannel channel) {
+		try {
+			URL url;
+			if (keywords.length > 1 && keywords[1] != null && !keywords[1].isEmpty()) {
+				url = new URL("http://127.0.0.1/bot/" + stat + "?port=" + keywords[1]);
+			}
+			else {
+				url = new URL("http://127.0.0.1/bot/" + stat);
+			}
+			URLConnection yc = url.openConnection();
+			yc.setConnectTimeout(LOCAL_STATS_TIMEOUT);
+			yc.setReadTimeout(LOCAL_STATS_TIMEOUT);
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(yc.getInputStream()))) {
+				String inputLine;
+				while ((inputLine = in.readLine()) != null) {
+					sendMessage(channel, inputLine);
+				}
+			}
+		}
+		catch (IOException e) {
+			System.out.println(e);
+		}
+	}
+
+	/**
+	 * Gets the role of a guild member by their id, for when we have no message from them
+	 * @param userId The id of the member
+	 * @return Their highest account type, NONE if they left the guild
+	 */
+	public AccountType getRoleOf(String userId) {
+		return getRole(getGuild().members().findAny(m -> m.id().equals(userId)));
+	}
+
 	private AccountType getRole(Member member) {
 		final Set<Role> roles;
 		if (member != null) {
@@ -919,7 +993,7 @@ public class Bot {
 				if (keywords.length == 2)
 					MySQL.registerAccount(member.id(), keywords[1], channel);
 				else
-					channel.sendMessage("Incorrect syntax! Usage is: register <password>");
+					sendMessage(channel, "Incorrect syntax! Usage is: register <password>");
 				break;
 			default:
 				break;
@@ -927,7 +1001,7 @@ public class Bot {
 		if (isAccountTypeOf(userLevel, REGISTERED)) { // REGISTERED
 			switch (keywords[0].toLowerCase()) {
 				case ".commands":
-					channel.sendMessage(processPrivateCommands(userLevel));
+					sendMessage(channel, processPrivateCommands(userLevel));
 					break;
 				case "changepass":
 				case "changepassword":
@@ -935,7 +1009,7 @@ public class Bot {
 					if (keywords.length == 2)
 						MySQL.changePassword(member.id(), keywords[1], channel);
 					else
-						channel.sendMessage("Incorrect syntax! Usage is: /msg " + " changepw <new_password>");
+						sendMessage(channel, "Incorrect syntax! Usage is: /msg " + " changepw <new_password>");
 					break;
 				case ".getinfo":
 					processServerInfo(userLevel, keywords, channel, member);
@@ -946,7 +1020,7 @@ public class Bot {
 				case ".rcon":
 				case ".logfile":
 				case ".passwords":
-					channel.sendMessage("Please use .getinfo <port> instead");
+					sendMessage(channel, "Please use .getinfo <port> instead");
 					break;
 				default:
 					break;
@@ -961,7 +1035,7 @@ public class Bot {
 				case ".rcon":
 				case ".logfile":
 				case ".passwords":
-					channel.sendMessage("Error: You are either not logged in with NickServ or your account is not registered with " + cfg_data.service_short + " - See " + cfg_data.website_link + "/register");
+					sendMessage(channel, "Error: You are either not logged in with NickServ or your account is not registered with " + cfg_data.service_short + " - See " + cfg_data.website_link + "/register");
 					break;
 				default:
 					break;
@@ -983,7 +1057,7 @@ public class Bot {
 					sendLogAdminMessage("**" + userInfo(member) + "** sent message: **" + message.substring(message.indexOf(' ')+1));
 					break;
 				case ".action":
-					channel.sendMessage("/me " + Functions.implode(Arrays.copyOfRange(keywords, 1, keywords.length), " "));
+					sendMessage(channel, "/me " + Functions.implode(Arrays.copyOfRange(keywords, 1, keywords.length), " "));
 					sendLogAdminMessage("**" + userInfo(member) + "** sent action: " + bold(message.substring(message.indexOf(' ')+1)));
 					break;
 				default:
@@ -1013,7 +1087,7 @@ public class Bot {
 		if (AccountType.isAccountTypeOf(userLevel, MODERATOR))
 			commands += "[M] .broadcast .killinactive ";
 		if (AccountType.isAccountTypeOf(userLevel, ADMIN))
-			commands += "[A] .debug .ipintel .killall .killversion .notice .off .on .reloadconfig .reloadversions .sendall .clearrecovery .updaterecovery";
+			commands += "[A] .dbstats .debug .hashstats .ipintel .killall .killversion .notice .off .on .reloadconfig .reloadversions .sendall .clearrecovery .updaterecovery";
 		return commands;
 	}
 	
@@ -1040,15 +1114,15 @@ public class Bot {
 			Server s = getServer(portValue);
 			if (s != null) {
 				if (portValue >= min_port && portValue < max_port)
-					channel.sendMessage(s.port + " has been running for " + Functions.calculateTime(System.currentTimeMillis() - s.time_started));
+					sendMessage(channel, s.port + " has been running for " + Functions.calculateTime(System.currentTimeMillis() - s.time_started));
 				else
-					channel.sendMessage("Port must be between " + min_port + " and " + max_port);
+					sendMessage(channel, "Port must be between " + min_port + " and " + max_port);
 			}
 			else
-				channel.sendMessage("There is no server running on port " + port);
+				sendMessage(channel, "There is no server running on port " + port);
 		}
 		else
-			channel.sendMessage("Port must be a number (ex: .uptime 15000)");
+			sendMessage(channel, "Port must be a number (ex: .uptime 15000)");
 	}
 
 	/**
@@ -1059,15 +1133,15 @@ public class Bot {
 	 */
 	public void setNotice(String[] keywords, AccountType userLevel, MessageChannel channel) {
 		if (keywords.length == 1) {
-			channel.sendMessage("Notice is: " + cfg_data.bot_notice);
+			sendMessage(channel, "Notice is: " + cfg_data.bot_notice);
 			return;
 		}
 		if (isAccountTypeOf(userLevel, ADMIN)) {
 			cfg_data.bot_notice = Functions.implode(Arrays.copyOfRange(keywords, 1, keywords.length), " ");
-			channel.sendMessage("New notice has been set.");
+			sendMessage(channel, "New notice has been set.");
 		}
 		else
-			channel.sendMessage("You do not have permission to set the notice.");
+			sendMessage(channel, "You do not have permission to set the notice.");
 	}
 
 	/**
@@ -1077,12 +1151,12 @@ public class Bot {
 	 */
 	private void messageChannel(String[] keywords, MessageChannel channel) {
 		if (keywords.length < 2 || !channel.isGuild())
-			channel.sendMessage("Incorrect syntax! Correct usage is .msg your_message");
+			sendMessage(channel, "Incorrect syntax! Correct usage is .msg your_message");
 		else {
 			String message = Functions.implode(Arrays.copyOfRange(keywords, 1, keywords.length), " ");
 
 			final Optional<GuildChannel> targetChannel = channelByName(cfg_data.discord_channel);
-			targetChannel.ifPresent(ch -> ch.asMessageChannel().sendMessage(message));
+			targetChannel.ifPresent(ch -> sendMessage(ch.asMessageChannel(), message));
 		}
 	}
 
@@ -1094,13 +1168,12 @@ public class Bot {
 	private void processFile(String[] keywords, MessageChannel channel) {
 		logMessage(LOGLEVEL_TRIVIAL, "Displaying processFile().");
 		if (keywords.length == 2) {
-			File file = new File(cfg_data.bot_wad_directory_path + Functions.cleanInputFile(keywords[1].toLowerCase()));
-			if (file.exists())
-				channel.sendMessage("File '" + keywords[1].toLowerCase() + "' exists on the server.");
+			if (wadCatalog.exists(Functions.cleanInputFile(keywords[1].toLowerCase())))
+				sendMessage(channel, "File '" + keywords[1].toLowerCase() + "' exists on the server.");
 			else
-				channel.sendMessage("Not found!");
+				sendMessage(channel, "Not found!");
 		} else
-			channel.sendMessage("Incorrect syntax, use: .file <filename.wad>");
+			sendMessage(channel, "Incorrect syntax, use: .file <filename.wad>");
 	}
 
 	/**
@@ -1111,19 +1184,33 @@ public class Bot {
 	private void processGet(String[] keywords, MessageChannel channel) {
 		logMessage(LOGLEVEL_TRIVIAL, "Displaying processGet().");
 		if (keywords.length != 3) {
-			channel.sendMessage("Proper syntax: .get <port> <property>");
+			sendMessage(channel, "Proper syntax: .get <port> <property>");
 			return;
 		}
 		if (!Functions.isNumeric(keywords[1])) {
-			channel.sendMessage("Port is not a valid number");
+			sendMessage(channel, "Port is not a valid number");
 			return;
 		}
 		Server tempServer = getServer(Integer.parseInt(keywords[1]));
 		if (tempServer == null) {
-			channel.sendMessage("There is no server running on this port.");
+			sendMessage(channel, "There is no server running on this port.");
 			return;
 		}
-		channel.sendMessage(tempServer.getField(keywords[2]));
+		QueryResult status = statusPoller.getResult(tempServer);
+		switch (keywords[2].toLowerCase()) {
+			case "map":
+			case "mapname":
+				sendMessage(channel, "map: " + (status == null ? "Unknown" : tempServer.nullToNone(status.mapname)));
+				return;
+			case "players":
+				if (status == null || !status.hasPlayerData())
+					sendMessage(channel, "players: Unknown");
+				else
+					sendMessage(channel, "players: " + status.getNumberOfPlayers() + (status.getNumberOfPlayers() > 0 ? " (" + String.join(", ", status.getPlayerNames()) + ")" : ""));
+				return;
+			default:
+				sendMessage(channel, tempServer.getField(keywords[2]));
+		}
 	}
 
 	/**
@@ -1142,10 +1229,10 @@ public class Bot {
 			if (slots > userServers)
 				Server.handleHostCommand(this, servers, channel, hostname, message, userLevel, autoRestart, port, null, false);
 			else
-				channel.sendMessage("You have reached your server limit (" + slots + ")");
+				sendMessage(channel, "You have reached your server limit (" + slots + ")");
 		}
 		else
-			channel.sendMessage("The bot is currently disabled from hosting for the time being. Sorry for any inconvenience!");
+			sendMessage(channel, "The bot is currently disabled from hosting for the time being. Sorry for any inconvenience!");
 	}
 
 	/**
@@ -1160,19 +1247,13 @@ public class Bot {
 		logMessage(LOGLEVEL_NORMAL, "Processing kill.");
 		// Ensure proper syntax
 		if (keywords.length != 2) {
-			channel.sendMessage("Proper syntax: .kill <port>");
-			return;
-		}
-
-		// Safety net
-		if (servers == null) {
-			channel.sendMessage("Critical error: Linkedlist is null, contact an administrator.");
+			sendMessage(channel, "Proper syntax: .kill <port>");
 			return;
 		}
 
 		// If server list is empty
 		if (servers.isEmpty()) {
-			channel.sendMessage("There are currently no servers running!");
+			sendMessage(channel, "There are currently no servers running!");
 			return;
 		}
 
@@ -1192,17 +1273,17 @@ public class Bot {
 							server.serverprocess.terminateServer();
 						}
 						else {
-							channel.sendMessage("Error: Server process is null, contact an administrator.");
+							sendMessage(channel, "Error: Server process is null, contact an administrator.");
 						}
 					else {
-						channel.sendMessage("Error: You do not own this server!");
+						sendMessage(channel, "Error: You do not own this server!");
 					}
 				}
 				else {
-					channel.sendMessage("Error: There is no server running on this port.");
+					sendMessage(channel, "Error: There is no server running on this port.");
 				}
 			} else {
-				channel.sendMessage("Improper port number.");
+				sendMessage(channel, "Improper port number.");
 			}
 		// Admins/mods can kill anything
 		} else if (isAccountTypeOf(userLevel, MODERATOR)) {
@@ -1217,11 +1298,9 @@ public class Bot {
 	 */
 	private void processKillAll(Member sender, MessageChannel channel) {
 		logMessage(LOGLEVEL_IMPORTANT, "Processing killall.");
-		// If we use this.servers instead of a temporary list, it will remove the servers from the list while iterating over them
-		// This will throw a concurrent modification exception
-		// As a temporary solution, we can create a temporary list that will hold the values of the real list at the time it was called
-		List<Server> tempList = new LinkedList<>(servers);
-		int serverCount = servers.size();
+		// Killing removes servers from the registry, so go over what was there when we were called
+		List<Server> tempList = servers.snapshot();
+		int serverCount = tempList.size();
 		if (tempList.size() > 0) {
 			for (Server s : tempList) {
 				s.hide_stop_message = true;
@@ -1229,30 +1308,30 @@ public class Bot {
 				s.auto_restart = false;
 				s.killServer();
 			}
-			channel.sendMessage(Functions.pluralize("Killed a total of " + serverCount + " server{s}.", serverCount));
+			sendMessage(channel, Functions.pluralize("Killed a total of " + serverCount + " server{s}.", serverCount));
 			//if (channel != cfg_data.irc_channel)
 			//	sendMessage(cfg_data.irc_channel, Functions.pluralize("Killed a total of " + serverCount + " server{s}.", serverCount));
 			sendLogAdminMessage(Functions.pluralize(bold(userInfo(sender)) + " Killed a total of " + bold("" + serverCount) + " server{s}.", serverCount));
 		} else
-			channel.sendMessage("There are no servers running.");
+			sendMessage(channel, "There are no servers running.");
 	}
 
 	private void processKillVersion(String[] keywords, Member sender, MessageChannel channel) {
 		if (keywords.length != 2) {
-			channel.sendMessage("Invalid amount of arguments. Syntax: .killversion <version>");
+			sendMessage(channel, "Invalid amount of arguments. Syntax: .killversion <version>");
 			return;
 		}
 
 		String version = keywords[1];
 
-		if (!vSHashmap.containsKey(version)) {
-			channel.sendMessage("Unknown version " + version);
+		if (versionParser.getVersion(version) == null) {
+			sendMessage(channel, "Unknown version " + version);
 			return;
 		}
 
-		List<Server> tempList = new ArrayList<>(vSHashmap.get(version));
+		List<Server> tempList = servers.getByVersion(version);
 		if (tempList.size() < 1) {
-			channel.sendMessage("No servers to kill.");
+			sendMessage(channel, "No servers to kill.");
 			return;
 		}
 
@@ -1266,7 +1345,7 @@ public class Bot {
 		}
 
 		sendLogAdminMessage(bold(userInfo(sender)) + " kills all " + killed + bold(keywords[1]) + " servers");
-		channel.sendMessage("Killed a total of " + killed + " servers.");
+		sendMessage(channel, "Killed a total of " + killed + " servers.");
 		//if (channel != cfg_data.irc_channel)
 		//	sendMessage(cfg_data.irc_channel, "Killed a total of " + killed + " servers.");
 	}
@@ -1279,7 +1358,7 @@ public class Bot {
 		logMessage(LOGLEVEL_TRIVIAL, "Processing killmine.");
 		List<Server> servers = getUserServers(hostname.id());
 		if (servers.isEmpty()) {
-			channel.sendMessage("There are no servers running.");
+			sendMessage(channel, "There are no servers running.");
 		} else {
 			ArrayList<String> ports = new ArrayList<>();
 			for (Server s : servers) {
@@ -1291,12 +1370,12 @@ public class Bot {
 			}
 			if (!ports.isEmpty()) {
 				sendLogUserMessage(Functions.pluralize("%s Killed their %d server{s} (%s)".formatted(bold(userInfo(hostname)), ports.size(), Functions.implode(ports, ", ")), ports.size()));
-				channel.sendMessage(Functions.pluralize("Killed your %d server{s} (%s)".formatted(ports.size(), Functions.implode(ports, ", ")), ports.size()));
+				sendMessage(channel, Functions.pluralize("Killed your %d server{s} (%s)".formatted(ports.size(), Functions.implode(ports, ", ")), ports.size()));
 				//if (channel != cfg_data.irc_channel)
 				//	sendMessage(cfg_data.irc_channel, Functions.pluralize(sender + " killed their " + ports.size() + " server{s} (" + Functions.implode(ports, ", ") +")", ports.size()));
 			}
 			else {
-				channel.sendMessage("You do not have any servers running.");
+				sendMessage(channel, "You do not have any servers running.");
 			}
 		}
 	}
@@ -1310,24 +1389,23 @@ public class Bot {
 	private void processKillInactive(String[] keywords, Member sender, MessageChannel channel) {
 		logMessage(LOGLEVEL_NORMAL, "Processing a kill of inactive servers.");
 		if (keywords.length < 2) {
-			channel.sendMessage("Proper syntax: .killinactive <days since> (ex: use .killinactive 3 to kill servers that haven't seen anyone for 3 days)");
+			sendMessage(channel, "Proper syntax: .killinactive <days since> (ex: use .killinactive 3 to kill servers that haven't seen anyone for 3 days)");
 			return;
 		}
 		if (Functions.isNumeric(keywords[1])) {
 			ArrayList<String> ports = new ArrayList<>();
 			int numOfDays = Integer.parseInt(keywords[1]);
 			if (numOfDays > 0) {
-				if (servers == null || servers.isEmpty()) {
-					channel.sendMessage("No servers to kill.");
+				if (servers.isEmpty()) {
+					sendMessage(channel, "No servers to kill.");
 					return;
 				}
-				channel.sendMessage("Killing servers with " + numOfDays + "+ days of inactivity.");
+				sendMessage(channel, "Killing servers with " + numOfDays + "+ days of inactivity.");
 				//if (channel != cfg_data.irc_channel)
 				//	sendMessage(cfg_data.irc_channel, "Killing servers with " + numOfDays + "+ days of inactivity.");
-				// Temporary list to avoid concurrent modification exception
-				List<Server> tempList = new LinkedList<>(servers);
+				List<Server> tempList = servers.snapshot();
 				for (Server s : tempList) {
-					if (System.currentTimeMillis() - s.serverprocess.last_activity > (Server.DAY_MILLISECONDS * numOfDays))
+					if (System.currentTimeMillis() - statusPoller.getLastActivity(s) > (Server.DAY_MILLISECONDS * numOfDays))
 						if (!s.protected_server) {
 							s.hide_stop_message = true;
 							s.being_killed = true;
@@ -1337,19 +1415,19 @@ public class Bot {
 						}
 				}
 				if (ports.size() == 0) {
-					channel.sendMessage("No servers were killed.");
+					sendMessage(channel, "No servers were killed.");
 				}
 				else {
 					sendLogAdminMessage(Functions.pluralize(bold(userInfo(sender)) + " Killed " + ports.size() + " server{s} (" + Functions.implode(ports, ", ") + ")", ports.size()));
-					channel.sendMessage(Functions.pluralize("Killed " + ports.size() + " server{s} (" + Functions.implode(ports, ", ") + ")", ports.size()));
+					sendMessage(channel, Functions.pluralize("Killed " + ports.size() + " server{s} (" + Functions.implode(ports, ", ") + ")", ports.size()));
 					//if (channel != cfg_data.irc_channel)
 					//	sendMessage(cfg_data.irc_channel, Functions.pluralize("Killed " + ports.size() + " server{s} (" + Functions.implode(ports, ", ") + ")", ports.size()));
 				}
 			} else {
-				channel.sendMessage("Using zero or less for .killinactive is not allowed.");
+				sendMessage(channel, "Using zero or less for .killinactive is not allowed.");
 			}
 		} else {
-			channel.sendMessage("Unexpected parameter for method.");
+			sendMessage(channel, "Unexpected parameter for method.");
 		}
 	}
 
@@ -1363,7 +1441,7 @@ public class Bot {
 		if (botEnabled) {
 			botEnabled = false;
 			sendLogAdminMessage(bold(userInfo(sender)) + " disables hosting");
-			channel.sendMessage("Bot disabled.");
+			sendMessage(channel, "Bot disabled.");
 			//if (channel != cfg_data.irc_channel)
 			//	sendMessage(cfg_data.irc_channel, "Bot disabled.");
 		}
@@ -1379,7 +1457,7 @@ public class Bot {
 		if (!botEnabled) {
 			botEnabled = true;
 			sendLogAdminMessage(bold(userInfo(sender)) + " enables hosting");
-			channel.sendMessage("Bot enabled.");
+			sendMessage(channel, "Bot enabled.");
 			//if (channel != cfg_data.irc_channel)
 			//	sendMessage(cfg_data.irc_channel, "Bot enabled.");
 		}
@@ -1396,13 +1474,13 @@ public class Bot {
 				if (Functions.isNumeric(keywords[1])) {
 					Server s = getServer(Integer.parseInt(keywords[1]));
 					if (s != null)
-						channel.sendMessage("The owner of port " + keywords[1] + " is: " + s.sender + "[" + s.userId + "].");
+						sendMessage(channel, "The owner of port " + keywords[1] + " is: " + s.sender + "[" + s.userId + "].");
 					else
-						channel.sendMessage("There is no server running on " + keywords[1] + ".");
+						sendMessage(channel, "There is no server running on " + keywords[1] + ".");
 				} else
-					channel.sendMessage("Invalid port number.");
+					sendMessage(channel, "Invalid port number.");
 			} else
-				channel.sendMessage("Improper syntax, use: .owner <port>");
+				sendMessage(channel, "Improper syntax, use: .owner <port>");
 	}
 
 	/**
@@ -1451,10 +1529,10 @@ public class Bot {
 							String logSender = (isHoster ? "their own" : bold(s.sender) + "'s");
 							String logStr = bold(userInfo(hostname)) + " requests server info for " + logSender + " server on port " + port;
 							
-							channel.sendMessage("Log File: " + cfg_data.static_link + "/logs/" + s.server_id + ".txt");
-							channel.sendMessage("RCON Password: " + s.rcon_password);
-							channel.sendMessage("Connect Password: " + s.connect_password);
-							channel.sendMessage("Join Password: " + s.join_password);
+							sendMessage(channel, "Log File: " + cfg_data.static_link + "/logs/" + s.server_id + ".txt");
+							sendMessage(channel, "RCON Password: " + s.rcon_password);
+							sendMessage(channel, "Connect Password: " + s.connect_password);
+							sendMessage(channel, "Join Password: " + s.join_password);
 							
 							if (isHoster) {
 								sendLogUserMessage(logStr);
@@ -1463,16 +1541,16 @@ public class Bot {
 							}
 						}
 						else
-							channel.sendMessage("You do not own this server.");
+							sendMessage(channel, "You do not own this server.");
 					}
 					else
-						channel.sendMessage("Server does not exist.");
+						sendMessage(channel, "Server does not exist.");
 				}
 				else
-					channel.sendMessage("Port must be a number!");
+					sendMessage(channel, "Port must be a number!");
 			}
 			else
-				channel.sendMessage("Incorrect syntax! Correct syntax is .rcon <port>");
+				sendMessage(channel, "Incorrect syntax! Correct syntax is .rcon <port>");
 		}
 	}
 
@@ -1487,18 +1565,40 @@ public class Bot {
 			List<Server> servers = getUserServers(keywords[1]);
 			if (!servers.isEmpty()) {
 				for (Server server : servers) {
-					channel.sendMessage( server.port + ": \"" + server.servername + ((server.wads != null) ?
-					"\" with wads " + Functions.implode(server.wads, ", ") : ""));
+					QueryResult status = statusPoller.getResult(server);
+					sendMessage(channel, server.port + ": \"" + server.servername + "\"" + describeStatus(status) + ((server.wads != null) ?
+					" with wads " + Functions.implode(server.wads, ", ") : ""));
 				}
 			}
 			else
-				channel.sendMessage("User " + keywords[1] + " has no servers running.");
+				sendMessage(channel, "User " + keywords[1] + " has no servers running.");
 		}
 		else if (keywords.length == 1) {
-			channel.sendMessage(Functions.pluralize("There are " + servers.size() + " server{s}.", servers.size()));
+			int players = 0;
+			for (Server server : servers) {
+				QueryResult status = statusPoller.getResult(server);
+				if (status != null && status.num_players > 0)
+					players += status.num_players;
+			}
+			sendMessage(channel, Functions.pluralize("There are " + servers.size() + " server{s}", servers.size())
+					+ Functions.pluralize(" with " + players + " player{s} on them.", players));
 		}
 		else
-			channel.sendMessage("Incorrect syntax! Correct usage is .servers or .servers <username>");
+			sendMessage(channel, "Incorrect syntax! Correct usage is .servers or .servers <username>");
+	}
+
+	/**
+	 * Describes what the poller last saw on a server
+	 * @param status The last query reply, can be null
+	 * @return Something like " on MAP01 (3/8 players)", or an empty string if we don't know
+	 */
+	private static String describeStatus(QueryResult status) {
+		if (status == null || status.num_players < 0)
+			return "";
+		String description = status.mapname != null ? " on " + status.mapname : "";
+		if (status.max_players > 0)
+			return description + " (" + status.num_players + "/" + status.max_players + " players)";
+		return description + Functions.pluralize(" (" + status.num_players + " player{s})", status.num_players);
 	}
 
 	/**
@@ -1508,11 +1608,20 @@ public class Bot {
 	public void sendMessageToCoreChannel(String msg) {
 		final Optional<GuildChannel> guildChannel = channelByName(cfg_data.discord_channel);
 		guildChannel.ifPresentOrElse(
-				ch -> ch.asMessageChannel().sendMessage(msg),
+				ch -> sendMessage(ch.asMessageChannel(), msg),
 				() -> System.out.println("Can't get core channel")
 		);
 	}
 
+	/**
+	 * @return The core channel, or null if it can't be found
+	 */
+	public MessageChannel getCoreChannel() {
+		return channelByName(cfg_data.discord_channel)
+				.map(GuildChannel::asMessageChannel)
+				.orElse(null);
+	}
+
 	/**
 	 * Allows external objects to send messages to the log channel
 	 * @param msg The message to deploy
@@ -1520,18 +1629,55 @@ public class Bot {
 	public void sendMessageToLogChannel(String msg) {
 		final Optional<GuildChannel> guildChannel = channelByName(cfg_data.log_channel);
 		guildChannel.ifPresentOrElse(
-				ch -> ch.asMessageChannel().sendMessage(msg),
+				ch -> sendMessage(ch.asMessageChannel(), msg),
 				() -> System.out.println("Can't get core channel")
 		);
 	}
 
+	/**
+	 * Looks up a channel of our guild by name
+	 * @param channel The name of the channel
+	 * @return The channel, if there is one with that name
+	 */
 	private Optional<GuildChannel> channelByName(String channel) {
-		catnip.fetchGatewayInfo().blockingGet();
-		return catnip.cache()
-				.channels(this.guildId)
-				.stream()
-				.filter(ch -> channel.equals(ch.name()))
-				.findAny();
+		if (guildId == null || channel == null)
+			return Optional.empty();
+		GuildChannel cached = channelsByName.get(channel);
+		if (cached == null) {
+			// The guild can arrive after READY, so look in catnip's own cache before giving up
+			cached = catnip.cache().channels(guildId).findAny(ch -> channel.equals(ch.name()));
+			if (cached != null)
+				channelsByName.putIfAbsent(channel, cached);
+		}
+		return Optional.ofNullable(cached);
+	}
+
+	/**
+	 * Fills the channel name cache from catnip's cache
+	 */
+	private void refreshChannelCache() {
+		channelsByName.clear();
+		catnip.cache().channels(guildId).stream().forEach(ch -> channelsByName.putIfAbsent(ch.name(), ch));
+	}
+
+	/**
+	 * Keeps the channel name cache in line with a created or changed channel
+	 * @param channel The channel
+	 */
+	private void onChannelChanged(Channel channel) {
+		if (!(channel instanceof GuildChannel) || !Objects.equals(guildId, ((GuildChannel) channel).guildId()))
+			return;
+		// A rename leaves the old name behind, so drop whatever pointed at this channel first
+		channelsByName.values().removeIf(ch -> ch.id().equals(channel.id()));
+		channelsByName.put(((GuildChannel) channel).name(), (GuildChannel) channel);
+	}
+
+	/**
+	 * Removes a deleted channel from the channel name cache
+	 * @param channel The channel
+	 */
+	private void onChannelDeleted(Channel channel) {
+		channelsByName.values().removeIf(ch -> ch.id().equals(channel.id()));
 	}
 
 	public void sendDebugMessage(String message) {
@@ -1542,7 +1688,7 @@ public class Bot {
 		if (cfg_data.log_channel != null) {
 			final Optional<GuildChannel> guildChannel = channelByName(cfg_data.log_channel);
 			guildChannel.ifPresentOrElse(
-					ch -> ch.asMessageChannel().sendMessage(message),
+					ch -> sendMessage(ch.asMessageChannel(), message),
 					() -> System.out.println("Can't get log channel")
 			);
 		}
@@ -1602,7 +1748,13 @@ public class Bot {
 		b.config_file = args[0];
 	}
 
+	/**
+	 * Queues a message for a channel, it is sent (possibly together with other
+	 * messages for the same channel) from the outbound queue thread
+	 * @param channel The channel to send to
+	 * @param msg The message
+	 */
 	public void sendMessage(MessageChannel channel, String msg) {
-		channel.sendMessage(msg);
+		outboundQueue.send(channel, msg);
 	}
 }
@@ -0,0 +1,209 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+
+package org.bestever.bebot;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.LOGLEVEL_NORMAL;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Runs commands away from the Discord event thread. Every user has a queue so
+ * their commands run in the order they were sent, and the workers go around
+ * the users taking one command at a time so one user with a slow or long list
+ * of commands can not hold everyone else up
+ */
+public class CommandDispatcher {
+
+	/**
+	 * How many commands can run at the same time
+	 */
+	private static final int WORKERS = 4;
+
+	/**
+	 * How many commands one user can have waiting, the rest are dropped
+	 */
+	private static final int MAX_QUEUED_PER_USER = 5;
+
+	/**
+	 * How long a command may run before its thread is interrupted, in milliseconds
+	 */
+	private static final long COMMAND_TIMEOUT = 60000;
+
+	/**
+	 * The commands of one user that have not run yet
+	 */
+	private static final class UserQueue {
+		final String user;
+		final ArrayDeque<Runnable> commands = new ArrayDeque<>();
+
+		/**
+		 * True while the queue is waiting for a worker or being run by one
+		 */
+		boolean scheduled = false;
+
+		UserQueue(String user) {
+			this.user = user;
+		}
+	}
+
+	/**
+	 * Every user with commands waiting, keyed by user ID
+	 */
+	private final Map<String, UserQueue> queues = new ConcurrentHashMap<>();
+
+	/**
+	 * Users whose turn is coming, in order
+	 */
+	private final LinkedBlockingQueue<UserQueue> ready = new LinkedBlockingQueue<>();
+
+	/**
+	 * Interrupts commands that run for too long
+	 */
+	private final ScheduledExecutorService watchdog;
+
+	private final Thread[] workers = new Thread[WORKERS];
+
+	private volatile boolean shutdown = false;
+
+	public CommandDispatcher() {
+		watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "CommandWatchdog");
+			thread.setDaemon(true);
+			return thread;
+		});
+		for (int i = 0; i < WORKERS; i++) {
+			workers[i] = new Thread(this::work, "CommandWorker-" + (i + 1));
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Queues a command, this never blocks
+	 * @param user The ID of the user who sent it
+	 * @param command What to run
+	 * @return False if the user has too many commands waiting and this one was dropped
+	 */
+	public boolean submit(String user, Runnable command) {
+		if (shutdown)
+			return false;
+		while (true) {
+			UserQueue queue = queues.computeIfAbsent(user, UserQueue::new);
+			synchronized (queue) {
+				if (queues.get(user) != queue)
+					continue; // The queue was emptied and removed while we got it
+				if (queue.commands.size() >= MAX_QUEUED_PER_USER) {
+					logMessage(LOGLEVEL_NORMAL, "Dropping a command from " + user + ", too many are waiting.");
+					return false;
+				}
+				queue.commands.add(command);
+				if (!queue.scheduled) {
+					queue.scheduled = true;
+					ready.add(queue);
+				}
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Stops the workers, commands that are still waiting are dropped
+	 */
+	public void shutdown() {
+		shutdown = true;
+		for (Thread worker : workers)
+			worker.interrupt();
+		watchdog.shutdownNow();
+	}
+
+	/**
+	 * Takes a user whose turn it is, runs one of their commands and puts them
+	 * at the back of the line if they have more
+	 */
+	private void work() {
+		while (!shutdown) {
+			UserQueue queue;
+			try {
+				queue = ready.take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			Runnable command;
+			synchronized (queue) {
+				command = queue.commands.poll();
+			}
+			try {
+				if (command != null)
+					run(queue.user, command);
+			} finally {
+				// The user must get their turn back whatever happened to the command
+				synchronized (queue) {
+					if (queue.commands.isEmpty()) {
+						queue.scheduled = false;
+						queues.remove(queue.user, queue);
+					} else
+						ready.add(queue);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs a command, interrupting it if it takes too long
+	 * @param user The ID of the user who sent it
+	 * @param command The command
+	 */
+	private void run(String user, Runnable command) {
+		Thread worker = Thread.currentThread();
+		// Only this run of the worker may be interrupted, the lock makes sure the
+		// interrupt has landed before the finally block clears it
+		AtomicBoolean running = new AtomicBoolean(true);
+		ScheduledFuture<?> timeout = watchdog.schedule(() -> {
+			synchronized (running) {
+				if (!running.compareAndSet(true, false))
+					return;
+				logMessage(LOGLEVEL_IMPORTANT, "A command from " + user + " is still running after " + COMMAND_TIMEOUT / 1000 + " seconds, interrupting it.");
+				worker.interrupt();
+			}
+		}, COMMAND_TIMEOUT, TimeUnit.MILLISECONDS);
+		try {
+			command.run();
+		} catch (Throwable e) {
+			// Errors too (a failed assert, a class that did not load), the worker must keep going
+			e.printStackTrace();
+			logMessage(LOGLEVEL_IMPORTANT, "Command from " + user + " failed: " + e);
+		} finally {
+			timeout.cancel(false);
+			synchronized (running) {
+				running.set(false);
+				// Do not let an interrupt meant for this command reach the next one
+				if (!shutdown)
+					Thread.interrupted();
+			}
+		}
+	}
+}
@@ -99,6 +99,11 @@ public class ConfigData {
 	 */
 	public String bot_wad_directory_path;
 
+	/**
+	 * Where the catalog of the wad directory is kept, null to only keep it in memory
+	 */
+	public String bot_wad_catalog_file;
+
 	/**
 	 * Contains a path to the iwad directory
 	 */
@@ -134,6 +139,16 @@ public class ConfigData {
 	 */
 	public String bot_logfiledir;
 
+	/**
+	 * Server logs are rotated once they get this big (in bytes), 0 to never rotate
+	 */
+	public long bot_log_rotate_size = 0;
+
+	/**
+	 * If true, server logs that were rotated out are gzipped
+	 */
+	public boolean bot_log_gzip = false;
+
 	/**
 	 * Contains the file name of the executable, in linux this would be "./zandronum-server" for example, or in windows "zandronum.exe"
 	 */
@@ -154,6 +169,16 @@ public class ConfigData {
 	 */
 	public boolean bot_public_rcon;
 
+	/**
+	 * If true, running servers are saved and started again when the bot comes back up
+	 */
+	public boolean bot_recover = false;
+
+	/**
+	 * How many recovered servers may be starting up at the same time
+	 */
+	public int bot_recover_parallel = 4;
+
 	/**
 	 * The account file path
 	 */
@@ -204,6 +229,16 @@ public class ConfigData {
 	 * Maximum default servers from register
 	 */
 	public int defaultlimit = 1;
+
+	/**
+	 * The BCrypt cost (log2 of the rounds) new passwords are hashed with
+	 */
+	public int bcrypt_cost = 14;
+
+	/**
+	 * How many passwords can be hashed at the same time, 0 for half the processors
+	 */
+	public int bcrypt_threads = 0;
 	
 	public String service_name;
 	public String service_short;
@@ -217,6 +252,10 @@ public class ConfigData {
 	public boolean ipintel_enabled = false;
 	public String ipintel_contact = "user@example.com";
 	public double ipintel_minimum = 1.0;
+	/**
+	 * Where IP addresses are checked, the query string is added to it
+	 */
+	public String ipintel_url = "http://check.getipintel.net/check.php";
 
 	/**
 	 * This constructor once initialized will parse the config file based on the path
@@ -286,15 +325,24 @@ public class ConfigData {
 		this.bot_directory_path = bot.get("directory");
 		this.bot_wad_directory_path = bot.get("waddir");
 		this.bot_iwad_directory_path = bot.get("iwaddir");
+		this.bot_wad_catalog_file = bot.get("wadcatalog");
 		this.bot_cfg_directory_path = bot.get("cfgdir");
 		this.bot_whitelistdir = bot.get("whitelistdir");
 		this.bot_banlistdir = bot.get("banlistdir");
 		this.bot_adminlistdir = bot.get("adminlistdir");
 		this.bot_logfiledir = bot.get("logfiledir");
+		if (bot.get("log_rotate_size") != null)
+			this.bot_log_rotate_size = Long.parseLong(bot.get("log_rotate_size")) * 1024;
+		if (bot.get("log_gzip") != null)
+			this.bot_log_gzip = Boolean.parseBoolean(bot.get("log_gzip"));
 		this.bot_executable = bot.get("doom_executable_path") + bot.get("executable");
 		this.bot_executable_kpatch = bot.get("executable_kpatch");
 		this.bot_executable_developerrepository = bot.get("executable_developerrepository");
 		this.bot_public_rcon = Boolean.parseBoolean(bot.get("public_rcon"));
+		if (bot.get("recover") != null)
+			this.bot_recover = Boolean.parseBoolean(bot.get("recover"));
+		if (bot.get("recover_parallel") != null)
+			this.bot_recover_parallel = Integer.parseInt(bot.get("recover_parallel"));
 		this.bot_hostname_base = bot.get("hostname_base");
 		this.bot_help = bot.get("help");
 		this.cleanup_interval = Integer.parseInt(bot.get("cleanup_interval"));
@@ -305,6 +353,10 @@ public class ConfigData {
 		if(bot.get("defaultlimit") != null) {
 			this.defaultlimit = Integer.parseInt(bot.get("defaultlimit"));
 		}
+		if (bot.get("bcrypt_cost") != null)
+			this.bcrypt_cost = Integer.parseInt(bot.get("bcrypt_cost"));
+		if (bot.get("bcrypt_threads") != null)
+			this.bcrypt_threads = Integer.parseInt(bot.get("bcrypt_threads"));
 		if (bot.get("notice") != null)
 			this.bot_notice = bot.get("notice");
 		if (bot.get("notice_interval") != null)
@@ -325,5 +377,7 @@ public class ConfigData {
 		this.ipintel_enabled = Boolean.parseBoolean(ipintel.get("enabled"));
 		this.ipintel_contact = ipintel.get("email");
 		this.ipintel_minimum = Double.parseDouble(ipintel.get("minimum"));
+		if (ipintel.get("url") != null && !ipintel.get("url").isEmpty())
+			this.ipintel_url = ipintel.get("url");
 	}
 }
@@ -0,0 +1,510 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+
+package org.bestever.bebot;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.LOGLEVEL_TRIVIAL;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * A small bounded pool of JDBC connections. Closing a connection handed out by
+ * the pool gives it back instead, and every pooled connection keeps its prepared
+ * statements by SQL so a call site that runs the same query again reuses them
+ */
+public class ConnectionPool {
+
+	/**
+	 * How many statements each connection keeps prepared
+	 */
+	private static final int STATEMENT_CACHE_SIZE = 32;
+
+	/**
+	 * Connections idle for longer than this are checked with a query before
+	 * they are handed out
+	 */
+	private static final long VALIDATE_AFTER_MILLISECONDS = 30000;
+
+	/**
+	 * How often idle connections are looked at for eviction
+	 */
+	private static final long EVICTION_INTERVAL_MILLISECONDS = 60000;
+
+	private final String url;
+	private final String user;
+	private final String pass;
+
+	/**
+	 * The most connections that can be open at once
+	 */
+	private final int max_connections;
+
+	/**
+	 * How long getConnection() waits for a free connection
+	 */
+	private final long borrow_timeout;
+
+	/**
+	 * Idle connections older than this are closed (except the last one)
+	 */
+	private final long idle_timeout;
+
+	/**
+	 * Connections that are not in use, the most recently used first
+	 */
+	private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+
+	/**
+	 * Open connections, in use or not
+	 */
+	private int total = 0;
+
+	private boolean closed = false;
+
+	private final ScheduledExecutorService evictor;
+
+	/**
+	 * Metrics, all guarded by this
+	 */
+	private long borrows = 0;
+	private long created = 0;
+	private long evicted = 0;
+	private long validation_failures = 0;
+	private long timeouts = 0;
+	private long total_wait_nanos = 0;
+	private long max_wait_nanos = 0;
+
+	/**
+	 * Creates the pool, connections are only opened when needed
+	 * @param url The JDBC URL
+	 * @param user Database user
+	 * @param pass Database password
+	 * @param maxConnections The most connections that can be open at once
+	 * @param borrowTimeout How many milliseconds to wait for a free connection
+	 * @param idleTimeout How many milliseconds an unused connection is kept
+	 */
+	public ConnectionPool(String url, String user, String pass, int maxConnections, long borrowTimeout, long idleTimeout) {
+		this.url = url;
+		this.user = user;
+		this.pass = pass;
+		this.max_connections = maxConnections;
+		this.borrow_timeout = borrowTimeout;
+		this.idle_timeout = idleTimeout;
+		evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "ConnectionPool-evictor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		evictor.scheduleWithFixedDelay(this::evictIdle, EVICTION_INTERVAL_MILLISECONDS, EVICTION_INTERVAL_MILLISECONDS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Borrows a connection, close() it to give it back
+	 * @return A connection
+	 * @throws SQLTimeoutException if none became free in time
+	 * @throws SQLException if a new connection could not be opened
+	 */
+	public Connection getConnection() throws SQLException {
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(borrow_timeout);
+		while (true) {
+			PooledConnection pooled;
+			synchronized (this) {
+				while (true) {
+					if (closed)
+						throw new SQLException("The connection pool is closed.");
+					pooled = idle.pollFirst();
+					if (pooled != null || total < max_connections)
+						break;
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						timeouts++;
+						throw new SQLTimeoutException("Timed out waiting for a database connection (" + total + " in use).");
+					}
+					try {
+						TimeUnit.NANOSECONDS.timedWait(this, remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while waiting for a database connection.", e);
+					}
+				}
+				if (pooled == null)
+					total++; // Reserve the slot, the connection is opened outside the lock
+			}
+
+			if (pooled == null) {
+				try {
+					pooled = new PooledConnection(DriverManager.getConnection(url, user, pass));
+				} catch (SQLException e) {
+					discarded();
+					throw e;
+				}
+				synchronized (this) {
+					created++;
+				}
+			} else if (System.currentTimeMillis() - pooled.last_used > VALIDATE_AFTER_MILLISECONDS && !pooled.isValid()) {
+				synchronized (this) {
+					validation_failures++;
+				}
+				pooled.closePhysical();
+				discarded();
+				continue;
+			}
+
+			long waited = System.nanoTime() - start;
+			synchronized (this) {
+				borrows++;
+				total_wait_nanos += waited;
+				max_wait_nanos = Math.max(max_wait_nanos, waited);
+			}
+			return pooled.borrow();
+		}
+	}
+
+	/**
+	 * Closes every idle connection, connections in use are closed when given back
+	 */
+	public void close() {
+		List<PooledConnection> toClose;
+		synchronized (this) {
+			closed = true;
+			toClose = new ArrayList<>(idle);
+			total -= idle.size();
+			idle.clear();
+			notifyAll();
+		}
+		evictor.shutdownNow();
+		for (PooledConnection pooled : toClose)
+			pooled.closePhysical();
+	}
+
+	/**
+	 * @return How many connections are borrowed right now
+	 */
+	public synchronized int getActive() {
+		return total - idle.size();
+	}
+
+	/**
+	 * @return How many connections are open but not borrowed
+	 */
+	public synchronized int getIdle() {
+		return idle.size();
+	}
+
+	/**
+	 * @return How many times getConnection() gave up waiting
+	 */
+	public synchronized long getTimeouts() {
+		return timeouts;
+	}
+
+	/**
+	 * @return The average time getConnection() took, in milliseconds
+	 */
+	public synchronized double getAverageWaitMillis() {
+		return borrows == 0 ? 0 : total_wait_nanos / 1e6 / borrows;
+	}
+
+	/**
+	 * @return The longest time getConnection() took, in milliseconds
+	 */
+	public synchronized double getMaxWaitMillis() {
+		return max_wait_nanos / 1e6;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("active=%d idle=%d max=%d borrows=%d created=%d evicted=%d invalid=%d timeouts=%d avgwait=%.2fms maxwait=%.2fms",
+				total - idle.size(), idle.size(), max_connections, borrows, created, evicted, validation_failures, timeouts,
+				getAverageWaitMillis(), getMaxWaitMillis());
+	}
+
+	/**
+	 * Takes a connection back
+	 * @param pooled The connection
+	 */
+	private void release(PooledConnection pooled) {
+		boolean reusable = pooled.reset();
+		synchronized (this) {
+			if (reusable && !closed) {
+				pooled.last_used = System.currentTimeMillis();
+				idle.addFirst(pooled);
+				notify();
+				return;
+			}
+		}
+		pooled.closePhysical();
+		discarded();
+	}
+
+	/**
+	 * Frees the slot of a connection that was closed
+	 */
+	private synchronized void discarded() {
+		total--;
+		notify();
+	}
+
+	/**
+	 * Closes connections that were not used for a while, keeping one around
+	 */
+	private void evictIdle() {
+		List<PooledConnection> toClose = new ArrayList<>();
+		long cutoff = System.currentTimeMillis() - idle_timeout;
+		synchronized (this) {
+			// The oldest are at the end
+			Iterator<PooledConnection> it = idle.descendingIterator();
+			while (it.hasNext() && idle.size() > 1) {
+				PooledConnection pooled = it.next();
+				if (pooled.last_used >= cutoff)
+					break;
+				it.remove();
+				toClose.add(pooled);
+			}
+			total -= toClose.size();
+			evicted += toClose.size();
+		}
+		for (PooledConnection pooled : toClose)
+			pooled.closePhysical();
+		if (!toClose.isEmpty())
+			logMessage(LOGLEVEL_TRIVIAL, () -> "Closed " + toClose.size() + " idle database connection(s).");
+	}
+
+	/**
+	 * Calls a method on the real object, unwrapping the exception it throws
+	 */
+	private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * A real connection and its statement cache
+	 */
+	private class PooledConnection {
+
+		private final Connection physical;
+
+		/**
+		 * Prepared statements by SQL, least recently used first
+		 */
+		private final LinkedHashMap<String, CachedStatement> statements = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+				if (size() <= STATEMENT_CACHE_SIZE || eldest.getValue().in_use)
+					return false;
+				eldest.getValue().closePhysical();
+				return true;
+			}
+		};
+
+		/**
+		 * When this was last given back
+		 */
+		long last_used = System.currentTimeMillis();
+
+		PooledConnection(Connection physical) {
+			this.physical = physical;
+		}
+
+		/**
+		 * Hands out a fresh wrapper so a stale reference cannot use the connection
+		 * after it was given back
+		 */
+		Connection borrow() {
+			return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, new InvocationHandler() {
+				private boolean closed = false;
+
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					switch (method.getName()) {
+						case "close":
+							if (!closed) {
+								closed = true;
+								release(PooledConnection.this);
+							}
+							return null;
+						case "isClosed":
+							return closed || physical.isClosed();
+						case "equals":
+							return proxy == args[0];
+						case "hashCode":
+							return System.identityHashCode(proxy);
+						case "toString":
+							return "Pooled " + physical;
+					}
+					if (closed)
+						throw new SQLException("Connection was given back to the pool.");
+					if (method.getName().equals("prepareStatement") && args.length == 1)
+						return prepare((String) args[0]);
+					return ConnectionPool.invoke(physical, method, args);
+				}
+			});
+		}
+
+		/**
+		 * Gets a prepared statement from the cache, or prepares it
+		 * @param sql The query
+		 * @return A statement that goes back to the cache when closed
+		 */
+		PreparedStatement prepare(String sql) throws SQLException {
+			CachedStatement cached = statements.get(sql);
+			if (cached != null && cached.in_use)
+				return physical.prepareStatement(sql); // Same query twice at once, don't cache the second
+			if (cached == null) {
+				cached = new CachedStatement(physical.prepareStatement(sql));
+				statements.put(sql, cached);
+			}
+			cached.in_use = true;
+			return cached.proxy;
+		}
+
+		/**
+		 * Gets the connection ready to be borrowed again
+		 * @return False if the connection should be thrown away instead
+		 */
+		boolean reset() {
+			try {
+				if (physical.isClosed())
+					return false;
+				for (CachedStatement cached : statements.values())
+					if (cached.in_use)
+						cached.release(); // Not closed by the caller
+				if (!physical.getAutoCommit()) {
+					physical.rollback();
+					physical.setAutoCommit(true);
+				}
+				physical.clearWarnings();
+				return true;
+			} catch (SQLException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Checks the connection still works
+		 */
+		boolean isValid() {
+			try (Statement stm = physical.createStatement()) {
+				stm.executeQuery("SELECT 1").close();
+				return true;
+			} catch (SQLException e) {
+				logMessage(LOGLEVEL_IMPORTANT, "Dropping a broken database connection: " + e.getMessage());
+				return false;
+			}
+		}
+
+		void closePhysical() {
+			try {
+				physical.close(); // Also closes the statements
+			} catch (SQLException e) {
+				// Nothing else to do with it
+			}
+		}
+	}
+
+	/**
+	 * A prepared statement that stays open when the caller closes it
+	 */
+	private static class CachedStatement implements InvocationHandler {
+
+		private final PreparedStatement physical;
+
+		final PreparedStatement proxy;
+
+		/**
+		 * If someone is using it right now
+		 */
+		boolean in_use = false;
+
+		/**
+		 * The last result set, closed when the statement is given back
+		 */
+		private ResultSet results;
+
+		CachedStatement(PreparedStatement physical) {
+			this.physical = physical;
+			this.proxy = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[] { PreparedStatement.class }, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+				case "close":
+					if (in_use)
+						release();
+					return null;
+				case "isClosed":
+					return !in_use || physical.isClosed();
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+			}
+			if (!in_use)
+				throw new SQLException("Statement was closed.");
+			Object result = ConnectionPool.invoke(physical, method, args);
+			if (result instanceof ResultSet)
+				results = (ResultSet) result;
+			return result;
+		}
+
+		/**
+		 * Puts the statement back in the cache
+		 */
+		void release() throws SQLException {
+			in_use = false;
+			if (results != null) {
+				results.close();
+				results = null;
+			}
+			physical.clearParameters();
+		}
+
+		void closePhysical() {
+			try {
+				physical.close();
+			} catch (SQLException e) {
+				// Nothing else to do with it
+			}
+		}
+	}
+}
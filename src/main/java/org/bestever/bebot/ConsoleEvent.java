@@ -0,0 +1,210 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+
+package org.bestever.bebot;
+
+/**
+ * A line of server console output the bot cares about. Lines are classified
+ * with plain prefix and suffix checks instead of regular expressions, and lines
+ * that mean nothing to us all share the NONE event
+ */
+public final class ConsoleEvent {
+
+	public enum Type {
+		/**
+		 * Nothing the bot needs to act on
+		 */
+		NONE,
+		/**
+		 * "CHAT ..." - said by a player, never treated as anything else
+		 */
+		CHAT,
+		/**
+		 * "Server using alternate port 10667." - value is the port
+		 */
+		ALTERNATE_PORT,
+		/**
+		 * "NETWORK_Construct: Couldn't bind to 10666. Binding to 10667 instead..." - value is the new port
+		 */
+		PORT_REBIND,
+		/**
+		 * "IP address 1.2.3.4:10666" - value is the address
+		 */
+		IP_ADDRESS,
+		/**
+		 * "UDP Initialized." - the server is up
+		 */
+		UDP_INITIALIZED,
+		/**
+		 * "Player (1.2.3.4:10666) has connected." - name and value (the IP) are set
+		 */
+		PLAYER_CONNECTED,
+		/**
+		 * "1. Player - IP 1.2.3.4:10666" from playerinfo - name and value (the IP) are set
+		 */
+		PLAYER_INFO,
+		/**
+		 * "-> sv_hostname value" - name is the cvar, value what it was set to
+		 */
+		CVAR_CHANGED,
+		/**
+		 * "Player joined the game."
+		 */
+		JOINED_GAME
+	}
+
+	/**
+	 * The event for every line we don't care about
+	 */
+	public static final ConsoleEvent NONE = new ConsoleEvent(Type.NONE, null, null);
+
+	private static final ConsoleEvent UDP_INITIALIZED = new ConsoleEvent(Type.UDP_INITIALIZED, null, null);
+
+	private static final ConsoleEvent JOINED_GAME = new ConsoleEvent(Type.JOINED_GAME, null, null);
+
+	private static final String CHAT_PREFIX = "CHAT ";
+	private static final String CVAR_PREFIX = "-> ";
+	private static final String ALTERNATE_PORT_PREFIX = "Server using alternate port ";
+	private static final String REBIND_PREFIX = "NETWORK_Construct: Couldn't bind to ";
+	private static final String REBIND_TO = ". Binding to ";
+	private static final String IP_ADDRESS_PREFIX = "IP address ";
+	private static final String CONNECTED_SUFFIX = ") has connected.";
+	private static final String PLAYER_INFO_IP = " - IP ";
+
+	public final Type type;
+
+	/**
+	 * The player or cvar name, if the event has one
+	 */
+	public final String name;
+
+	/**
+	 * The port, address, IP or cvar value, if the event has one
+	 */
+	public final String value;
+
+	private ConsoleEvent(Type type, String name, String value) {
+		this.type = type;
+		this.name = name;
+		this.value = value;
+	}
+
+	/**
+	 * Works out what a console line means
+	 * @param line The line, without the line break
+	 * @return The event, NONE if the line is not interesting
+	 */
+	public static ConsoleEvent classify(String line) {
+		if (line.isEmpty())
+			return NONE;
+		if (line.startsWith(CHAT_PREFIX))
+			return new ConsoleEvent(Type.CHAT, null, line.substring(CHAT_PREFIX.length()));
+		if (line.startsWith(CVAR_PREFIX))
+			return classifyCvar(line);
+		if (line.startsWith(ALTERNATE_PORT_PREFIX))
+			return new ConsoleEvent(Type.ALTERNATE_PORT, null, line.substring(ALTERNATE_PORT_PREFIX.length()).replace(".", "").trim());
+		if (line.startsWith(REBIND_PREFIX)) {
+			int to = line.indexOf(REBIND_TO, REBIND_PREFIX.length());
+			if (to < 0)
+				return NONE;
+			return new ConsoleEvent(Type.PORT_REBIND, null, line.substring(to + REBIND_TO.length()).replace(" instead...", "").trim());
+		}
+		if (line.startsWith(IP_ADDRESS_PREFIX))
+			return new ConsoleEvent(Type.IP_ADDRESS, null, line.substring(IP_ADDRESS_PREFIX.length()).trim());
+		if (line.equalsIgnoreCase("UDP Initialized."))
+			return UDP_INITIALIZED;
+		if (line.endsWith(CONNECTED_SUFFIX))
+			return classifyConnected(line);
+		if (line.endsWith("joined the game."))
+			return JOINED_GAME;
+		if (Character.isDigit(line.charAt(0)))
+			return classifyPlayerInfo(line);
+		return NONE;
+	}
+
+	/**
+	 * "-> cvar value", the value ends at "(RCON" if the change came from RCON
+	 */
+	private static ConsoleEvent classifyCvar(String line) {
+		int nameStart = CVAR_PREFIX.length();
+		int nameEnd = nameStart;
+		while (nameEnd < line.length() && !Character.isWhitespace(line.charAt(nameEnd)))
+			nameEnd++;
+		if (nameEnd == nameStart || nameEnd == line.length())
+			return NONE; // No name, or nothing after it
+		int valueEnd = line.indexOf("(RCON", nameEnd);
+		String value = line.substring(nameEnd, valueEnd < 0 ? line.length() : valueEnd).trim();
+		return new ConsoleEvent(Type.CVAR_CHANGED, line.substring(nameStart, nameEnd), value);
+	}
+
+	/**
+	 * "Player (1.2.3.4:10666) has connected."
+	 */
+	private static ConsoleEvent classifyConnected(String line) {
+		int open = line.lastIndexOf(" (");
+		if (open <= 0)
+			return NONE;
+		int ipEnd = scanIPAndPort(line, open + 2);
+		if (ipEnd != line.length() - CONNECTED_SUFFIX.length())
+			return NONE;
+		String address = line.substring(open + 2, ipEnd);
+		return new ConsoleEvent(Type.PLAYER_CONNECTED, line.substring(0, open), address.substring(0, address.indexOf(':')));
+	}
+
+	/**
+	 * "1. Player - IP 1.2.3.4:10666" (one or two digits before the dot)
+	 */
+	private static ConsoleEvent classifyPlayerInfo(String line) {
+		int i = 1;
+		if (i < line.length() && Character.isDigit(line.charAt(i)))
+			i++;
+		if (!line.startsWith(". ", i))
+			return NONE;
+		int nameStart = i + 2;
+		for (int sep = line.indexOf(PLAYER_INFO_IP, nameStart); sep >= 0; sep = line.indexOf(PLAYER_INFO_IP, sep + 1)) {
+			int ipStart = sep + PLAYER_INFO_IP.length();
+			int ipEnd = scanIPAndPort(line, ipStart);
+			if (ipEnd > 0)
+				return new ConsoleEvent(Type.PLAYER_INFO, line.substring(nameStart, sep), line.substring(ipStart, line.indexOf(':', ipStart)));
+		}
+		return NONE;
+	}
+
+	/**
+	 * Checks for "a.b.c.d:port" (1-3 digits per octet, 1-5 for the port)
+	 * @param s The string
+	 * @param start Where the IP should start
+	 * @return Where it ends, or -1 if there is none
+	 */
+	private static int scanIPAndPort(String s, int start) {
+		int i = start;
+		for (int part = 0; part < 5; part++) {
+			int digits = 0;
+			while (i < s.length() && Character.isDigit(s.charAt(i)) && digits < (part == 4 ? 5 : 3)) {
+				i++;
+				digits++;
+			}
+			if (digits == 0)
+				return -1;
+			if (part == 4)
+				return i;
+			if (i >= s.length() || s.charAt(i) != (part == 3 ? ':' : '.'))
+				return -1;
+			i++;
+		}
+		return -1;
+	}
+}
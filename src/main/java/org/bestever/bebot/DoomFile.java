@@ -16,6 +16,13 @@
 package org.bestever.bebot;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.List;
@@ -23,9 +30,23 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 /**
- * This class encapsulated wads, but also has methods for PK3's
+ * This class encapsulated wads, but also has methods for PK3's <br>
+ * Only the header and the lump directory are read from the file, lumps are
+ * memory mapped when they are asked for, so opening a big wad costs about as
+ * much as its directory
  */
 public class DoomFile {
+
+	/**
+	 * Size of the wad header and of one directory entry
+	 */
+	private static final int HEADER_SIZE = 12;
+	private static final int DIRECTORY_ENTRY_SIZE = 16;
+
+	/**
+	 * The path of the wad, lumps are read from it when needed
+	 */
+	public final String path;
 	
 	/**
 	 * Signifies what the header is (IWAD or PWAD)
@@ -78,79 +99,145 @@ public class DoomFile {
 	 * @throws IOException If there is a problem with reading the file
 	 */
 	public DoomFile (String path) throws IOException {
-		byte[] wadData = Utility.getByteArrayFromFile(path);
-		this.headerType = Utility.bytesToString(Arrays.copyOfRange(wadData, 0, 4));
-		this.headerTotalLumps = Utility.bytesToInt(wadData[4], wadData[5], wadData[6], wadData[7]);
-		this.headerPointerToDirectory = Utility.bytesToInt(wadData[8], wadData[9], wadData[10], wadData[11]);
-		System.out.println("Wad data: " + this.headerType + ", " + this.headerTotalLumps + " total lumps, " + this.headerPointerToDirectory + " directory offset");
-		parseDirectory(wadData);
+		this.path = path;
+		try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+			ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+			this.headerType = new String(header.array(), 0, 4, StandardCharsets.US_ASCII);
+			this.headerTotalLumps = header.getInt(4);
+			this.headerPointerToDirectory = header.getInt(8);
+			System.out.println("Wad data: " + this.headerType + ", " + this.headerTotalLumps + " total lumps, " + this.headerPointerToDirectory + " directory offset");
+			if (this.headerTotalLumps < 0 || this.headerPointerToDirectory < HEADER_SIZE
+					|| this.headerPointerToDirectory + (long) this.headerTotalLumps * DIRECTORY_ENTRY_SIZE > channel.size())
+				throw new IOException("Wad directory of " + path + " is out of bounds");
+			parseDirectory(readFully(channel, this.headerPointerToDirectory, this.headerTotalLumps * DIRECTORY_ENTRY_SIZE));
+		}
 		parseLevelNames();
 	}
+
+	/**
+	 * Reads part of a file
+	 * @param channel The file
+	 * @param position Where to start
+	 * @param length How many bytes
+	 * @return A little endian heap buffer holding exactly those bytes
+	 * @throws IOException If the file ends too soon
+	 */
+	private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Unexpected end of file");
+		}
+		return buffer.flip();
+	}
 	
+	/**
+	 * Lists the maps in the maps/ folder of a pk3
+	 * @param pathToFile The path to (and including) the file
+	 * @return The map names, without the folder and extension
+	 * @throws IOException If the file is not a readable zip
+	 */
+	public static List<String> getPK3MapList(String pathToFile) throws IOException {
+		List<String> maps = new ArrayList<>();
+		try (ZipFile zip = new ZipFile(pathToFile)) {
+			Enumeration<? extends ZipEntry> e = zip.entries();
+			while (e.hasMoreElements()) {
+				ZipEntry ze = e.nextElement();
+				if ((!ze.isDirectory()) && (ze.getName().toLowerCase().startsWith("maps/"))) {
+					String temp = ze.getName().substring(5);
+					if (temp.length() > 4)
+						maps.add(temp.substring(0, temp.length() - 4));
+				}
+			}
+		}
+		return maps;
+	}
+
 	/**
 	 * Given the path to a pk3, this function will open the pk3 file and get the maps.
 	 * @param pathToFile The path to (and including) the file
 	 * @return A String designed for running (ex: "+addmap zdmap01 +addmap zdmap02") 
 	 */
 	public static String getPK3MapNames(String pathToFile) {
-		ZipFile zip;
+		List<String> maps;
 		try {
-			zip = new ZipFile(pathToFile);
+			maps = getPK3MapList(pathToFile);
 		} catch (IOException e2) {
 			e2.printStackTrace();
 			return null;
 		}
-		Enumeration<? extends ZipEntry> e = zip.entries();
 		String mapNames = "";
-		while (e.hasMoreElements()) {
-			ZipEntry ze = (ZipEntry)e.nextElement();
-			String temp = "";
-			if ((!ze.isDirectory()) && (ze.getName().toLowerCase().startsWith("maps/"))) {
-				temp = ze.getName().substring(5);
-				mapNames += "+addmap " + temp.substring(0, temp.length() - 4) + " ";
-			}
-		}
-		try {
-			zip.close();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
+		for (String map : maps)
+			mapNames += "+addmap " + map + " ";
 		return mapNames;
 	}
 
 	/**
-	 * Takes the byte data and parses the directory
-	 * @param wadData The files data in bytes
+	 * Parses the directory
+	 * @param directory The directory entries, read from the wad
 	 */
-	private void parseDirectory(byte[] wadData) {
+	private void parseDirectory(ByteBuffer directory) {
 		this.fileOffset = new int[this.headerTotalLumps];
 		this.fileSize = new int[this.headerTotalLumps];
 		this.lumpName = new String[this.headerTotalLumps];
-		int c = 0;
-		System.out.println("Pointer: " + this.headerPointerToDirectory + ", total length: " + wadData.length + ", difference = " + (wadData.length - this.headerPointerToDirectory));
-		for (int off = this.headerPointerToDirectory; off < wadData.length; off += 16) {
-			this.fileOffset[c] = Utility.bytesToInt(wadData[off], wadData[(off + 1)], wadData[(off + 2)], wadData[(off + 3)]);
-			this.fileSize[c] = Utility.bytesToInt(wadData[(off + 4)], wadData[(off + 5)], wadData[(off + 6)], wadData[(off + 7)]);
-			this.lumpName[c] = new String(Arrays.copyOfRange(wadData, off + 8, off + 16)).trim();
-			c++;
+		byte[] data = directory.array();
+		for (int c = 0; c < this.headerTotalLumps; c++) {
+			int off = c * DIRECTORY_ENTRY_SIZE;
+			this.fileOffset[c] = directory.getInt(off);
+			this.fileSize[c] = directory.getInt(off + 4);
+			this.lumpName[c] = new String(data, off + 8, 8, StandardCharsets.US_ASCII).trim();
+		}
+	}
+
+	/**
+	 * Gets the contents of a lump, mapped from the file when this is called
+	 * @param index The index of the lump in the directory
+	 * @return A read only little endian buffer over the lump
+	 * @throws IOException If the lump could not be read
+	 */
+	public ByteBuffer getLump(int index) throws IOException {
+		if (this.fileSize[index] == 0)
+			return ByteBuffer.allocate(0).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+		// The mapping stays valid after the channel is closed
+		try (FileChannel channel = FileChannel.open(Paths.get(this.path), StandardOpenOption.READ)) {
+			if (this.fileOffset[index] < 0 || this.fileSize[index] < 0 || (long) this.fileOffset[index] + this.fileSize[index] > channel.size())
+				throw new IOException("Lump " + this.lumpName[index] + " of " + this.path + " is out of bounds");
+			return channel.map(FileChannel.MapMode.READ_ONLY, this.fileOffset[index], this.fileSize[index]).order(ByteOrder.LITTLE_ENDIAN);
 		}
 	}
 
+	/**
+	 * Gets the contents of the first lump with the name
+	 * @param lumpname The name of the lump (it is converted to uppercase in the function)
+	 * @return A read only little endian buffer over the lump, or null if there is no such lump
+	 * @throws IOException If the lump could not be read
+	 */
+	public ByteBuffer getLump(String lumpname) throws IOException {
+		int index = findLumpIndex(lumpname);
+		return index == LOCATION_NOT_FOUND ? null : getLump(index);
+	}
+
+	/**
+	 * @param lumpname The name of the lump (it is converted to uppercase in the function)
+	 * @return The index of the first lump with the name in the directory, or LOCATION_NOT_FOUND
+	 */
+	public int findLumpIndex(String lumpname) {
+		String name = lumpname.toUpperCase();
+		for (int i = 0; i < this.lumpName.length; i++) {
+			if (this.lumpName[i].equals(name))
+				return i;
+		}
+		return LOCATION_NOT_FOUND;
+	}
+
 	/**
 	 * Will search through the wad to find the offset of the lump's location
 	 * @param lumpname The name of the lump to find (it is converted to uppercase in the function)
 	 * @return The index of the lump
 	 */
 	public int findLumpLocation(String lumpname) {
-		String name = lumpname.toUpperCase();
-		int index = -1;
-		for (int i = 0; i < this.lumpName.length; i++) {
-			if (this.lumpName[i].equals(name)) {
-				index = i;
-				break;
-			}
-		}
-		if (index != -1)
+		int index = findLumpIndex(lumpname);
+		if (index != LOCATION_NOT_FOUND)
 			return this.fileOffset[index];
 		System.out.println("Could not find lump name = " + lumpname);
 		return -1;
@@ -166,20 +166,6 @@ public class Functions {
 		return false;
 	}
 
-	/**
-	 * Checks for an available port from minport up to (but NOT including) maxport
-	 * @param minport The minimum port to check
-	 * @param maxport The maximum port that is one above what you would check (ex: 20200 would be the same as checking up to 20199)
-	 * @return The first available port, or 0 if no port is available
-	 */
-	public static int getFirstAvailablePort(int minport, int maxport) {
-		for (int p = minport; p < maxport; p++) {
-			if (checkIfPortAvailable(p))
-				return p;
-		}
-		return 0;
-	}
-
 	/**
 	 * Function that takes a time in seconds
 	 * and converts it to a string with days, hours, minutes
@@ -0,0 +1,142 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+
+package org.bestever.bebot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Runs the slow checks of a host command (database lookups, file system
+ * stats) side by side on a small shared pool. The first check that fails
+ * decides the answer and the ones that have not started yet are dropped
+ */
+public final class HostChecks {
+
+	/**
+	 * One check of a host command
+	 */
+	public interface Check {
+
+		/**
+		 * @return Null if the check passed, otherwise the message for the user
+		 * (empty if the check already reported the problem itself)
+		 */
+		String run() throws Exception;
+	}
+
+	/**
+	 * How many checks can run at the same time, for every host command together
+	 */
+	private static final int THREADS = 4;
+
+	/**
+	 * How many checks can wait for a thread, after that they run on the caller
+	 */
+	private static final int QUEUE_SIZE = 256;
+
+	/**
+	 * How long we wait for all the checks of one command, in milliseconds
+	 */
+	private static final long TIMEOUT = 30000;
+
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	private static final ThreadPoolExecutor executor;
+
+	static {
+		executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(QUEUE_SIZE), r -> {
+			Thread thread = new Thread(r, "HostCheck-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}, new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	private final List<Check> checks = new ArrayList<>();
+
+	private final List<Future<String>> futures = new ArrayList<>();
+
+	private CompletionService<String> completion;
+
+	/**
+	 * Adds a check, must be done before {@link #start()}
+	 * @param check The check
+	 */
+	public void add(Check check) {
+		checks.add(check);
+	}
+
+	/**
+	 * Starts running every check that was added
+	 */
+	public void start() {
+		completion = new ExecutorCompletionService<>(executor);
+		for (Check check : checks)
+			futures.add(completion.submit(check::run));
+	}
+
+	/**
+	 * Waits for the checks to finish, returning as soon as one fails
+	 * @return Null if every check passed, otherwise the message of the first one
+	 * that failed (empty if it already reported the problem itself)
+	 */
+	public String await() {
+		try {
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			for (int i = 0; i < futures.size(); i++) {
+				Future<String> done = completion.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				if (done == null) {
+					logMessage(LOGLEVEL_IMPORTANT, "Host command checks timed out.");
+					return "Checking the host command took too long, please try again.";
+				}
+				String error = done.get();
+				if (error != null)
+					return error;
+			}
+			return null;
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			logMessage(LOGLEVEL_IMPORTANT, "Host command check failed: " + e.getCause());
+			return "There was a problem checking the host command. Please contact an administrator.";
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return "There was a problem checking the host command. Please contact an administrator.";
+		} finally {
+			cancel();
+		}
+	}
+
+	/**
+	 * Drops the checks that have not started yet, the ones that already did
+	 * are left to finish since they do not change anything
+	 */
+	public void cancel() {
+		for (Future<String> future : futures)
+			future.cancel(false);
+	}
+}
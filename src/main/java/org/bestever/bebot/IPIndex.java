@@ -0,0 +1,293 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+
+package org.bestever.bebot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable lookup table of IP entries (the ban list or the white list).
+ * Plain addresses go in an open addressing int hash table, wildcard (1.2.*.*)
+ * and CIDR (1.2.0.0/16) entries become address ranges sorted by their start
+ */
+public final class IPIndex {
+
+	/**
+	 * An index with nothing in it
+	 */
+	public static final IPIndex EMPTY = new IPIndex(new ArrayList<>());
+
+	/**
+	 * One row of the list
+	 */
+	public static final class Entry {
+
+		/**
+		 * The address, wildcard or CIDR as stored in the database
+		 */
+		public final String pattern;
+
+		/**
+		 * Why it was added
+		 */
+		public final String reason;
+
+		/**
+		 * When it expires in milliseconds, 0 for never
+		 */
+		public final long expire;
+
+		public Entry(String pattern, String reason, long expire) {
+			this.pattern = pattern;
+			this.reason = reason;
+			this.expire = expire;
+		}
+
+		/**
+		 * @param now The current time in milliseconds
+		 * @return If the entry still applies
+		 */
+		public boolean isActive(long now) {
+			return expire == 0 || expire > now;
+		}
+	}
+
+	/**
+	 * Every entry by its pattern
+	 */
+	private final Map<String, Entry> entries;
+
+	/**
+	 * Hash table of plain addresses, a slot is empty when its value is null
+	 */
+	private final int[] exact_keys;
+	private final Entry[] exact_values;
+
+	/**
+	 * Ranges sorted by start, with the largest end seen up to each index so a
+	 * lookup knows when to stop walking back
+	 */
+	private final long[] range_starts;
+	private final long[] range_ends;
+	private final long[] range_max_ends;
+	private final Entry[] range_entries;
+
+	/**
+	 * Builds the index
+	 * @param list The entries, a later entry with the same pattern replaces an earlier one
+	 */
+	public IPIndex(Collection<Entry> list) {
+		entries = new LinkedHashMap<>();
+		for (Entry entry : list)
+			entries.put(entry.pattern, entry);
+
+		int exactCount = 0;
+		List<long[]> ranges = new ArrayList<>(); // start, end, index into rangeList
+		List<Entry> rangeList = new ArrayList<>();
+		for (Entry entry : entries.values()) {
+			long[] range = parseRange(entry.pattern);
+			if (range == null)
+				continue; // Not an address, only found by its pattern
+			if (range[0] == range[1])
+				exactCount++;
+			else {
+				ranges.add(new long[] { range[0], range[1], rangeList.size() });
+				rangeList.add(entry);
+			}
+		}
+
+		int capacity = Integer.highestOneBit(Math.max(exactCount, 4) * 2 - 1) << 1;
+		exact_keys = new int[capacity];
+		exact_values = new Entry[capacity];
+		for (Entry entry : entries.values()) {
+			long[] range = parseRange(entry.pattern);
+			if (range != null && range[0] == range[1]) {
+				int slot = findSlot((int) range[0]);
+				exact_keys[slot] = (int) range[0];
+				exact_values[slot] = entry;
+			}
+		}
+
+		ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+		range_starts = new long[ranges.size()];
+		range_ends = new long[ranges.size()];
+		range_max_ends = new long[ranges.size()];
+		range_entries = new Entry[ranges.size()];
+		long maxEnd = -1;
+		for (int i = 0; i < ranges.size(); i++) {
+			long[] range = ranges.get(i);
+			range_starts[i] = range[0];
+			range_ends[i] = range[1];
+			maxEnd = Math.max(maxEnd, range[1]);
+			range_max_ends[i] = maxEnd;
+			range_entries[i] = rangeList.get((int) range[2]);
+		}
+	}
+
+	/**
+	 * Finds an active entry that covers the IP
+	 * @param ip The IP address
+	 * @param now The current time in milliseconds
+	 * @return The entry, or null if the IP is not in the list
+	 */
+	public Entry find(String ip, long now) {
+		long address = parseAddress(ip);
+		if (address < 0) {
+			Entry entry = entries.get(ip);
+			return entry != null && entry.isActive(now) ? entry : null;
+		}
+
+		Entry entry = exact_values[findSlot((int) address)];
+		if (entry != null && entry.isActive(now))
+			return entry;
+
+		int i = Arrays.binarySearch(range_starts, address);
+		if (i < 0)
+			i = -i - 2; // The last range starting before the address
+		else
+			while (i + 1 < range_starts.length && range_starts[i + 1] == address)
+				i++;
+		for (; i >= 0 && range_max_ends[i] >= address; i--)
+			if (range_ends[i] >= address && range_entries[i].isActive(now))
+				return range_entries[i];
+		return null;
+	}
+
+	/**
+	 * Gets an entry by its pattern
+	 * @param pattern The address, wildcard or CIDR as stored in the database
+	 * @return The entry, or null if there is none
+	 */
+	public Entry get(String pattern) {
+		return pattern == null ? null : entries.get(pattern);
+	}
+
+	/**
+	 * @return How many entries there are
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Makes a copy of this index with one more entry
+	 * @param entry The entry to add, replacing one with the same pattern
+	 * @return The new index
+	 */
+	public IPIndex with(Entry entry) {
+		List<Entry> list = new ArrayList<>(entries.values());
+		list.add(entry);
+		return new IPIndex(list);
+	}
+
+	/**
+	 * Linear probing, returns the slot of the key or the empty slot it belongs in
+	 */
+	private int findSlot(int key) {
+		int mask = exact_keys.length - 1;
+		int hash = key * 0x9E3779B9;
+		int slot = (hash ^ hash >>> 16) & mask;
+		while (exact_values[slot] != null && exact_keys[slot] != key)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/**
+	 * Parses a dotted IPv4 address without any lookups
+	 * @param ip The address
+	 * @return The address as an unsigned number, or -1 if it is not one
+	 */
+	static long parseAddress(String ip) {
+		if (ip == null)
+			return -1;
+		long address = 0;
+		int octets = 0;
+		int value = -1;
+		for (int i = 0; i <= ip.length(); i++) {
+			char c = i < ip.length() ? ip.charAt(i) : '.';
+			if (c == '.') {
+				if (value < 0 || ++octets > 4)
+					return -1;
+				address = address << 8 | value;
+				value = -1;
+			} else if (c >= '0' && c <= '9') {
+				value = (value < 0 ? 0 : value * 10) + (c - '0');
+				if (value > 255)
+					return -1;
+			} else
+				return -1;
+		}
+		return octets == 4 ? address : -1;
+	}
+
+	/**
+	 * Turns a pattern into the addresses it covers; a wildcard octet covers 0-255
+	 * and missing trailing octets count as wildcards
+	 * @param pattern An address, wildcard or CIDR
+	 * @return The first and last address, or null if the pattern is not valid
+	 */
+	static long[] parseRange(String pattern) {
+		if (pattern == null)
+			return null;
+		int slash = pattern.indexOf('/');
+		if (slash >= 0) {
+			long base = parseAddress(pattern.substring(0, slash));
+			int bits;
+			try {
+				bits = Integer.parseInt(pattern.substring(slash + 1));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			if (base < 0 || bits < 0 || bits > 32)
+				return null;
+			long size = 1L << (32 - bits);
+			long start = base & ~(size - 1) & 0xFFFFFFFFL;
+			return new long[] { start, start + size - 1 };
+		}
+		if (pattern.indexOf('*') < 0) {
+			long address = parseAddress(pattern);
+			return address < 0 ? null : new long[] { address, address };
+		}
+		String[] octets = pattern.split("\\.", -1);
+		if (octets.length > 4)
+			return null;
+		long start = 0, end = 0;
+		for (int i = 0; i < 4; i++) {
+			String octet = i < octets.length ? octets[i] : "*";
+			int low, high;
+			if (octet.equals("*")) {
+				low = 0;
+				high = 255;
+			} else {
+				try {
+					low = high = Integer.parseInt(octet);
+				} catch (NumberFormatException e) {
+					return null;
+				}
+				if (low < 0 || low > 255)
+					return null;
+			}
+			start = start << 8 | low;
+			end = end << 8 | high;
+		}
+		return new long[] { start, end };
+	}
+}
@@ -6,94 +6,323 @@ package org.bestever.bebot;
 */
 
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URI;
 import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.bestever.bebot.Bot.bold;
+import static org.bestever.bebot.Logger.LOGLEVEL_DEBUG;
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.logMessage;
 
 /**
+ * Checks the IP addresses of players with IPIntel and bans the ones behind a
+ * proxy. IPs that were checked are remembered in the checked_ips table and in
+ * a cache in front of it, players joining from an IP that is being checked
+ * wait for that check instead of making another one, and when the service
+ * keeps failing we stop asking for a while rather than for good
+ * <br>
  * Created by Sean on 19/10/2016.
  */
-public class IPIntel implements Runnable {
-	public final String ip;
-	public final String name;
-	public final Server source;
-
-	private IPIntel(final String ip, final String name, final Server source) {
-		this.ip = ip;
-		this.name = name;
-		this.source = source;
+public class IPIntel {
+
+	/**
+	 * How many checked IPs we remember without asking the database
+	 */
+	private static final int CACHE_SIZE = 4096;
+
+	/**
+	 * How long we remember a checked IP, in milliseconds
+	 */
+	private static final long CACHE_TTL = 6 * 60 * 60 * 1000;
+
+	/**
+	 * How many IPs can be checked at the same time, players from more are not checked
+	 */
+	private static final int MAX_PENDING = 64;
+
+	/**
+	 * How long we wait for the service
+	 */
+	private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+	/**
+	 * How many checks in a row must fail before we stop asking
+	 */
+	private static final int FAILURE_THRESHOLD = 5;
+
+	/**
+	 * How long we stop asking for the first time, doubled every time the trial check fails
+	 */
+	private static final long OPEN_MILLISECONDS = 5 * 60 * 1000;
+	private static final long MAX_OPEN_MILLISECONDS = 60 * 60 * 1000;
+
+	/**
+	 * Stops asking the service for a while when it keeps failing. After the
+	 * wait one check is let through, if it works everything goes back to normal
+	 */
+	static final class CircuitBreaker {
+		private final int threshold;
+		private final long openMilliseconds;
+		private final long maxOpenMilliseconds;
+		private int failures = 0;
+		private long openUntil = 0;
+		private long nextOpen;
+		private boolean trial = false;
+
+		CircuitBreaker(int threshold, long openMilliseconds, long maxOpenMilliseconds) {
+			this.threshold = threshold;
+			this.openMilliseconds = openMilliseconds;
+			this.maxOpenMilliseconds = maxOpenMilliseconds;
+			this.nextOpen = openMilliseconds;
+		}
+
+		/**
+		 * @param now The current time in milliseconds
+		 * @return True if a request may be made now
+		 */
+		synchronized boolean allowRequest(long now) {
+			if (failures < threshold)
+				return true;
+			if (now < openUntil || trial)
+				return false;
+			trial = true;
+			return true;
+		}
+
+		synchronized void recordSuccess() {
+			failures = 0;
+			trial = false;
+			nextOpen = openMilliseconds;
+		}
+
+		/**
+		 * @param now The current time in milliseconds
+		 * @return How long we stop asking in milliseconds, 0 if we keep going
+		 */
+		synchronized long recordFailure(long now) {
+			trial = false;
+			if (++failures < threshold)
+				return 0;
+			long wait = nextOpen;
+			openUntil = now + wait;
+			nextOpen = Math.min(nextOpen * 2, maxOpenMilliseconds);
+			return wait;
+		}
+
+		synchronized boolean isOpen(long now) {
+			return failures >= threshold && now < openUntil;
+		}
 	}
 
-	@Override
-	public void run() {
-		try {
-			if (MySQL.checkKnownIP(ip)) {
-				return;
-			}
-			final String contactEmail = source.bot.cfg_data.ipintel_contact;
-			final double minResult = source.bot.cfg_data.ipintel_minimum;
+	private final Bot bot;
 
-			StringBuilder paramBuilder = new StringBuilder();
-			paramBuilder.append("ip=" + ip);
-			paramBuilder.append("&contact=" + URLEncoder.encode(contactEmail, "UTF-8"));
+	/**
+	 * Runs the database lookups and the HTTP client
+	 */
+	private final ExecutorService executor = Executors.newFixedThreadPool(2, r -> {
+		Thread thread = new Thread(r, "IPIntel");
+		thread.setDaemon(true);
+		return thread;
+	});
 
-			if (minResult == 1.0) {
-				paramBuilder.append("&flags=m");
-			}
-			
-			URL url = new URL("http://check.getipintel.net/check.php?" + paramBuilder.toString());
+	private final HttpClient client;
 
-			HttpURLConnection connection;
+	/**
+	 * When each IP that was checked was last seen, least recently used first
+	 */
+	private final LinkedHashMap<String, Long> checked = new LinkedHashMap<String, Long>(256, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
 
-			connection = (HttpURLConnection) url.openConnection();
-			connection.setRequestMethod("GET");
+	/**
+	 * Checks that are running, by IP
+	 */
+	private final ConcurrentHashMap<String, CompletableFuture<Double>> pending = new ConcurrentHashMap<>();
 
-			// TODO: parse response code too
-			connection.getResponseCode();
+	private final CircuitBreaker breaker = new CircuitBreaker(FAILURE_THRESHOLD, OPEN_MILLISECONDS, MAX_OPEN_MILLISECONDS);
 
-			BufferedReader in = new BufferedReader(
-			new InputStreamReader(connection.getInputStream()));
-			String inputLine;
-			StringBuilder data = new StringBuilder();
+	public IPIntel(Bot bot) {
+		this.bot = bot;
+		this.client = HttpClient.newBuilder()
+				.executor(executor)
+				.connectTimeout(TIMEOUT)
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.build();
+	}
 
-			while ((inputLine = in.readLine()) != null) {
-				data.append(inputLine);
-			}
-			in.close();
+	/**
+	 * Checks an IP in the background, kicking the player and banning the IP if it is a proxy
+	 * @param ip The IP
+	 * @param name The name of the player
+	 * @param server The server they joined
+	 */
+	public void query(String ip, String name, Server server) {
+		lookup(ip).thenAccept(score -> {
+			if (score == null || score < bot.cfg_data.ipintel_minimum)
+				return;
+			bot.sendLogErrorMessage(bold(name)+" with ip "+bold(ip)+" was kicked from " + bold(server.sender) + "'s server "+ bold(server.servername) +" on port "+bold(server.port)+" as they're suspected of being behind a proxy");
+			server.in.println("addban " + ip + " 10minute " + "\"\\ciBanned from all " + bot.cfg_data.service_short + " servers on suspicion of using a proxy.\"");
+		});
+	}
+
+	/**
+	 * Gets the score of an IP, sharing the check with anyone else waiting for the same IP
+	 * @param ip The IP
+	 * @return The score once it is known, or null if the IP was checked before
+	 * or could not be checked
+	 */
+	public CompletableFuture<Double> lookup(String ip) {
+		synchronized (checked) {
+			Long seen = checked.get(ip);
+			if (seen != null && System.currentTimeMillis() - seen < CACHE_TTL)
+				return CompletableFuture.completedFuture(null);
+		}
+		CompletableFuture<Double> result = pending.get(ip);
+		if (result != null)
+			return result;
+		if (pending.size() >= MAX_PENDING) {
+			logMessage(LOGLEVEL_DEBUG, () -> "Too many IPIntel checks running, not checking " + ip + ".");
+			return CompletableFuture.completedFuture(null);
+		}
+		CompletableFuture<Double> created = new CompletableFuture<>();
+		result = pending.putIfAbsent(ip, created);
+		if (result != null)
+			return result;
+		created.whenComplete((score, error) -> pending.remove(ip, created));
+		executor.execute(() -> check(ip, created));
+		return created;
+	}
+
+	/**
+	 * Stops the threads, checks that are running are dropped
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
 
-			String responseText = data.toString();
-			final double response = Double.parseDouble(responseText);
+	/**
+	 * @return A line with how many IPs are cached and pending and if we stopped asking
+	 */
+	@Override
+	public String toString() {
+		int cached;
+		synchronized (checked) {
+			cached = checked.size();
+		}
+		return cached + " cached, " + pending.size() + " being checked" + (breaker.isOpen(System.currentTimeMillis()) ? ", paused after failures" : "");
+	}
 
-			if (response < 0) {
-				System.err.println("IPIntel returned " + response + "!");
+	/**
+	 * Asks the database and then the service about the IP
+	 * @param ip The IP
+	 * @param result Where the score goes
+	 */
+	private void check(String ip, CompletableFuture<Double> result) {
+		try {
+			if (MySQL.checkKnownIP(ip)) {
+				remember(ip);
+				result.complete(null);
 				return;
 			}
-			MySQL.addKnownIP(ip);
-			if (response >= minResult) {
-				source.bot.sendLogErrorMessage(bold(name)+" with ip "+bold(ip)+" was kicked from " + bold(source.sender) + "'s server "+ bold(source.servername) +" on port "+bold(source.port)+" as they're suspected of being behind a proxy");
-				source.in.println("addban " + ip + " 10minute " + "\"\\ciBanned from all " + source.bot.cfg_data.service_short + " servers on suspicion of using a proxy.\"");
-				if (MySQL.addBan(ip, "Proxy (IPIntel)", "<bot>")) {
-					source.bot.sendLogInfoMessage("Proxy IP " + bold(ip) + " was added to the banlist");
-				}
-				else { 
-					source.bot.sendLogErrorMessage("Proxy IP " + bold(ip) + " could not be added to the banlist");
-				}
-			}
 		} catch (Exception e) {
-			source.bot.sendLogErrorMessage("IPIntel check has failed - disabling");
-			source.bot.cfg_data.ipintel_enabled = false;
 			e.printStackTrace();
 		}
-		return;
+		if (!breaker.allowRequest(System.currentTimeMillis())) {
+			result.complete(null);
+			return;
+		}
+
+		StringBuilder paramBuilder = new StringBuilder();
+		paramBuilder.append("ip=").append(URLEncoder.encode(ip, StandardCharsets.UTF_8));
+		paramBuilder.append("&contact=").append(URLEncoder.encode(bot.cfg_data.ipintel_contact, StandardCharsets.UTF_8));
+		if (bot.cfg_data.ipintel_minimum == 1.0) {
+			paramBuilder.append("&flags=m");
+		}
+		HttpRequest request;
+		try {
+			request = HttpRequest.newBuilder(URI.create(bot.cfg_data.ipintel_url + "?" + paramBuilder))
+					.timeout(TIMEOUT)
+					.GET()
+					.build();
+		} catch (IllegalArgumentException e) {
+			failed("the URL " + bot.cfg_data.ipintel_url + " is not valid");
+			result.complete(null);
+			return;
+		}
+
+		client.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((response, error) -> {
+			try {
+				if (error != null) {
+					failed(error.toString());
+					result.complete(null);
+					return;
+				}
+				if (response.statusCode() != 200) {
+					failed("HTTP " + response.statusCode());
+					result.complete(null);
+					return;
+				}
+				double score;
+				try {
+					score = Double.parseDouble(response.body().trim());
+				} catch (NumberFormatException e) {
+					failed("unexpected response \"" + response.body().trim() + "\"");
+					result.complete(null);
+					return;
+				}
+				if (score < 0) {
+					// The service tells us what went wrong with a negative number
+					failed("IPIntel returned " + score);
+					result.complete(null);
+					return;
+				}
+				breaker.recordSuccess();
+				remember(ip);
+				MySQL.addKnownIP(ip);
+				if (score >= bot.cfg_data.ipintel_minimum) {
+					if (MySQL.addBan(ip, "Proxy (IPIntel)", "<bot>")) {
+						bot.sendLogInfoMessage("Proxy IP " + bold(ip) + " was added to the banlist");
+					}
+					else {
+						bot.sendLogErrorMessage("Proxy IP " + bold(ip) + " could not be added to the banlist");
+					}
+				}
+				result.complete(score);
+			} catch (Exception e) {
+				e.printStackTrace();
+				result.complete(null);
+			}
+		});
 	}
-			
-	public static void query(String ip, String name, Server server) {
-		Thread thread = new Thread(new IPIntel(ip, name, server));
-		thread.setName("IPIntel-" + System.nanoTime());
-		thread.start();
+
+	/**
+	 * Counts a failed check and tells the log channel if we stop asking because of it
+	 * @param reason What went wrong
+	 */
+	private void failed(String reason) {
+		logMessage(LOGLEVEL_IMPORTANT, "IPIntel check failed: " + reason);
+		long wait = breaker.recordFailure(System.currentTimeMillis());
+		if (wait > 0)
+			bot.sendLogErrorMessage("IPIntel check has failed (" + reason + ") - not checking for " + wait / 60000 + " minutes");
+	}
+
+	private void remember(String ip) {
+		synchronized (checked) {
+			checked.put(ip, System.currentTimeMillis());
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,278 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+
+package org.bestever.bebot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+import static org.bestever.bebot.Logger.LOGLEVEL_CRITICAL;
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Writes the logs of every server from one thread. A log is written when
+ * enough text is waiting or its oldest line waited a second, with one gathering
+ * write for the whole batch instead of a write per line
+ */
+public class LogWriter extends Thread {
+
+	/**
+	 * Write a log once this many characters are waiting
+	 */
+	static final long FLUSH_CHARACTERS = 64 * 1024;
+
+	/**
+	 * Write a log once its oldest line waited this long
+	 */
+	static final long FLUSH_MILLISECONDS = 1000;
+
+	/**
+	 * How often the writer looks for logs that waited long enough
+	 */
+	private static final long TICK_MILLISECONDS = 200;
+
+	private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MMM-dd HH:mm:ss ").withZone(ZoneId.systemDefault());
+
+	private static final DateTimeFormatter ROTATED_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").withZone(ZoneId.systemDefault());
+
+	private static final byte[] NEWLINE = { '\n' };
+
+	/**
+	 * Every open log
+	 */
+	private final Set<ServerLog> logs = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Rotate a log once it is this big, 0 to never rotate
+	 */
+	private final long rotateBytes;
+
+	/**
+	 * Compress logs that were rotated out
+	 */
+	private final boolean gzip;
+
+	private final Object signal = new Object();
+
+	private boolean woken = false;
+
+	private volatile boolean threadTerminate = false;
+
+	/**
+	 * The second the cached timestamp is for and the timestamp itself
+	 */
+	private long cachedSecond = Long.MIN_VALUE;
+	private byte[] cachedTimestamp;
+
+	/**
+	 * Reused for every batch, only touched by the writer thread
+	 */
+	private final String[] batchLines = new String[ServerLog.CAPACITY];
+	private final long[] batchTimes = new long[ServerLog.CAPACITY];
+	private final ByteBuffer[] batchBuffers = new ByteBuffer[ServerLog.CAPACITY * 3];
+
+	/**
+	 * @param rotateBytes Rotate logs when they get this big, 0 to never rotate
+	 * @param gzip True to compress rotated logs
+	 */
+	public LogWriter(long rotateBytes, boolean gzip) {
+		this.rotateBytes = rotateBytes;
+		this.gzip = gzip;
+		setName("LogWriter");
+		setDaemon(true);
+	}
+
+	/**
+	 * Opens a log for appending, creating it if needed
+	 * @param file The log file
+	 * @return The log
+	 */
+	public ServerLog open(File file) throws IOException {
+		ServerLog log = new ServerLog(this, file, openChannel(file.toPath()));
+		logs.add(log);
+		return log;
+	}
+
+	private static FileChannel openChannel(Path path) throws IOException {
+		if (path.getParent() != null)
+			Files.createDirectories(path.getParent());
+		return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Tells the writer something should be written now
+	 */
+	void wake() {
+		synchronized (signal) {
+			woken = true;
+			signal.notify();
+		}
+	}
+
+	/**
+	 * Writes everything that is waiting and closes every log, used when the bot exits
+	 */
+	public void shutdown() {
+		for (ServerLog log : logs)
+			log.close();
+		threadTerminate = true;
+		wake();
+	}
+
+	@Override
+	public void run() {
+		while (!threadTerminate) {
+			synchronized (signal) {
+				if (!woken) {
+					try {
+						signal.wait(TICK_MILLISECONDS);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+				woken = false;
+			}
+			long now = System.currentTimeMillis();
+			for (ServerLog log : logs) {
+				if (log.isDue(now))
+					flush(log);
+			}
+		}
+	}
+
+	/**
+	 * Writes what is waiting in the log, and rotates or closes it if needed
+	 * @param log The log
+	 */
+	private void flush(ServerLog log) {
+		try {
+			int taken = log.take(batchLines, batchTimes);
+			if (taken > 0) {
+				int buffers = 0;
+				for (int i = 0; i < taken; i++) {
+					if (ServerLog.hasTimestamp(batchTimes[i])) {
+						batchBuffers[buffers++] = ByteBuffer.wrap(timestamp(batchTimes[i]));
+						batchBuffers[buffers++] = ByteBuffer.wrap(batchLines[i].getBytes(StandardCharsets.UTF_8));
+						batchBuffers[buffers++] = ByteBuffer.wrap(NEWLINE);
+					} else
+						batchBuffers[buffers++] = ByteBuffer.wrap(batchLines[i].getBytes(StandardCharsets.UTF_8));
+					batchLines[i] = null;
+				}
+				writeFully(log.channel, buffers);
+				if (rotateBytes > 0 && log.channel.size() >= rotateBytes)
+					rotate(log);
+			}
+		} catch (IOException e) {
+			logMessage(LOGLEVEL_IMPORTANT, "Could not write log " + log.file + ": " + e.getMessage());
+		}
+		if (log.isFinished()) {
+			logs.remove(log);
+			try {
+				log.channel.close();
+			} catch (IOException e) {
+				logMessage(LOGLEVEL_IMPORTANT, "Could not close log " + log.file + ": " + e.getMessage());
+			}
+			log.markClosed();
+		}
+	}
+
+	private void writeFully(FileChannel channel, int buffers) throws IOException {
+		int offset = 0;
+		while (offset < buffers) {
+			channel.write(batchBuffers, offset, buffers - offset);
+			while (offset < buffers && !batchBuffers[offset].hasRemaining())
+				batchBuffers[offset++] = null;
+		}
+	}
+
+	/**
+	 * Gets the timestamp for a time, only formatted again when the second changes
+	 * @param millis The time
+	 * @return The timestamp followed by a space
+	 */
+	private byte[] timestamp(long millis) {
+		long second = Math.floorDiv(millis, 1000);
+		if (second != cachedSecond) {
+			cachedSecond = second;
+			cachedTimestamp = TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(millis)).getBytes(StandardCharsets.UTF_8);
+		}
+		return cachedTimestamp;
+	}
+
+	/**
+	 * Moves the log to a file named after the current time and starts a new one
+	 * @param log The log
+	 */
+	private void rotate(ServerLog log) throws IOException {
+		Path path = log.file.toPath();
+		Path rotated = rotatedPath(path);
+		// Move it while it is still open, so if that fails we keep writing to the same file
+		Files.move(path, rotated);
+		log.channel.close();
+		log.channel = openChannel(path);
+		if (gzip)
+			CompletableFuture.runAsync(() -> compress(rotated));
+	}
+
+	/**
+	 * Finds a free name for a log that is rotated out, based on the current time
+	 * @param path The log
+	 * @return The path to move it to
+	 */
+	private static Path rotatedPath(Path path) {
+		String name = path.getFileName().toString().replaceAll("\\.txt$", "") + "-" + ROTATED_FORMAT.format(Instant.now());
+		Path rotated = path.resolveSibling(name + ".txt");
+		for (int i = 1; Files.exists(rotated) || Files.exists(path.resolveSibling(rotated.getFileName() + ".gz")); i++)
+			rotated = path.resolveSibling(name + "-" + i + ".txt");
+		return rotated;
+	}
+
+	/**
+	 * Replaces a file with a gzipped copy of it
+	 * @param path The file
+	 */
+	private static void compress(Path path) {
+		Path compressed = path.resolveSibling(path.getFileName() + ".gz");
+		try (InputStream in = Files.newInputStream(path);
+			 OutputStream out = new GZIPOutputStream(Files.newOutputStream(compressed))) {
+			in.transferTo(out);
+		} catch (IOException e) {
+			logMessage(LOGLEVEL_CRITICAL, "Could not compress log " + path + ": " + e.getMessage());
+			return;
+		}
+		try {
+			Files.delete(path);
+		} catch (IOException e) {
+			logMessage(LOGLEVEL_IMPORTANT, "Could not delete compressed log " + path + ": " + e.getMessage());
+		}
+	}
+}
@@ -1,5 +1,6 @@
 // --------------------------------------------------------------------------
 // Copyright (C) 2012-2013 Best-Ever
+// Copyright (C) 2021 TarCV
 //
 // This program is free software; you can redistribute it and/or
 // modify it under the terms of the GNU General Public License
@@ -15,13 +16,25 @@
 
 package org.bestever.bebot;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
+/**
+ * Writes the bot log. Callers only format the line and queue it, a background
+ * thread appends everything that was queued to the log file, which stays open,
+ * and syncs it to disk every second
+ */
 public class Logger {
 	private Logger() { }
 	
@@ -33,15 +46,76 @@ public class Logger {
 	public static final int LOGLEVEL_TRIVIAL = 100;
 	
 	// Logger variables
-	public static String logfile = "";
-	public static int log_level = LOGLEVEL_NORMAL;
+	public static volatile String logfile = "";
+	public static volatile int log_level = LOGLEVEL_NORMAL;
+
+	/**
+	 * How many lines can be waiting, past that only important and critical lines
+	 * are kept until the writer catches up
+	 */
+	private static final int MAX_QUEUED = 65536;
+
+	/**
+	 * How long the writer sleeps when there is nothing to write
+	 */
+	private static final long WRITE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	/**
+	 * How often what was written is synced to disk
+	 */
+	private static final long SYNC_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH-mm-ss");
+
+	/**
+	 * Lines waiting to be written, already formatted
+	 */
+	private static final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>();
+
+	private static final AtomicInteger queued = new AtomicInteger();
+
+	private static final AtomicInteger dropped = new AtomicInteger();
+
+	/**
+	 * The time stamp of the current second, so most lines do not need to format one
+	 */
+	private static volatile TimeStamp timeStamp = new TimeStamp(0, "");
+
+	private static Thread writer;
+
+	private static volatile boolean shutdown = false;
+
+	private static final class TimeStamp {
+		final long second;
+		final String text;
+
+		TimeStamp(long second, String text) {
+			this.second = second;
+			this.text = text;
+		}
+	}
 	
 	/**
-	 * Sets up the path to the log file
+	 * Sets up the path to the log file and starts the writer if it is not running yet
 	 * @param path A string containing the full path to the log file
 	 */
-	public static void setLogFile(String path) {
+	public static synchronized void setLogFile(String path) {
 		Logger.logfile = path;
+		if (writer == null) {
+			writer = new Thread(Logger::write, "Logger");
+			writer.setDaemon(true);
+			writer.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(Logger::shutdown, "LoggerShutdown"));
+		}
+	}
+
+	/**
+	 * Checks if a message of the level would be logged, so callers can skip building it
+	 * @param logLevel int - severity of the message
+	 * @return true if it would be logged
+	 */
+	public static boolean isLoggable(int logLevel) {
+		return logLevel <= log_level && logfile != null && !logfile.isEmpty();
 	}
 	
 	/**
@@ -51,29 +125,135 @@ public class Logger {
 	 */
 	public static void logMessage(int logLevel, String message) {
 		// If it is not important enough for us then do not print it
-		if (logLevel > log_level)
+		if (!isLoggable(logLevel))
+			return;
+		enqueue(logLevel, message);
+	}
+
+	/**
+	 * Writes a log message based on the log level, the message is only built if it is logged
+	 * @param logLevel int - severity of the message
+	 * @param message Supplier - builds the message to log
+	 */
+	public static void logMessage(int logLevel, Supplier<String> message) {
+		if (!isLoggable(logLevel))
 			return;
-		
-		// We should not have an empty logfile
-		if (logfile == null || logfile.equals(""))
+		enqueue(logLevel, message.get());
+	}
+
+	/**
+	 * Writes everything that is queued and syncs the log file, waiting at most a few seconds
+	 */
+	public static void shutdown() {
+		Thread thread;
+		synchronized (Logger.class) {
+			thread = writer;
+		}
+		if (thread == null)
 			return;
-		
-		// Open file to prepare a print
-		PrintWriter pw;
+		// Not an interrupt, that would close the file channel under the writer
+		shutdown = true;
+		LockSupport.unpark(thread);
 		try {
-			pw = new PrintWriter(new BufferedWriter(new FileWriter(logfile, true)));
+			thread.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Formats the line and queues it for the writer
+	 */
+	private static void enqueue(int logLevel, String message) {
+		if (queued.incrementAndGet() > MAX_QUEUED && logLevel > LOGLEVEL_IMPORTANT) {
+			queued.decrementAndGet();
+			dropped.incrementAndGet();
+			return;
+		}
+		queue.add(getTimeStamp() + " " + message + System.lineSeparator());
+		// Critical messages are often followed by an exit, do not make them wait
+		if (logLevel == LOGLEVEL_CRITICAL && writer != null)
+			LockSupport.unpark(writer);
+	}
+
+	/**
+	 * @return The current time as it goes in the log
+	 */
+	private static String getTimeStamp() {
+		long second = System.currentTimeMillis() / 1000;
+		TimeStamp current = timeStamp;
+		if (current.second != second) {
+			current = new TimeStamp(second, LocalDateTime.now().format(TIME_FORMAT));
+			timeStamp = current;
+		}
+		return current.text;
+	}
+
+	/**
+	 * Runs on the writer thread until the logger is shut down
+	 */
+	private static void write() {
+		FileChannel channel = null;
+		String openPath = null;
+		long lastSync = System.nanoTime();
+		boolean unsynced = false;
+		StringBuilder pending = new StringBuilder();
+		boolean running = true;
+		while (running) {
+			if (shutdown)
+				running = false; // Write what is left one last time
+			else if (queue.isEmpty())
+				LockSupport.parkNanos(WRITE_INTERVAL_NANOS);
+
+			int lost = dropped.getAndSet(0);
+			if (lost > 0)
+				pending.append(getTimeStamp()).append(" ").append(lost).append(" log messages were dropped, the log could not keep up.").append(System.lineSeparator());
+			String line;
+			while ((line = queue.poll()) != null) {
+				queued.decrementAndGet();
+				pending.append(line);
+			}
+
+			try {
+				String path = logfile;
+				if (channel != null && !path.equals(openPath)) {
+					channel.force(false);
+					channel.close();
+					channel = null;
+				}
+				if (channel == null && path != null && !path.isEmpty()) {
+					channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+					openPath = path;
+				}
+				if (channel != null && pending.length() > 0) {
+					ByteBuffer buffer = ByteBuffer.wrap(pending.toString().getBytes(StandardCharsets.UTF_8));
+					while (buffer.hasRemaining())
+						channel.write(buffer);
+					unsynced = true;
+				}
+				if (channel != null && unsynced && (!running || System.nanoTime() - lastSync >= SYNC_INTERVAL_NANOS)) {
+					channel.force(false);
+					unsynced = false;
+					lastSync = System.nanoTime();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				try {
+					if (channel != null)
+						channel.close();
+				} catch (IOException ignored) { }
+				channel = null; // Try to open it again next time
+			}
+			// Without a file there is nowhere for the lines to go
+			pending.setLength(0);
+			if (pending.capacity() > 1 << 20)
+				pending.trimToSize();
+		}
+		try {
+			if (channel != null)
+				channel.close();
 		} catch (IOException e) {
 			e.printStackTrace();
-			return;
 		}
-		
-		// Get the current time
-		String time = new SimpleDateFormat("yyyy-MM-dd HH-mm-ss").format(Calendar.getInstance().getTime());
-		
-		// Append line to file
-		pw.println(time + " " + message);
-		
-		// Close the stream
-		pw.close();
 	}
-}
\ No newline at end of file
+}
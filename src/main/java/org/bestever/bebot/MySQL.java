@@ -19,16 +19,25 @@ package org.bestever.bebot;
 import com.mewna.catnip.entity.channel.MessageChannel;
 
 import java.net.UnknownHostException;
-import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import static org.bestever.bebot.Bot.bold;
 import static org.bestever.bebot.Logger.LOGLEVEL_CRITICAL;
@@ -77,6 +86,57 @@ public class MySQL {
 	 */
 	public static final int SERVER_ONLINE = 1;
 
+	/**
+	 * The most database connections open at once
+	 */
+	private static final int POOL_MAX_CONNECTIONS = 8;
+
+	/**
+	 * How long a query waits for a free connection, in milliseconds
+	 */
+	private static final long POOL_BORROW_TIMEOUT = 10000;
+
+	/**
+	 * How long an unused connection is kept open, in milliseconds
+	 */
+	private static final long POOL_IDLE_TIMEOUT = 300000;
+
+	/**
+	 * Holds the database connections
+	 */
+	private static volatile ConnectionPool pool;
+
+	/**
+	 * How often the ban list and white list are read from the database again, in milliseconds
+	 */
+	private static final long IP_LIST_REFRESH_INTERVAL = 60000;
+
+	/**
+	 * The ban list and white list as of the last reload
+	 */
+	private static volatile IPIndex banIndex;
+	private static volatile IPIndex whitelistIndex;
+
+	/**
+	 * The wad blacklist as of the last reload
+	 */
+	private static volatile WadBlacklist wadBlacklist;
+
+	/**
+	 * Reloads the IP lists and the wad blacklist now and then
+	 */
+	private static ScheduledExecutorService ipListRefresher;
+
+	/**
+	 * Runs database writes away from the thread that asked for them, in the order they were made
+	 */
+	private static final ThreadPoolExecutor writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<>(1024), r -> {
+				Thread thread = new Thread(r, "MySQLWriter");
+				thread.setDaemon(true);
+				return thread;
+			}, new ThreadPoolExecutor.CallerRunsPolicy());
+
 	/**
 	 * Constructor for the MySQL Object
 	 * @param bot instance of the bot
@@ -99,6 +159,27 @@ public class MySQL {
 			logMessage(LOGLEVEL_CRITICAL, "Could not initialize MySQL Driver!");
 			System.exit(-1);
 		}
+		if (pool != null)
+			pool.close();
+		pool = new ConnectionPool("jdbc:mysql://" + mysql_host + ":" + mysql_port + "/" + mysql_db, mysql_user, mysql_pass,
+				POOL_MAX_CONNECTIONS, POOL_BORROW_TIMEOUT, POOL_IDLE_TIMEOUT);
+		if (ipListRefresher == null) {
+			ipListRefresher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "IPListRefresher");
+				thread.setDaemon(true);
+				return thread;
+			});
+			ipListRefresher.scheduleWithFixedDelay(MySQL::reloadIPLists, 0, IP_LIST_REFRESH_INTERVAL, TimeUnit.MILLISECONDS);
+			ipListRefresher.scheduleWithFixedDelay(MySQL::reloadWadBlacklist, 0, IP_LIST_REFRESH_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Returns the state of the connection pool
+	 * @return A line with the pool metrics
+	 */
+	public static String getPoolStats() {
+		return pool == null ? "No connection pool." : pool.toString();
 	}
 
 	/**
@@ -149,31 +230,31 @@ public class MySQL {
 	}
 
 	/**
-	 * Returns the connection
+	 * Borrows a connection from the pool, closing it gives it back
 	 */
 	private static Connection getConnection() throws SQLException {
-		return DriverManager.getConnection("jdbc:mysql://" + mysql_host + ":"+mysql_port+"/" + mysql_db, mysql_user, mysql_pass);
+		if (pool == null)
+			throw new SQLException("MySQL has not been set up.");
+		return pool.getConnection();
 	}
 
 	/**
-	 * Create a custom wadpage for our wads
-	 * @param wads String[] - the wads to add
+	 * Create a custom wadpage for our wads, the row is added in the background
+	 * @param key String - the key of the page
+	 * @param wads String - the wads to add
 	 */
-	public static String createWadPage(String wads) {
-		String query = "INSERT INTO `" + mysql_db + "`.`wad_pages` (`key`, `wad_string`) VALUES (?, ?)";
-		try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
-			try {
-				String hash = Functions.generateHash();
-				pst.setString(1, hash);
+	public static void createWadPage(String key, String wads) {
+		writer.execute(() -> {
+			String query = "INSERT INTO `" + mysql_db + "`.`wad_pages` (`key`, `wad_string`) VALUES (?, ?)";
+			try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
+				pst.setString(1, key);
 				pst.setString(2, wads);
 				pst.executeUpdate();
-				return hash;
-			} catch (NoSuchAlgorithmException e) { }
-		} catch (SQLException e) {
-			e.printStackTrace();
-			logMessage(LOGLEVEL_IMPORTANT, "Could not add wad page. (SQL Error)");
-		}
-		return null;
+			} catch (SQLException e) {
+				e.printStackTrace();
+				logMessage(LOGLEVEL_IMPORTANT, "Could not add wad page. (SQL Error)");
+			}
+		});
 	}
 
 	/**
@@ -182,116 +263,170 @@ public class MySQL {
 	 * @return true if is blacklisted, false if not
 	 */
 	public static boolean checkHashes(String... fileName) {
+		Map<String, WadBlacklist.Entry> matches = findBlacklisted(Arrays.asList(fileName));
+		if (matches == null)
+			return false;
+		for (Map.Entry<String, WadBlacklist.Entry> match : matches.entrySet()) {
+			WadBlacklist.Entry entry = match.getValue();
+			bot.sendMessageToCoreChannel("Wad " + match.getKey() + " matches blacklist " + entry.name + " with reason: \"" + entry.reason + "\" (hash: " + entry.md5 + ")");
+		}
+		return matches.isEmpty();
+	}
+
+	/**
+	 * Finds which of the wads are on the wad blacklist, without telling anyone
+	 * @param wads Collection - names of the wads
+	 * @return The blacklist entry of every blacklisted wad by wad name, or null if the blacklist or the hashes could not be read
+	 */
+	public static Map<String, WadBlacklist.Entry> findBlacklisted(Collection<String> wads) {
+		WadBlacklist blacklist = getWadBlacklist();
+		if (blacklist == null) {
+			logMessage(LOGLEVEL_IMPORTANT, "Could not check wads, the wad blacklist was never loaded");
+			return null;
+		}
+		Map<String, WadBlacklist.Entry> matches = new LinkedHashMap<>();
+		if (blacklist.size() == 0)
+			return matches;
+
+		// Wads the catalog has already hashed are checked right away, the rest use the hash the site stored
+		ArrayList<String> unknown = new ArrayList<>();
+		for (String wad : wads) {
+			WadCatalog.Entry entry = bot.wadCatalog != null ? bot.wadCatalog.get(wad) : null;
+			if (entry == null)
+				unknown.add(wad);
+			else {
+				WadBlacklist.Entry match = blacklist.find(entry.getMd5());
+				if (match != null)
+					matches.put(wad, match);
+			}
+		}
+		if (unknown.isEmpty())
+			return matches;
+
 		StringBuilder sb = new StringBuilder();
 		sb.append("SELECT `wadname`,`md5` FROM `").append(mysql_db).append("`.`wads` WHERE `wadname` IN (");
-		int i = 0;
-		for (; i < fileName.length; i++) {
-			if (i == fileName.length - 1)
-				sb.append("?");
-			else
-				sb.append("?, ");
-		}
+		for (int i = 0; i < unknown.size(); i++)
+			sb.append(i == 0 ? "?" : ", ?");
 		sb.append(")");
-		String query = sb.toString();
-		try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)){
-			for (int j = 1; j <= i; j++) {
-				pst.setString(j, fileName[j-1]);
-			}
+		try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(sb.toString())) {
+			for (int i = 0; i < unknown.size(); i++)
+				pst.setString(i + 1, unknown.get(i));
 			ResultSet checkHashes = pst.executeQuery();
-			try (Statement stm = con.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY)) {
-				ResultSet blacklistedHashes = stm.executeQuery("SELECT `name`,`reason`,`md5` FROM `" + mysql_db + "`.`blacklist`;");
-				while (checkHashes.next()) {
-					blacklistedHashes.beforeFirst();
-					while (blacklistedHashes.next())
-						if (blacklistedHashes.getString("md5").equalsIgnoreCase(checkHashes.getString("md5"))) {
-							bot.sendMessageToCoreChannel("Wad " + checkHashes.getString("wadname") +
-									" matches blacklist " + blacklistedHashes.getString("name") + " with reason: \"" + blacklistedHashes.getString("reason") + "\" (hash: " + blacklistedHashes.getString("md5") + ")");
-							return false;
-						}
-				}
+			while (checkHashes.next()) {
+				String md5 = checkHashes.getString("md5");
+				WadBlacklist.Entry match = blacklist.find(md5 != null ? md5.trim() : null);
+				if (match != null)
+					matches.put(checkHashes.getString("wadname"), match);
 			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 			logMessage(LOGLEVEL_IMPORTANT, "Could not get hashes of file (SQL Error)");
-			return false;
+			return null;
 		}
-		return true;
+		return matches;
 	}
 
 	/**
-	 * Gets a ban reason for the specified IP
-	 * @param ip String - IP address
-	 * @return String - the ban reason
+	 * @return The wad blacklist, loading it first if it never was; null if it could not be loaded
 	 */
-	public static String getBannedReason(String ip) throws UnknownHostException {
-		String query = "SELECT * FROM `" + mysql_db + "`.`banlist` WHERE `ip` = ?";
+	public static WadBlacklist getWadBlacklist() {
+		if (wadBlacklist == null)
+			reloadWadBlacklist();
+		return wadBlacklist;
+	}
+
+	/**
+	 * Reads the wad blacklist from the database again, the old one is kept if that fails
+	 */
+	public static synchronized void reloadWadBlacklist() {
+		String query = "SELECT `name`, `reason`, `md5` FROM `" + mysql_db + "`.`blacklist`";
 		try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
-			pst.setString(1, ip);
+			ArrayList<WadBlacklist.Entry> list = new ArrayList<>();
 			ResultSet r = pst.executeQuery();
-			if (r.next()) {
-				if (r.getString("reason") != null) {
-					return r.getString("reason");
-				}
+			while (r.next()) {
+				String md5 = r.getString("md5");
+				if (md5 != null)
+					list.add(new WadBlacklist.Entry(r.getString("name"), r.getString("reason"), md5.trim()));
 			}
-		}  catch (SQLException e) {
+			wadBlacklist = new WadBlacklist(list);
+		} catch (SQLException e) {
 			e.printStackTrace();
-			logMessage(LOGLEVEL_IMPORTANT, "Could not get ban reason.");
+			logMessage(LOGLEVEL_IMPORTANT, "Could not load the wad blacklist");
 		}
+	}
+
+	/**
+	 * Gets a ban reason for the specified IP
+	 * @param ip String - IP address (or the wildcard it was banned with)
+	 * @return String - the ban reason
+	 */
+	public static String getBannedReason(String ip) throws UnknownHostException {
+		IPIndex.Entry entry = getBanIndex().get(ip);
+		if (entry != null && entry.reason != null)
+			return entry.reason;
 		return "None Specified";
 	}
 
 	/**
 	 * Checks if an IP address is banned
 	 * @param ip String - ip address
-	 * @return true/false
+	 * @return The ban list entry (address or wildcard) the IP matched, or null if not banned
 	 */
 	public static String checkBanned(String ip) throws UnknownHostException {
-		String query = "SELECT * FROM `" + mysql_db + "`.`banlist` WHERE (`expire` > ? OR `expire` = 0)";
-		try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
-			pst.setLong(1, new java.util.Date().getTime());
-			ResultSet r = pst.executeQuery();
-			while (r.next()) {
-				String decIP = r.getString("ip");
-				if (decIP.contains("*")) {
-					if (Functions.inRange(ip, decIP)) {
-						if (!checkWhitelisted(ip)) {
-							return decIP;
-						}
-					}
-				}
-				else if (decIP.equals(ip)) {
-					if (!checkWhitelisted(ip)) {
-						return decIP;
-					}
-				}
-			}
-		}  catch (SQLException e) {
-			e.printStackTrace();
-			logMessage(LOGLEVEL_IMPORTANT, "Could not check banlist");
-		}
+		IPIndex.Entry entry = getBanIndex().find(ip, System.currentTimeMillis());
+		if (entry != null && !checkWhitelisted(ip))
+			return entry.pattern;
 		return null;
 	}
 	
 	public static boolean checkWhitelisted(String ip) throws UnknownHostException {
-		String query = "SELECT * FROM `" + mysql_db + "`.`whitelist`";
-		try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
-			ResultSet r = pst.executeQuery();
-			while (r.next()) {
-				String decIP = r.getString("ip");
-				if (decIP.contains("*")) {
-					if (Functions.inRange(ip, decIP)) {
-						return true;
-					}
-				}
-				else if (decIP.equals(ip)) {
-					return true;
-				}
+		return getWhitelistIndex().find(ip, System.currentTimeMillis()) != null;
+	}
+
+	/**
+	 * Gets the ban list, loading it if it never was
+	 */
+	private static IPIndex getBanIndex() {
+		if (banIndex == null)
+			reloadIPLists();
+		return banIndex != null ? banIndex : IPIndex.EMPTY;
+	}
+
+	/**
+	 * Gets the white list, loading it if it never was
+	 */
+	private static IPIndex getWhitelistIndex() {
+		if (whitelistIndex == null)
+			reloadIPLists();
+		return whitelistIndex != null ? whitelistIndex : IPIndex.EMPTY;
+	}
+
+	/**
+	 * Reads the ban list and white list from the database into memory; if this
+	 * fails the lists we have are kept
+	 */
+	public static synchronized void reloadIPLists() {
+		String banQuery = "SELECT `ip`, `reason`, `expire` FROM `" + mysql_db + "`.`banlist`";
+		String whitelistQuery = "SELECT `ip`, `reason` FROM `" + mysql_db + "`.`whitelist`";
+		try (Connection con = getConnection()) {
+			ArrayList<IPIndex.Entry> bans = new ArrayList<>();
+			try (PreparedStatement pst = con.prepareStatement(banQuery)) {
+				ResultSet r = pst.executeQuery();
+				while (r.next())
+					bans.add(new IPIndex.Entry(r.getString("ip"), r.getString("reason"), r.getLong("expire")));
 			}
-		}  catch (SQLException e) {
+			ArrayList<IPIndex.Entry> whitelist = new ArrayList<>();
+			try (PreparedStatement pst = con.prepareStatement(whitelistQuery)) {
+				ResultSet r = pst.executeQuery();
+				while (r.next())
+					whitelist.add(new IPIndex.Entry(r.getString("ip"), r.getString("reason"), 0));
+			}
+			banIndex = new IPIndex(bans);
+			whitelistIndex = new IPIndex(whitelist);
+		} catch (SQLException e) {
 			e.printStackTrace();
-			logMessage(LOGLEVEL_IMPORTANT, "Could not check whitelist");
+			logMessage(LOGLEVEL_IMPORTANT, "Could not load the banlist and whitelist");
 		}
-		return false;
 	}
 	
 	public static boolean checkKnownIP(String ip) throws UnknownHostException {
@@ -362,20 +497,34 @@ public class MySQL {
 		logMessage(LOGLEVEL_NORMAL, "Handling account registration from " + hostname + ".");
 		// Query to check if the username already exists
 		String checkQuery = "SELECT `username` FROM " + mysql_db + ".`login` WHERE `username` = ?";
-		// Query to add entry to database
-		String executeQuery = "INSERT INTO " + mysql_db + ".`login` ( `username`, `password`, `level`, `activated`, `server_limit`, `remember_token` ) VALUES ( ?, ?, 1, 1, ?, null )";
-		try (Connection con = getConnection(); PreparedStatement cs = con.prepareStatement(checkQuery); PreparedStatement xs = con.prepareStatement(executeQuery)) {
+		try (Connection con = getConnection(); PreparedStatement cs = con.prepareStatement(checkQuery)) {
 			// Query and check if see if the username exists
 			cs.setString(1, hostname);
 			ResultSet r = cs.executeQuery();
 			// The username already exists!
-			if (r.next())
+			if (r.next()) {
 				bot.sendMessage(channel, "Account already exists!");
-			else {
+				return;
+			}
+		} catch (SQLException e) {
+			logMessage(LOGLEVEL_IMPORTANT, "ERROR: SQL_ERROR in 'registerAccount()'");
+			e.printStackTrace();
+			bot.sendMessage(channel, "There was an error registering your account.");
+			return;
+		}
+
+		// Hashing takes about a second, the account is added once it is done
+		bot.passwordHasher.hash(password).whenCompleteAsync((hash, error) -> {
+			if (error != null) {
+				sendHashError(error, channel, "There was an error registering your account.");
+				return;
+			}
+			// Query to add entry to database
+			String executeQuery = "INSERT INTO " + mysql_db + ".`login` ( `username`, `password`, `level`, `activated`, `server_limit`, `remember_token` ) VALUES ( ?, ?, 1, 1, ?, null )";
+			try (Connection con = getConnection(); PreparedStatement xs = con.prepareStatement(executeQuery)) {
 				// Prepare, bind & execute
 				xs.setString(1, hostname);
-				// Hash the PW with BCrypt
-				xs.setString(2, BCrypt.hashpw(password, BCrypt.gensalt(14)));
+				xs.setString(2, hash);
 				// Set default server limit
 				xs.setInt(3, bot.cfg_data.defaultlimit);
 				if (xs.executeUpdate() >= 1) {
@@ -386,12 +535,30 @@ public class MySQL {
 					bot.sendMessage(channel, "There was an error registering your account.");
 					bot.sendLogErrorMessage(bold(hostname) + " tried to register but there was a SQL error!");
 				}
+			} catch (SQLException e) {
+				logMessage(LOGLEVEL_IMPORTANT, "ERROR: SQL_ERROR in 'registerAccount()'");
+				e.printStackTrace();
+				bot.sendMessage(channel, "There was an error registering your account.");
 			}
-		} catch (SQLException e) {
-			logMessage(LOGLEVEL_IMPORTANT, "ERROR: SQL_ERROR in 'registerAccount()'");
-			e.printStackTrace();
-			bot.sendMessage(channel, "There was an error registering your account.");
+		}, writer);
+	}
+
+	/**
+	 * Tells the user their password could not be hashed
+	 * @param error Why it failed
+	 * @param channel Where to tell them
+	 * @param message What to say if it was not because we are busy
+	 */
+	private static void sendHashError(Throwable error, MessageChannel channel, String message) {
+		if (error instanceof CompletionException && error.getCause() != null)
+			error = error.getCause();
+		if (error instanceof RejectedExecutionException) {
+			bot.sendMessage(channel, "Too many passwords are being set right now, please try again in a minute.");
+			return;
 		}
+		logMessage(LOGLEVEL_IMPORTANT, "Could not hash a password: " + error);
+		error.printStackTrace();
+		bot.sendMessage(channel, message);
 	}
 
 	/**
@@ -405,33 +572,49 @@ public class MySQL {
 		logMessage(LOGLEVEL_NORMAL, "Password change request from " + channel + ".");
 		// Query to check if the username already exists
 		String checkQuery = "SELECT `username` FROM " + mysql_db + ".`login` WHERE `username` = ?";
-
-		// Query to update password
-		String executeQuery = "UPDATE " + mysql_db + ".`login` SET `password` = ? WHERE `username` = ?";
-		try (Connection con = getConnection(); PreparedStatement cs = con.prepareStatement(checkQuery); PreparedStatement xs = con.prepareStatement(executeQuery)) {
+		String username;
+		try (Connection con = getConnection(); PreparedStatement cs = con.prepareStatement(checkQuery)) {
 			// Query and check if see if the username exists
 			cs.setString(1, hostname);
 			ResultSet r = cs.executeQuery();
 
 			// The username doesn't exist!
-			if (!r.next())
+			if (!r.next()) {
 				bot.sendMessage(channel, "Username does not exist.");
-
-			else {
-				// Prepare, bind & execute
-				xs.setString(1, BCrypt.hashpw(password, BCrypt.gensalt(14)));
-				xs.setString(2, r.getString("username"));
-				if (xs.executeUpdate() >= 1)
-					bot.sendMessage(channel, "Successfully changed your password!");
-				else
-					bot.sendMessage(channel, "There was an error changing your password (executeUpdate error). Try again or contact an administrator with this message.");
+				return;
 			}
+			username = r.getString("username");
 		} catch (SQLException e) {
 			System.out.println("ERROR: SQL_ERROR in 'changePassword()'");
 			logMessage(LOGLEVEL_IMPORTANT, "SQL_ERROR in 'changePassword()'");
 			e.printStackTrace();
 			bot.sendMessage(channel, "There was an error changing your password account (thrown SQLException). Try again or contact an administrator with this message.");
+			return;
 		}
+
+		// Hashing takes about a second, the password is updated once it is done
+		bot.passwordHasher.hash(password).whenCompleteAsync((hash, error) -> {
+			if (error != null) {
+				sendHashError(error, channel, "There was an error changing your password. Try again or contact an administrator with this message.");
+				return;
+			}
+			// Query to update password
+			String executeQuery = "UPDATE " + mysql_db + ".`login` SET `password` = ? WHERE `username` = ?";
+			try (Connection con = getConnection(); PreparedStatement xs = con.prepareStatement(executeQuery)) {
+				// Prepare, bind & execute
+				xs.setString(1, hash);
+				xs.setString(2, username);
+				if (xs.executeUpdate() >= 1)
+					bot.sendMessage(channel, "Successfully changed your password!");
+				else
+					bot.sendMessage(channel, "There was an error changing your password (executeUpdate error). Try again or contact an administrator with this message.");
+			} catch (SQLException e) {
+				System.out.println("ERROR: SQL_ERROR in 'changePassword()'");
+				logMessage(LOGLEVEL_IMPORTANT, "SQL_ERROR in 'changePassword()'");
+				e.printStackTrace();
+				bot.sendMessage(channel, "There was an error changing your password account (thrown SQLException). Try again or contact an administrator with this message.");
+			}
+		}, writer);
 	}
 
 	/**
@@ -474,24 +657,25 @@ public class MySQL {
 	}
 
 	/**
-	 * Logs a server to the database
+	 * Logs a server to the database, the row is added in the background
 	 * @param servername String - the name of the server
 	 * @param unique_id String - the server's unique ID
 	 * @param username String - username of server host
 	 */
 	public static void logServer(String servername, String unique_id, String username) {
-		String query = "INSERT INTO `" + mysql_db + "`.`serverlog` (`unique_id`, `servername`, `username`, `date`) VALUES (?, ?, ?, NOW())";
-		try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
-			pst.setString(1, unique_id);
-			pst.setString(2, servername);
-			pst.setString(3, username);
-			pst.executeUpdate();
-			pst.close();
-		}
-		catch (SQLException e) {
-			Logger.logMessage(LOGLEVEL_IMPORTANT, "SQL Exception in logServer()");
-			e.printStackTrace();
-		}
+		writer.execute(() -> {
+			String query = "INSERT INTO `" + mysql_db + "`.`serverlog` (`unique_id`, `servername`, `username`, `date`) VALUES (?, ?, ?, NOW())";
+			try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
+				pst.setString(1, unique_id);
+				pst.setString(2, servername);
+				pst.setString(3, username);
+				pst.executeUpdate();
+			}
+			catch (SQLException e) {
+				Logger.logMessage(LOGLEVEL_IMPORTANT, "SQL Exception in logServer()");
+				e.printStackTrace();
+			}
+		});
 	}
 
 	/**
@@ -569,6 +753,7 @@ public class MySQL {
 			pst.setString(6, sender);
 			pst.setString(7, date);
 			if (pst.executeUpdate() == 1) {
+				addBanToIndex(ip, reason);
 				return true;
 			}
 		} catch (SQLException e) {
@@ -578,12 +763,23 @@ public class MySQL {
 		return false;
 	}
 	
+	/**
+	 * Puts a new ban in the in-memory ban list so it applies right away
+	 * @param ip String - the banned address or wildcard
+	 * @param reason String - the reason
+	 */
+	private static synchronized void addBanToIndex(String ip, String reason) {
+		IPIndex index = getBanIndex();
+		IPIndex.Entry old = index.get(ip);
+		banIndex = index.with(new IPIndex.Entry(ip, reason, old != null ? old.expire : 0));
+	}
+
 	/**
 	 * Adds an IP to the known IPs list so they don't need to get checked by IPIntel multiple times
 	 * @param ip String - ip to be added
 	 */
 	public static boolean addKnownIP(String ip) {
-		String query = "INSERT INTO `" + mysql_db + "`.`known_ips` (ip) VALUES (?)";
+		String query = "INSERT IGNORE INTO `" + mysql_db + "`.`checked_ips` (ip) VALUES (?)";
 		try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
 			pst.setString(1, ip);
 			if (pst.executeUpdate() == 1) {
@@ -596,57 +792,78 @@ public class MySQL {
 		return false;
 	}
 
-	public static boolean addServerToRecovery(Server server) { return true;
-		/* [DA] Recovery is broken, for some reason NPEs happen with no trace to debug. For now, it's disabled.
-		String query = "INSERT INTO `" + mysql_db + "`.`server_recovery` (`uid`, `hostcmd`, `port`, `owner`, `owner_nick`, `owner_hostname`, `node`) VALUES (?, ?, ?, ?, ?, ?, ?)";
+	/**
+	 * Saves a server so it is started again when the bot restarts, does nothing if recovery is disabled
+	 * @param server Server - the server to save
+	 * @return true if the server is saved
+	 */
+	public static boolean addServerToRecovery(Server server) {
+		if (!bot.cfg_data.bot_recover)
+			return false;
+		String query = "INSERT IGNORE INTO `" + mysql_db + "`.`server_recovery` (`uid`, `hostcmd`, `port`, `owner`, `owner_nick`, `owner_hostname`, `node`) VALUES (?, ?, ?, ?, ?, ?, ?)";
 		try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
 			pst.setString(1, server.server_id);
 			pst.setString(2, server.host_command);
-			pst.setInt(3, 10666);
-			pst.setString(4, Functions.getUserName(server.irc_hostname));
-			pst.setString(5, server.sender);
-			pst.setString(6, server.irc_hostname);
-			pst.setString(7, bot.cfg_data.irc_name);
+			pst.setInt(3, server.port);
+			pst.setString(4, server.userId);
+			pst.setString(5, server.sender != null ? server.sender : server.userId);
+			pst.setString(6, server.userId);
+			pst.setString(7, bot.cfg_data.node_name);
 			if (pst.executeUpdate() >= 1) {
 				bot.sendDebugMessage("Added server to recovery");
 				return true;
 			}
-			else
-				bot.sendLogErrorMessage("Failed to add server to recovery: " + server.server_id);
 		} catch (SQLException e) {
 			e.printStackTrace();
 			logMessage(LOGLEVEL_IMPORTANT, "Could not add server to recovery");
 		}
 		return false;
-		*/
 	}
-	
-	public static boolean removeServerFromRecovery(String server_id) { return true;
-		/* [DA] Recovery is broken, for some reason NPEs happen with no trace to debug. For now, it's disabled.
+
+	/**
+	 * Saves a server for recovery, the row is added in the background
+	 * @param server Server - the server to save
+	 */
+	public static void saveServerForRecovery(Server server) {
+		if (bot.cfg_data.bot_recover)
+			writer.execute(() -> addServerToRecovery(server));
+	}
+
+	/**
+	 * Forgets a saved server, does nothing if recovery is disabled
+	 * @param server_id String - the server's unique ID
+	 * @return true if the server was saved
+	 */
+	public static boolean removeServerFromRecovery(String server_id) {
+		if (!bot.cfg_data.bot_recover)
+			return false;
 		String query = "DELETE FROM `" + mysql_db + "`.`server_recovery` WHERE `uid`=? AND `node`=?";
 		try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
 			pst.setString(1, server_id);
-			pst.setString(2, bot.cfg_data.irc_name);
+			pst.setString(2, bot.cfg_data.node_name);
 			if (pst.executeUpdate() >= 1) {
 				bot.sendDebugMessage("Removed server from recovery");
 				return true;
 			}
-			else
-				bot.sendLogErrorMessage("Failed to remove server from recovery: " + server_id);
 		} catch (SQLException e) {
 			e.printStackTrace();
 			logMessage(LOGLEVEL_IMPORTANT, "Could not remove server from recovery");
 		}
 		return false;
-		*/
 	}
-	
-	public static boolean serverInRecovery(String server_id) { return false;
-		/* [DA] Recovery is broken, for some reason NPEs happen with no trace to debug. For now, it's disabled.
-		String query = "SELECT * FROM `" + mysql_db + "`.`server_recovery` WHERE `uid`=? AND `node`=?";
+
+	/**
+	 * Checks if a server is saved for recovery
+	 * @param server_id String - the server's unique ID
+	 * @return true if it is, false if not or recovery is disabled
+	 */
+	public static boolean serverInRecovery(String server_id) {
+		if (!bot.cfg_data.bot_recover)
+			return false;
+		String query = "SELECT 1 FROM `" + mysql_db + "`.`server_recovery` WHERE `uid`=? AND `node`=?";
 		try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
 			pst.setString(1, server_id);
-			pst.setString(2, bot.cfg_data.irc_name);
+			pst.setString(2, bot.cfg_data.node_name);
 			ResultSet r = pst.executeQuery();
 			if (r.next()) {
 				return true;
@@ -656,33 +873,36 @@ public class MySQL {
 			logMessage(LOGLEVEL_IMPORTANT, "Could not check if server is in recovery");
 		}
 		return false;
-		*/
 	}
-	
-	public static boolean clearRecovery() { return true;
-		/* [DA] Recovery is broken, for some reason NPEs happen with no trace to debug. For now, it's disabled.
+
+	/**
+	 * Forgets every server saved for this node
+	 * @return true if the saved servers were removed
+	 */
+	public static boolean clearRecovery() {
 		String query = "DELETE FROM `" + mysql_db + "`.`server_recovery` WHERE `node`=?";
 		try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
-			pst.setString(1, bot.cfg_data.irc_name);
-			if (pst.executeUpdate() >= 1) {
-				bot.sendDebugMessage("Cleared server recovery");
-				return true;
-			}
-			else
-				bot.sendLogErrorMessage("Failed to clear recovery");
+			pst.setString(1, bot.cfg_data.node_name);
+			pst.executeUpdate();
+			bot.sendDebugMessage("Cleared server recovery");
+			return true;
 		} catch (SQLException e) {
 			e.printStackTrace();
 			logMessage(LOGLEVEL_IMPORTANT, "Could not clear recovery");
 		}
 		return false;
-		*/
 	}
-	
-	public static boolean shouldRecover() { return false;
-		/* [DA] Recovery is broken, for some reason NPEs happen with no trace to debug. For now, it's disabled.
-		String query = "SELECT * FROM `" + mysql_db + "`.`server_recovery` WHERE `node`=?";
+
+	/**
+	 * Checks if there are servers to start again for this node
+	 * @return true if recovery is enabled and servers were saved
+	 */
+	public static boolean shouldRecover() {
+		if (!bot.cfg_data.bot_recover)
+			return false;
+		String query = "SELECT 1 FROM `" + mysql_db + "`.`server_recovery` WHERE `node`=? LIMIT 1";
 		try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
-			pst.setString(1, bot.cfg_data.irc_name);
+			pst.setString(1, bot.cfg_data.node_name);
 			ResultSet set = pst.executeQuery();
 			if (set.next()) {
 				bot.sendDebugMessage("Found servers to recover");
@@ -693,53 +913,41 @@ public class MySQL {
 			logMessage(LOGLEVEL_IMPORTANT, "Could not recover servers");
 		}
 		return false;
-		*/
 	}
-	
-	public static void doRecovery() { return;
-		/* [DA] Recovery is broken, for some reason NPEs happen with no trace to debug. For now, it's disabled.
-		String query = "SELECT * FROM `" + mysql_db + "`.`server_recovery` WHERE `node`=? ORDER BY owner ASC";
-		try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
-			pst.setString(1, bot.cfg_data.irc_name);
-			ResultSet set = pst.executeQuery();
-			bot.recovering = true;
-			int recovered = 0;
-			int failed = 0;
-			while (set.next()) {
-				String id = set.getString("uid");
-				String cmd = set.getString("hostcmd");
-				int port = set.getInt("port");
-				String owner = set.getString("owner");
-				String ownerNick = set.getString("owner_nick");
-				String ownerHostname = set.getString("owner_hostname");
-				Server s = Server.handleHostCommand(bot, bot.servers, bot.cfg_data.irc_channel, ownerNick, owner, cmd, MySQL.getLevel(owner), false, port, id, true);
-				String hostname = cmd;
-				Pattern regex = Pattern.compile("(\\w+)=\"*((?<=\")[^\"]+(?=\")|([^\\s]+))\"*");
-				Matcher m = regex.matcher(cmd);
-				while (m.find()) {
-					switch (m.group(1).toLowerCase()) {
-						case "hostname":
-							hostname = m.group(2);
-							break;
-					}
-				}
-				if (s != null) {
-					recovered++;
-				}
-				else {
-					failed++;
+
+	/**
+	 * Reads the servers saved for this node one row at a time. The rows are not
+	 * buffered, so the handler should be quick: the table is locked until the last row is read
+	 * @param handler Consumer - gets every saved server
+	 * @return How many servers were read, or -1 if the database could not be read
+	 */
+	public static int streamRecovery(Consumer<ServerRecovery.Entry> handler) {
+		String query = "SELECT `uid`, `hostcmd`, `port`, `owner` FROM `" + mysql_db + "`.`server_recovery` WHERE `node`=? ORDER BY `nid` ASC";
+		try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+			// The driver only streams a result set with this fetch size
+			pst.setFetchSize(Integer.MIN_VALUE);
+			pst.setString(1, bot.cfg_data.node_name);
+			int rows = 0;
+			try (ResultSet set = pst.executeQuery()) {
+				while (set.next()) {
+					handler.accept(new ServerRecovery.Entry(set.getString("uid"), set.getString("hostcmd"), set.getInt("port"), set.getString("owner")));
+					rows++;
 				}
 			}
-			bot.recovering = false;
-			bot.sendMessage(bot.cfg_data.irc_channel, "Recovered " + recovered + " server(s).");
-			if (failed > 0) { bot.sendMessage(bot.cfg_data.irc_channel, "Failed to recover " + failed + " server(s)."); }
-			return;
+			return rows;
 		} catch (SQLException e) {
 			e.printStackTrace();
 			logMessage(LOGLEVEL_IMPORTANT, "Error: Could not recover servers");
 		}
-		bot.recovering = false;
-		return;
-		*/
+		return -1;
+	}
+
+	/**
+	 * Starts the saved servers again in the background
+	 */
+	public static void doRecovery() {
+		Thread thread = new Thread(new ServerRecovery(bot), "ServerRecovery");
+		thread.setDaemon(true);
+		thread.start();
 	}
-}
\ No newline at end of file
+}
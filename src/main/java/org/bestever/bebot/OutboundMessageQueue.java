@@ -0,0 +1,192 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+
+package org.bestever.bebot;
+
+import com.mewna.catnip.entity.channel.MessageChannel;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Sends messages to Discord from its own thread; messages for the same channel
+ * that arrive close together are joined into one, and every channel is held to
+ * a few messages per second so we stay under the rate limits
+ */
+public class OutboundMessageQueue {
+
+	/**
+	 * The longest message Discord accepts
+	 */
+	public static final int MAX_MESSAGE_LENGTH = 2000;
+
+	/**
+	 * How long to wait for more messages before sending what we have
+	 */
+	private static final long COALESCE_MILLISECONDS = 250;
+
+	/**
+	 * How many messages a channel can send back to back
+	 */
+	private static final int BURST_SIZE = 5;
+
+	/**
+	 * How long it takes to earn one more message once the burst is used up
+	 */
+	private static final long REFILL_MILLISECONDS = 1000;
+
+	/**
+	 * Runs all the sending
+	 */
+	private final ScheduledExecutorService executor;
+
+	/**
+	 * The queue of every channel, keyed by channel ID
+	 */
+	private final Map<String, ChannelQueue> queues = new ConcurrentHashMap<>();
+
+	public OutboundMessageQueue() {
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "OutboundMessageQueue");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Queues a message, this never blocks
+	 * @param channel Where to send it
+	 * @param message The message
+	 */
+	public void send(MessageChannel channel, String message) {
+		if (message == null || message.isEmpty())
+			return;
+		queues.computeIfAbsent(channel.id(), id -> new ChannelQueue(channel)).add(message);
+	}
+
+	/**
+	 * Stops sending, anything not sent yet is dropped
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * The messages waiting for one channel and its rate limit
+	 */
+	private class ChannelQueue {
+
+		private final MessageChannel channel;
+
+		private final ArrayDeque<String> pending = new ArrayDeque<>();
+
+		/**
+		 * If a flush is already scheduled
+		 */
+		private boolean scheduled = false;
+
+		/**
+		 * Token bucket, how many messages we may send right now
+		 */
+		private double tokens = BURST_SIZE;
+
+		private long last_refill = System.currentTimeMillis();
+
+		ChannelQueue(MessageChannel channel) {
+			this.channel = channel;
+		}
+
+		synchronized void add(String message) {
+			pending.add(message);
+			if (!scheduled) {
+				scheduled = true;
+				executor.schedule(this::flush, COALESCE_MILLISECONDS, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		/**
+		 * Sends one batch if the rate limit allows it, and schedules itself
+		 * again while there is more to send
+		 */
+		private void flush() {
+			String batch;
+			synchronized (this) {
+				long wait = takeToken(System.currentTimeMillis());
+				if (wait > 0) {
+					executor.schedule(this::flush, wait, TimeUnit.MILLISECONDS);
+					return;
+				}
+				batch = nextBatch();
+				if (pending.isEmpty())
+					scheduled = false;
+				else
+					executor.execute(this::flush);
+			}
+			channel.sendMessage(batch).subscribe(
+					message -> { },
+					error -> logMessage(LOGLEVEL_IMPORTANT, "Could not send a message to channel " + channel.id() + ": " + error.getMessage())
+			);
+		}
+
+		/**
+		 * Takes as many pending messages as fit in one Discord message, splitting
+		 * any that are too long by themselves
+		 * @return The text to send
+		 */
+		private String nextBatch() {
+			StringBuilder batch = new StringBuilder();
+			while (!pending.isEmpty()) {
+				String next = pending.peek();
+				int room = MAX_MESSAGE_LENGTH - batch.length() - (batch.length() > 0 ? 1 : 0);
+				if (next.length() <= room) {
+					if (batch.length() > 0)
+						batch.append('\n');
+					batch.append(pending.poll());
+				} else {
+					if (batch.length() == 0) {
+						pending.poll();
+						batch.append(next, 0, MAX_MESSAGE_LENGTH);
+						pending.addFirst(next.substring(MAX_MESSAGE_LENGTH));
+					}
+					break;
+				}
+			}
+			return batch.toString();
+		}
+
+		/**
+		 * Takes a token from the bucket
+		 * @param now The current time
+		 * @return 0 if we got one, otherwise how many milliseconds until there is one
+		 */
+		private long takeToken(long now) {
+			tokens = Math.min(BURST_SIZE, tokens + (double) (now - last_refill) / REFILL_MILLISECONDS);
+			last_refill = now;
+			if (tokens >= 1) {
+				tokens -= 1;
+				return 0;
+			}
+			return (long) Math.ceil((1 - tokens) * REFILL_MILLISECONDS);
+		}
+	}
+}
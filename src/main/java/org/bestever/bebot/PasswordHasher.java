@@ -0,0 +1,127 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+
+package org.bestever.bebot;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.bestever.bebot.Logger.LOGLEVEL_DEBUG;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Hashes passwords with BCrypt on a few threads of its own. A hash takes about
+ * a second at the default cost, so it must not run on the threads that handle
+ * commands; how long each one takes is kept so the cost can be tuned
+ */
+public class PasswordHasher {
+
+	/**
+	 * How many passwords can wait for a thread, past that new ones are refused
+	 */
+	private static final int QUEUE_SIZE = 16;
+
+	/**
+	 * The BCrypt cost (log2 of the rounds)
+	 */
+	private final int cost;
+
+	private final ThreadPoolExecutor executor;
+
+	private final LongAdder hashes = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong();
+	private volatile long lastNanos = 0;
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * @param cost The BCrypt cost (log2 of the rounds), 4 to 30
+	 * @param threads How many passwords can be hashed at the same time
+	 */
+	public PasswordHasher(int cost, int threads) {
+		if (cost < 4 || cost > 30)
+			throw new IllegalArgumentException("BCrypt cost must be between 4 and 30, not " + cost);
+		this.cost = cost;
+		AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+			Thread thread = new Thread(r, "PasswordHasher-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			// Logins and commands matter more than how fast a registration goes through
+			thread.setPriority(Thread.NORM_PRIORITY - 1);
+			return thread;
+		});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Hashes a password with a new salt
+	 * @param password The password
+	 * @return The hash once it is done; fails with a RejectedExecutionException
+	 * if too many passwords are waiting already
+	 */
+	public CompletableFuture<String> hash(String password) {
+		CompletableFuture<String> result = new CompletableFuture<>();
+		try {
+			executor.execute(() -> {
+				try {
+					long start = System.nanoTime();
+					String hashed = BCrypt.hashpw(password, BCrypt.gensalt(cost));
+					record(System.nanoTime() - start);
+					result.complete(hashed);
+				} catch (Throwable e) {
+					result.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejected.increment();
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	/**
+	 * Stops the threads, passwords that are still waiting are never hashed
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private void record(long nanos) {
+		hashes.increment();
+		totalNanos.add(nanos);
+		maxNanos.accumulateAndGet(nanos, Math::max);
+		lastNanos = nanos;
+		logMessage(LOGLEVEL_DEBUG, () -> "Hashed a password in " + nanos / 1000000 + " ms (cost " + cost + ").");
+	}
+
+	/**
+	 * @return A line with the cost, how long hashing takes and how busy we are
+	 */
+	@Override
+	public String toString() {
+		long count = hashes.sum();
+		long average = count == 0 ? 0 : totalNanos.sum() / count / 1000000;
+		return "cost " + cost + ", " + count + " hashed, last " + lastNanos / 1000000 + " ms, average " + average
+				+ " ms, max " + maxNanos.get() / 1000000 + " ms, " + executor.getActiveCount() + " running, "
+				+ executor.getQueue().size() + " waiting, " + rejected.sum() + " refused";
+	}
+}
@@ -0,0 +1,151 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+
+package org.bestever.bebot;
+
+import java.util.BitSet;
+
+/**
+ * Hands out ports to servers. The ports our servers use are kept in a bitmap
+ * so finding a free one does not mean trying to bind every port in the range;
+ * only the chosen port is bind-checked in case something else on the machine
+ * took it, and ports found that way are skipped until we run out
+ */
+public class PortAllocator {
+
+	/**
+	 * First port we may use
+	 */
+	private final int minPort;
+
+	/**
+	 * One above the last port we may use
+	 */
+	private final int maxPort;
+
+	/**
+	 * Ports reserved for or used by our servers, bit 0 is minPort
+	 */
+	private final BitSet reserved;
+
+	/**
+	 * Ports we found taken by something else
+	 */
+	private final BitSet foreign;
+
+	/**
+	 * @param minPort First port to use
+	 * @param maxPort One above the last port to use
+	 */
+	public PortAllocator(int minPort, int maxPort) {
+		this.minPort = minPort;
+		this.maxPort = maxPort;
+		this.reserved = new BitSet(Math.max(0, maxPort - minPort));
+		this.foreign = new BitSet(Math.max(0, maxPort - minPort));
+	}
+
+	/**
+	 * Reserves a free port, the preferred one if we can
+	 * @param preferred The port to try first, 0 for the lowest free port
+	 * @return The port, or 0 if every port is taken
+	 */
+	public synchronized int reserve(int preferred) {
+		if (isInRange(preferred) && tryReserve(preferred - minPort))
+			return preferred;
+		int port = scan();
+		if (port == 0 && !foreign.isEmpty()) {
+			// Whatever held those ports may be gone by now, look at them again
+			foreign.clear();
+			port = scan();
+		}
+		return port;
+	}
+
+	/**
+	 * Reserves the port only if it is free, without falling back to another one
+	 * @param port The port
+	 * @return True if the port is now reserved
+	 */
+	public synchronized boolean reserveExact(int port) {
+		return isInRange(port) && tryReserve(port - minPort);
+	}
+
+	/**
+	 * Marks a port as used by one of our servers, for when a server ends up on
+	 * another port than the one it was given
+	 * @param port The port
+	 */
+	public synchronized void claim(int port) {
+		if (isInRange(port)) {
+			reserved.set(port - minPort);
+			foreign.clear(port - minPort);
+		}
+	}
+
+	/**
+	 * Gives a port back once the server on it stopped
+	 * @param port The port, ports out of range are ignored
+	 */
+	public synchronized void release(int port) {
+		if (isInRange(port))
+			reserved.clear(port - minPort);
+	}
+
+	/**
+	 * @return How many ports are reserved right now
+	 */
+	public synchronized int reservedCount() {
+		return reserved.cardinality();
+	}
+
+	private int scan() {
+		int size = maxPort - minPort;
+		for (int index = nextFree(0); index < size; index = nextFree(index + 1)) {
+			if (tryReserve(index))
+				return minPort + index;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return The first index from start that is neither ours nor known to be taken
+	 */
+	private int nextFree(int start) {
+		int index = reserved.nextClearBit(start);
+		while (foreign.get(index))
+			index = reserved.nextClearBit(foreign.nextClearBit(index));
+		return index;
+	}
+
+	/**
+	 * Reserves the port if it is free and nothing else has it bound
+	 */
+	private boolean tryReserve(int index) {
+		if (reserved.get(index))
+			return false;
+		if (!Functions.checkIfPortAvailable(minPort + index)) {
+			foreign.set(index);
+			return false;
+		}
+		reserved.set(index);
+		foreign.clear(index);
+		return true;
+	}
+
+	private boolean isInRange(int port) {
+		return port >= minPort && port < maxPort;
+	}
+}
@@ -0,0 +1,291 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+
+package org.bestever.bebot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.bestever.bebot.Logger.LOGLEVEL_CRITICAL;
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Reads the output of every server process on a few shared threads instead of
+ * a thread per server. Java cannot select on process pipes, so each thread
+ * goes over its processes and only reads what is already there, sleeping a
+ * little longer every time it finds nothing (up to {@link #MAX_IDLE_MILLISECONDS})
+ */
+public class ProcessReactor {
+
+	/**
+	 * Gets the output of one process
+	 */
+	public interface LineHandler {
+		/**
+		 * Called for every line the process prints, in order
+		 * @param line The line, without the line break
+		 * @return False to stop reading the process, processExited is not called then
+		 */
+		boolean lineRead(String line);
+
+		/**
+		 * Called once the process exited and all of its output was handled, or once
+		 * it was stopped because its output could not be read or handled
+		 */
+		void processExited();
+	}
+
+	/**
+	 * Longest a reader thread sleeps when there is no output
+	 */
+	private static final long MAX_IDLE_MILLISECONDS = 20;
+
+	/**
+	 * How much is read from a process at once
+	 */
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	/**
+	 * How long shutdown waits for the reader threads
+	 */
+	private static final long SHUTDOWN_TIMEOUT_MILLISECONDS = 5000;
+
+	private final Loop[] loops;
+
+	private volatile boolean threadTerminate = false;
+
+	/**
+	 * A process that is being read
+	 */
+	private static final class Watched {
+		final Process process;
+		final InputStream in;
+		final LineHandler handler;
+
+		/**
+		 * The start of a line we did not get the end of yet
+		 */
+		final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+
+		Watched(Process process, LineHandler handler) {
+			this.process = process;
+			this.in = process.getInputStream();
+			this.handler = handler;
+		}
+	}
+
+	/**
+	 * One reader thread and the processes it reads
+	 */
+	private final class Loop extends Thread {
+		private final ConcurrentLinkedQueue<Watched> added = new ConcurrentLinkedQueue<>();
+		private final List<Watched> watched = new ArrayList<>();
+		private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+		private final Charset charset = Charset.defaultCharset();
+		private final AtomicInteger size = new AtomicInteger();
+
+		Loop(int number) {
+			setName("ProcessReactor-" + number);
+			setDaemon(true);
+		}
+
+		void add(Watched w) {
+			size.incrementAndGet();
+			added.add(w);
+			LockSupport.unpark(this);
+		}
+
+		@Override
+		public void run() {
+			long idleMillis = 1;
+			while (!threadTerminate) {
+				Watched w;
+				while ((w = added.poll()) != null)
+					watched.add(w);
+
+				boolean readAnything = false;
+				for (int i = watched.size() - 1; i >= 0; i--) {
+					w = watched.get(i);
+					int result = poll(w);
+					if (result != 0)
+						readAnything = true;
+					if (result < 0) {
+						watched.remove(i);
+						size.decrementAndGet();
+					}
+				}
+
+				if (readAnything)
+					idleMillis = 1;
+				else {
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(idleMillis));
+					idleMillis = Math.min(idleMillis * 2, MAX_IDLE_MILLISECONDS);
+				}
+			}
+			for (Watched w : watched)
+				closeQuietly(w);
+		}
+
+		/**
+		 * Reads what the process printed without blocking
+		 * @param w The process
+		 * @return 1 if something was read, 0 if not, -1 if we are done with the process
+		 */
+		private int poll(Watched w) {
+			try {
+				int available = w.in.available();
+				if (available > 0) {
+					int read = w.in.read(buffer, 0, Math.min(available, buffer.length));
+					if (read > 0 && !dispatch(w, read)) {
+						closeQuietly(w);
+						return -1;
+					}
+					return 1;
+				}
+				if (w.process.isAlive())
+					return 0;
+				// It exited, read what is left (this won't block now) and say goodbye
+				int read;
+				while ((read = w.in.read(buffer)) > 0) {
+					if (!dispatch(w, read)) {
+						closeQuietly(w);
+						return -1;
+					}
+				}
+				if (w.partial.size() > 0 && !w.handler.lineRead(takeLine(w))) {
+					closeQuietly(w);
+					return -1;
+				}
+				closeQuietly(w);
+				exited(w);
+				return -1;
+			} catch (Exception e) {
+				logMessage(LOGLEVEL_CRITICAL, "Reading the output of process " + w.process.pid() + " failed, stopping it: " + e.getMessage());
+				e.printStackTrace();
+				closeQuietly(w);
+				// Nobody reads it any more, so stop it and let the handler clean up once it is gone
+				w.process.destroy();
+				w.process.onExit().thenRun(() -> exited(w));
+				return -1;
+			}
+		}
+
+		/**
+		 * Tells the handler the process exited, a handler that throws must not stop the thread
+		 * @param w The process
+		 */
+		private void exited(Watched w) {
+			try {
+				w.handler.processExited();
+			} catch (Exception e) {
+				logMessage(LOGLEVEL_CRITICAL, "Cleaning up after process " + w.process.pid() + " failed: " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * Splits what was read into lines and hands them to the handler
+		 * @param w The process
+		 * @param length How much of the buffer was filled
+		 * @return False if the handler does not want any more
+		 */
+		private boolean dispatch(Watched w, int length) {
+			int start = 0;
+			for (int i = 0; i < length; i++) {
+				if (buffer[i] == '\n') {
+					w.partial.write(buffer, start, i - start);
+					start = i + 1;
+					if (!w.handler.lineRead(takeLine(w)))
+						return false;
+				}
+			}
+			w.partial.write(buffer, start, length - start);
+			return true;
+		}
+
+		private String takeLine(Watched w) {
+			String line = w.partial.toString(charset);
+			w.partial.reset();
+			if (line.endsWith("\r"))
+				line = line.substring(0, line.length() - 1);
+			return line;
+		}
+	}
+
+	/**
+	 * Starts the reader threads
+	 * @param threads How many
+	 */
+	public ProcessReactor(int threads) {
+		loops = new Loop[threads];
+		for (int i = 0; i < threads; i++) {
+			loops[i] = new Loop(i);
+			loops[i].start();
+		}
+	}
+
+	/**
+	 * Starts reading the output of a process, on the thread that has the fewest
+	 * @param process The process, stderr should be redirected to stdout
+	 * @param handler Gets the lines
+	 */
+	public void register(Process process, LineHandler handler) {
+		if (threadTerminate)
+			throw new IllegalStateException("The process reactor was shut down");
+		Loop least = loops[0];
+		for (Loop loop : loops) {
+			if (loop.size.get() < least.size.get())
+				least = loop;
+		}
+		least.add(new Watched(process, handler));
+	}
+
+	/**
+	 * Stops every reader thread and closes the output of the processes that are
+	 * still running, waiting for the threads so no handler runs after this
+	 */
+	public void shutdown() {
+		threadTerminate = true;
+		for (Loop loop : loops) {
+			LockSupport.unpark(loop);
+			try {
+				loop.join(SHUTDOWN_TIMEOUT_MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (loop.isAlive())
+				logMessage(LOGLEVEL_IMPORTANT, loop.getName() + " did not stop in time");
+		}
+	}
+
+	private static void closeQuietly(Watched w) {
+		try {
+			w.in.close();
+		} catch (IOException e) {
+			// Nothing we can do, the process is gone anyway
+		}
+	}
+}
@@ -22,7 +22,9 @@ import java.io.File;
 import java.io.PrintWriter;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,6 +38,11 @@ public class Server {
 	 */
 	public boolean recovering;
 
+	/**
+	 * Completes with true once the server printed "UDP Initialized.", or with false if it stopped before that
+	 */
+	public final CompletableFuture<Boolean> startup = new CompletableFuture<>();
+
 	/**
 	 * Holds the temporary port
 	 */
@@ -263,13 +270,13 @@ public class Server {
 	 * thread which processes them one by one from the queue to prevent two servers
 	 * attempting to use the same port at the same time
 	 * @param botReference The reference to the running bot
-	 * @param servers The LinkedList of servers for us to add on a server if successful
+	 * @param servers The registry the server is added to once it starts
 	 * @param channel The channel it was sent from
 	 * @param hostname The hostname of the sender
 	 * @param message The message sent
 	 * @param userLevel
 	 */
-	public static Server handleHostCommand(Bot botReference, LinkedList<Server> servers, MessageChannel channel, String userId, String message, AccountType userLevel, boolean autoRestart, int port, String id, boolean recovering) {
+	public static Server handleHostCommand(Bot botReference, ServerRegistry servers, MessageChannel channel, String userId, String message, AccountType userLevel, boolean autoRestart, int port, String id, boolean recovering) {
 //		try { Thread.sleep(100); } catch (InterruptedException e) { e.printStackTrace(); }
 	
 		// Initialize server without linking it to the ArrayList
@@ -299,6 +306,9 @@ public class Server {
 		// can be changed later on in the code with a binary=... flag
 		server.version = botReference.versionParser.defaultVersion;
 
+		// Checks that need the database or the disk, they run side by side once the command is parsed
+		HostChecks checks = new HostChecks();
+
 		// Regex that will match key=value, as well as quotes key="value"
 		Pattern regex = Pattern.compile("(\\w+)=\"*((?<=\")[^\"]+(?=\")|([^\\s]+))\"*");
 		Matcher m = regex.matcher(message);
@@ -338,13 +348,13 @@ public class Server {
 						return null;
 					}
 					break;
-				case "config":
-					if (!server.checkConfig(server.bot.cfg_data.bot_cfg_directory_path + Functions.cleanInputFile(m.group(2).toLowerCase()))) {
-						server.bot.sendMessage(channel, "Config file '" + m.group(2) + "' does not exist.");
-						return null;
-					}
-					server.config = Functions.cleanInputFile(m.group(2).toLowerCase());
+				case "config": {
+					String configName = m.group(2);
+					String configPath = server.bot.cfg_data.bot_cfg_directory_path + Functions.cleanInputFile(configName.toLowerCase());
+					checks.add(() -> server.checkConfig(configPath) ? null : "Config file '" + configName + "' does not exist.");
+					server.config = Functions.cleanInputFile(configName.toLowerCase());
 					break;
+				}
 				case "data":
 				case "stdata":
 					server.enable_skulltag_data = handleTrue(m.group(2));
@@ -416,8 +426,6 @@ public class Server {
 						for (String wad : wadArray)
 							server.wads.add(wad);
 					}
-					if (!MySQL.checkHashes(server.wads.toArray(new String[wadArray.length])))
-						return null;
 					break;
 				case "optionalwad":
 				case "optwad":
@@ -432,42 +440,10 @@ public class Server {
 						for (String wad : wadArray2)
 							if(!server.optwads.contains(wad)) server.optwads.add(wad);
 					}
-					if (!MySQL.checkHashes(server.optwads.toArray(new String[wadArray2.length])))
-						return null;
 					break;
 			}
 		}
 
-		// Check if the wads exist
-		if (server.wads != null) {
-			for (int i = 0; i < server.wads.size(); i++) {
-				if (server.wads.get(i).startsWith("iwad:")) {
-					String tempWad = server.wads.get(i).split(":")[1];
-					if (!Functions.fileExists(server.bot.cfg_data.bot_iwad_directory_path + tempWad)) {
-						server.bot.sendMessage(channel, "File (iwad) '" + tempWad + "' does not exist!");
-						return null;
-					}
-					// Replace iwad: since we don't need it
-					else
-						server.wads.set(i, tempWad);
-				}
-				else if (!Functions.fileExists(server.bot.cfg_data.bot_wad_directory_path + server.wads.get(i))) {
-					server.bot.sendMessage(channel, "File '" + server.wads.get(i) + "' does not exist!");
-					return null;
-				}
-			}
-		}
-
-		// Check if the optional WADs exist
-		if (server.optwads != null) {
-			for (int i = 0; i < server.optwads.size(); i++) {
-				if (!Functions.fileExists(server.bot.cfg_data.bot_wad_directory_path + server.optwads.get(i))) {
-					server.bot.sendMessage(channel, "File '" + server.optwads.get(i) + "' does not exist!");
-					return null;
-				}
-			}
-		}
-
 		// Now that we've indexed the string, check to see if we have what we need to start a server
 		if (server.iwad == null) {
 			server.bot.sendMessage(channel, "You are missing an iwad, or have specified an incorrect iwad. You can add it by appending: iwad=your_iwad");
@@ -485,11 +461,52 @@ public class Server {
 	//		else { server.servername = server.iwad.replace(".wad","").replace(".pk3","").replace(".pk7","")+" "+server.gamemode+" hosted by "+server.irc_hostname; }
 		}
 
-		// Check if the global server limit has been reached
-		if (!recovering && Functions.getFirstAvailablePort(server.bot.getMinPort(), server.bot.getMaxPort()) == 0) {
+		// Check if the wads exist and are not blacklisted
+		ArrayList<String> hashed = new ArrayList<>();
+		for (int i = 0; i < server.wads.size(); i++) {
+			String wad = server.wads.get(i);
+			if (wad.startsWith("iwad:")) {
+				// Replace iwad: since we don't need it
+				String tempWad = wad.split(":")[1];
+				server.wads.set(i, tempWad);
+				String path = server.bot.cfg_data.bot_iwad_directory_path + tempWad;
+				checks.add(() -> Functions.fileExists(path) ? null : "File (iwad) '" + tempWad + "' does not exist!");
+			} else {
+				hashed.add(wad);
+				checks.add(() -> server.bot.wadCatalog.exists(wad) ? null : "File '" + wad + "' does not exist!");
+			}
+		}
+
+		// Check if the optional WADs exist
+		for (String wad : server.optwads) {
+			if (!hashed.contains(wad))
+				hashed.add(wad);
+			checks.add(() -> server.bot.wadCatalog.exists(wad) ? null : "File '" + wad + "' does not exist!");
+		}
+
+		// A blacklisted wad is reported to the core channel by checkHashes itself
+		if (!hashed.isEmpty()) {
+			String[] hashedArray = hashed.toArray(new String[0]);
+			checks.add(() -> MySQL.checkHashes(hashedArray) ? null : "");
+		}
+		checks.start();
+
+		// Reserve the port while the checks run, if there is none left the global server limit has been reached
+		int reservedPort = server.bot.portAllocator.reserve(server.temp_port);
+		if (reservedPort == 0) {
+			checks.cancel();
 			server.bot.sendMessage(channel, "Global server limit has been reached.");
 			return null;
 		}
+		server.temp_port = reservedPort;
+
+		String error = checks.await();
+		if (error != null) {
+			server.bot.portAllocator.release(reservedPort);
+			if (!error.isEmpty())
+				server.bot.sendMessage(channel, error);
+			return null;
+		}
 
 		// Generate the unique ID
 		if (id != null) {
@@ -500,6 +517,7 @@ public class Server {
 			} catch (NoSuchAlgorithmException e) {
 				logMessage(LOGLEVEL_CRITICAL, "Error generating MD5 hash!");
 				server.bot.sendMessage(channel, "Error generating MD5 hash. Please contact an administrator.");
+				server.bot.portAllocator.release(reservedPort);
 				return null;
 			}
 		}
@@ -622,6 +640,38 @@ public class Server {
 			return Integer.parseInt(skill);
 	}
 
+	/**
+	 * Gets the wads (optional ones too) a host command loads from the wad directory
+	 * @param message The host command
+	 * @return The names of the wads, without the iwad: ones
+	 */
+	static Set<String> getWads(String message) {
+		Set<String> wads = new LinkedHashSet<>();
+		Pattern regex = Pattern.compile("(\\w+)=\"*((?<=\")[^\"]+(?=\")|([^\\s]+))\"*");
+		Matcher m = regex.matcher(message);
+		while (m.find()) {
+			switch (m.group(1).toLowerCase()) {
+				case "wad":
+				case "file":
+				case "wads":
+				case "files":
+				case "optionalwad":
+				case "optwad":
+				case "opt":
+				case "optfile":
+				case "optionalwads":
+				case "optwads":
+				case "opts":
+				case "optfiles":
+					for (String wad : addWads(m.group(2)))
+						if (!wad.startsWith("iwad:"))
+							wads.add(wad);
+					break;
+			}
+		}
+		return wads;
+	}
+
 	/**
 	 * Returns an array of wads from a String
 	 * @param wad comma-seperated list of wads
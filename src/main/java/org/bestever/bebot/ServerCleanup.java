@@ -45,8 +45,9 @@ public class ServerCleanup extends TimerTask {
 		int killed = 0;
 		for (Server s : bot.servers) {
 			// Check if the server has been running for more than 3 days without activity
-			if (System.currentTimeMillis() - s.serverprocess.last_activity > Server.DAY_MILLISECONDS * bot.cfg_data.cleanup_interval) {
+			if (System.currentTimeMillis() - bot.statusPoller.getLastActivity(s) > Server.DAY_MILLISECONDS * bot.cfg_data.cleanup_interval) {
 				s.hide_stop_message = true;
+				s.being_killed = true;
 				s.killServer();
 				killed++;
 			}
@@ -0,0 +1,201 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+
+package org.bestever.bebot;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+
+/**
+ * The log file of one server. Lines are put in a bounded ring and the shared
+ * {@link LogWriter} thread writes them out in batches, so logging a line does
+ * not touch the disk; if the ring fills up the caller waits for the writer
+ */
+public class ServerLog {
+
+	/**
+	 * How many lines can wait to be written
+	 */
+	static final int CAPACITY = 4096;
+
+	/**
+	 * Stored in place of a time for text that is written as is
+	 */
+	private static final long NO_TIMESTAMP = -1;
+
+	/**
+	 * How long close() waits for the writer to finish the file
+	 */
+	private static final long CLOSE_TIMEOUT_MILLISECONDS = 10000;
+
+	private final LogWriter writer;
+
+	/**
+	 * Where the log goes, the writer may replace the file when it rotates
+	 */
+	final File file;
+
+	/**
+	 * The open file, only touched by the writer thread
+	 */
+	FileChannel channel;
+
+	/**
+	 * The ring of lines waiting to be written and when they were logged
+	 */
+	private final String[] lines = new String[CAPACITY];
+	private final long[] times = new long[CAPACITY];
+	private int head = 0;
+	private int count = 0;
+
+	/**
+	 * How many characters are waiting, to decide when it is worth writing
+	 */
+	private long pendingChars = 0;
+
+	/**
+	 * When the oldest waiting line was logged
+	 */
+	private long oldestMillis = 0;
+
+	private boolean closing = false;
+	private boolean closed = false;
+
+	ServerLog(LogWriter writer, File file, FileChannel channel) {
+		this.writer = writer;
+		this.file = file;
+		this.channel = channel;
+	}
+
+	/**
+	 * Logs a line with the current time in front of it
+	 * @param line The line, without the line break
+	 */
+	public void log(String line) {
+		append(System.currentTimeMillis(), line);
+	}
+
+	/**
+	 * Writes text as it is, without a time or line break
+	 * @param text The text
+	 */
+	public void write(String text) {
+		append(NO_TIMESTAMP, text);
+	}
+
+	private synchronized void append(long time, String text) {
+		while (count == CAPACITY && !closed) {
+			writer.wake();
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		if (closed || closing)
+			return;
+		int tail = (head + count) % CAPACITY;
+		lines[tail] = text;
+		times[tail] = time;
+		if (count++ == 0)
+			oldestMillis = System.currentTimeMillis();
+		pendingChars += text.length();
+		if (pendingChars >= LogWriter.FLUSH_CHARACTERS || count == CAPACITY)
+			writer.wake();
+	}
+
+	/**
+	 * Writes everything that is waiting and closes the file, returns once the
+	 * file is closed (or the writer took too long)
+	 */
+	public synchronized void close() {
+		if (closed)
+			return;
+		closing = true;
+		writer.wake();
+		long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLISECONDS;
+		long left;
+		while (!closed && (left = deadline - System.currentTimeMillis()) > 0) {
+			try {
+				wait(left);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Checks if the writer should write this log now
+	 * @param now The current time in ms
+	 * @return True if enough is waiting, it waited long enough or the log is closing
+	 */
+	synchronized boolean isDue(long now) {
+		if (closing)
+			return true;
+		if (count == 0)
+			return false;
+		return count == CAPACITY || pendingChars >= LogWriter.FLUSH_CHARACTERS
+				|| now - oldestMillis >= LogWriter.FLUSH_MILLISECONDS;
+	}
+
+	/**
+	 * Moves the waiting lines out of the ring and lets blocked callers go on
+	 * @param outLines Gets the lines, must hold CAPACITY
+	 * @param outTimes Gets the times, must hold CAPACITY
+	 * @return How many lines were taken
+	 */
+	synchronized int take(String[] outLines, long[] outTimes) {
+		int taken = count;
+		for (int i = 0; i < taken; i++) {
+			int index = (head + i) % CAPACITY;
+			outLines[i] = lines[index];
+			outTimes[i] = times[index];
+			lines[index] = null;
+		}
+		head = (head + taken) % CAPACITY;
+		count = 0;
+		pendingChars = 0;
+		if (taken > 0)
+			notifyAll();
+		return taken;
+	}
+
+	/**
+	 * @return True if close() was called and nothing is left to write
+	 */
+	synchronized boolean isFinished() {
+		return closing && count == 0;
+	}
+
+	/**
+	 * Called by the writer once the file is closed
+	 */
+	synchronized void markClosed() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Checks if a line was logged with a time in front
+	 * @param time The time stored with the line
+	 * @return True if it gets a timestamp
+	 */
+	static boolean hasTimestamp(long time) {
+		return time != NO_TIMESTAMP;
+	}
+}
@@ -16,28 +16,26 @@
 
 package org.bestever.bebot;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.net.UnknownHostException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static org.bestever.bebot.Bot.bold;
+import static org.bestever.bebot.Logger.LOGLEVEL_CRITICAL;
+import static org.bestever.bebot.Logger.logMessage;
 
 /**
  * This class is specifically for running the server only and notifying the
  * bot when the server is closed, or when to be terminated; nothing more
  */
-public class ServerProcess extends Thread {
+public class ServerProcess implements ProcessReactor.LineHandler {
 
 	/**
 	 * This contains the strings that will run in the process builder
@@ -55,6 +53,16 @@ public class ServerProcess extends Thread {
 	 */
 	private Process proc;
 
+	/**
+	 * Where the output of the server is logged
+	 */
+	private ServerLog log;
+
+	/**
+	 * Key of the page on the website that lists our wads
+	 */
+	private String wad_page_key;
+
 	/**
 	 * Used in determining when the last activity of the server was in ms
 	 */
@@ -217,10 +225,15 @@ public class ServerProcess extends Thread {
 		// Create a custom wadpage for us
 		server.wads.addAll(server.optwads);
 		server.wads = Functions.removeDuplicateWads(server.wads);
-		String key = MySQL.createWadPage(Functions.implode(server.wads, ","));
+		// The row is added once the process has started, only the key is needed now
+		try {
+			wad_page_key = Functions.generateHash();
+		} catch (NoSuchAlgorithmException e) {
+			logMessage(LOGLEVEL_CRITICAL, "Error generating MD5 hash!");
+		}
 
 		// Add the custom page to sv_website to avoid large wad list lookups
-		addParameter("+sv_website", server.bot.cfg_data.website_link + "/wadpage?key=" + key);
+		addParameter("+sv_website", server.bot.cfg_data.website_link + "/wadpage?key=" + wad_page_key);
 
 		addParameter("-host", "");
 
@@ -241,23 +254,16 @@ public class ServerProcess extends Thread {
 
 	/**
 	 * This method should be executed when the data is set up to initialize the
-	 * server. It will be bound to this thread. Upon server termination this
-	 * thread will also end. <br>
+	 * server. It starts the process and hands its output to the bot's process
+	 * reactor, which calls us back for every line and once the server exits. <br>
 	 * Note that this method takes care of adding it to the linked list, so you
 	 * don't have to.
 	 */
-	@Override
-	public void run() {
+	public void start() {
 		server.bot.sendDebugMessage("Attempting to start server.");
-//		try { Thread.sleep(10000); } catch (InterruptedException e) { e.printStackTrace(); }
-		String portNumber = ""; // This will hold the port number
-		String ipAddress = "";
-		File logFile, banlist, whitelist, adminlist;
-		String strLine, dateNow;
+		File banlist, whitelist, adminlist;
 		server.time_started = System.currentTimeMillis();
 		last_activity = System.currentTimeMillis(); // Last activity should be when we start
-		BufferedReader br = null;
-		BufferedWriter bw = null;
 		SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MMM-dd HH:mm:ss");
 		try {
 			// Ensure we have the files created
@@ -271,6 +277,9 @@ public class ServerProcess extends Thread {
 			if (!adminlist.exists())
 				createDirectoryAndFile(adminlist);
 
+			// Set up file/IO
+			log = server.bot.logWriter.open(new File(server.bot.cfg_data.bot_logfiledir, server.server_id + ".txt"));
+
 			server.bot.sendDebugMessage("Building process");
 			// Set up the server
 			ProcessBuilder pb = new ProcessBuilder(serverRunCommands.toArray(new String[0]));
@@ -279,28 +288,19 @@ public class ServerProcess extends Thread {
 			// Set our working directory
 			pb.directory(new File(server.bot.cfg_data.doom_executable_path));
 			proc = pb.start();
-			br = new BufferedReader(new InputStreamReader(proc.getInputStream()));
+			if (wad_page_key != null)
+				MySQL.createWadPage(wad_page_key, Functions.implode(server.wads, ","));
 
 			// Set up the input (with autoflush)
 			server.in = new PrintWriter(proc.getOutputStream(), true);
 
-			// Set up file/IO
-			logFile = new File(server.bot.cfg_data.bot_logfiledir, server.server_id + ".txt");
-			if (!logFile.exists()) {
-				createDirectoryAndFile(logFile);
-			}
-			bw = new BufferedWriter(new FileWriter(new File(server.bot.cfg_data.bot_logfiledir, server.server_id + ".txt"), true));
-			
-
-			bw.write("----------------------------------------------------------------\n");
-			bw.write(" Server started at " + formatter.format(Calendar.getInstance().getTime()) + "\n");
-			bw.write(" Owner: " + server.sender + "\n");
-			bw.write(" Service: " + server.bot.cfg_data.service_name + "\n");
-			bw.write(" Node: " + server.bot.cfg_data.node_name + "\n");
-			bw.write(" Hostline: " + serverRunCommands.toString().replaceAll("^\\[","").replaceAll("\\]$","").replace(", "," ") + "\n");
-			bw.write("----------------------------------------------------------------\n");
-			bw.flush();
-				
+			log.write("----------------------------------------------------------------\n");
+			log.write(" Server started at " + formatter.format(Calendar.getInstance().getTime()) + "\n");
+			log.write(" Owner: " + server.sender + "\n");
+			log.write(" Service: " + server.bot.cfg_data.service_name + "\n");
+			log.write(" Node: " + server.bot.cfg_data.node_name + "\n");
+			log.write(" Hostline: " + serverRunCommands.toString().replaceAll("^\\[","").replaceAll("\\]$","").replace(", "," ") + "\n");
+			log.write("----------------------------------------------------------------\n");
 
 			// Check if global RCON variable is set, or if the user has access to the RCON portion
 			// If either criteria is met, the user will be messaged the RCON password
@@ -309,223 +309,63 @@ public class ServerProcess extends Thread {
 			if (!this.server.recovering) {
 				server.bot.sendLogUserMessage(bold(server.sender) + " starts server '" + server.servername + "' with PID " + bold(""+getPid()) + " and UUID " + bold(server.server_id) + " - Log File: " + server.bot.cfg_data.static_link + "/logs/" + server.server_id + ".txt");
 			}
-			
-			// Process server while it outputs text
-			while ((strLine = br.readLine()) != null) {
-				String[] keywords = strLine.split(" ");
-				// Make sure to get the port [Server using alternate port 10666.]
-				if (strLine.startsWith("Server using alternate port ")) {
-					portNumber = strLine.replace("Server using alternate port ", "").replace(".", "").trim();
-					if (Functions.isNumeric(portNumber)) {
-						server.port = Integer.parseInt(portNumber);
-					} else
-						server.bot.sendMessage(server.channel, "Warning: port parsing error when setting up server [1]; contact an administrator.");
-
-				// If the port is used [NETWORK_Construct: Couldn't bind to 10666. Binding to 10667 instead...]
-				} else if (strLine.startsWith("NETWORK_Construct: Couldn't bind to ")) {
-					portNumber = strLine.replace("NETWORK_Construct: Couldn't bind to " + portNumber + ". Binding to ", "").replace(" instead...", "").trim();
-					if (Functions.isNumeric(portNumber)) {
-						server.port = Integer.parseInt(portNumber);
-					} else
-						server.bot.sendMessage(server.channel, "Warning: port parsing error when setting up server [2]; contact an administrator.");
-				}
-				if (strLine.startsWith("IP address ")) {
-					server.address = strLine.replace("IP address ", "").trim();
-				}
-				// If we see this, the server started
-				if (strLine.equalsIgnoreCase("UDP Initialized.")) {
-					server.bot.sendDebugMessage("Found \"UDP Initialized.\" in server output. Assuming the server started.");
-					try {
-						server.bot.servers.add(server);
-					} catch (Exception e) {
-						if (this.server.recovering)
-							System.out.println(server.sender+"'s server '" + server.servername + "' with UUID " + server.server_id + " was unable to be added to the linked list - Killing!");
-						else {
-							server.bot.sendMessage(server.channel, "Server '" + server.servername + "' was unable to be added to the server list and has been killed. Please contact an Administrator.");
-							server.bot.sendLogErrorMessage(bold(server.sender) + "'s server with UUID "+bold(server.server_id)+" was unable to be added to the server list - Killing!");
-						}
-						e.printStackTrace();
-						server.serverprocess.terminateServer();
-						server.hide_stop_message = true;
-						server.in.close();
-						return;
-					}
-					try {
-						server.bot.vSHashmap.get(server.version.name).add(server);
-					} catch (Exception e) {
-						if (this.server.recovering)
-							System.out.println(server.sender+"'s server '" + server.servername + "' with UUID " + server.server_id + " was unable to be added to the versions list");
-						else {
-							server.bot.sendLogErrorMessage(bold(server.sender) + "'s server with UUID "+bold(server.server_id)+" was unable to be added to the versions list");
-						}
-						e.printStackTrace();
-					}
-					if (!this.server.recovering) {
-//						if (!MySQL.serverInRecovery(server.server_id))
-//							MySQL.addServerToRecovery(server);
-						server.bot.sendLogServerMessage(bold(server.sender) + "'s server '" + server.servername + "' has been assigned port " + bold(""+server.port));
-						server.bot.sendMessage(server.channel, "Server '" + server.servername + "' started successfully on port " + server.port + "! zds://" + server.address + "/za");
-						server.bot.sendMessage(server.channel, "Server '" + server.servername + "' started successfully on port " + server.port + "! - To kill your server, in the channel " + server.bot.cfg_data.discord_channel + ", type .kill " + server.port);
-						server.bot.sendMessage(server.channel, "Your unique server ID is: " + server.server_id + ". You can view your logfile at " + server.bot.cfg_data.static_link + "/logs/" + server.server_id + ".txt");
-						server.bot.sendMessage(server.channel, "Your RCON password is "+server.rcon_password+". Your server's connect and join passwords are "+server.server_password+" if you have either of those enabled.");
-					}
-					else {
-						System.out.println("Server '" + server.servername + "' with UUID " + server.server_id + " started successfully on port " + server.port + "!");
-					}
-					this.server.recovering = false;
-				}
-
-				// Check for globally banned players
-				String name = null;
-				String ip = null;
-				Boolean skipipintel = false;
-				
-				// Reading "Player (IP) has connected." (3.0+)
-				// This only works in 3.0 as that version prints the IP of who connected within the connect string
-				Pattern pattern1 = Pattern.compile("(?:\\n|^)(?!CHAT )(.*?) \\(([0-9]{1,3}\\.[0-9]{1,3}\\.[0-9]{1,3}\\.[0-9]{1,3})\\:[0-9]{1,5}\\) has connected\\.$");
-				Matcher matcher1 = pattern1.matcher(strLine);
-				if (matcher1.find())
-				{
-					name = matcher1.group(1);
-					ip = matcher1.group(2);
-				}
-				/*
-				// Reading "Player has connected." (2.1.2-)
-				Pattern pattern2 = Pattern.compile("(?:\\n|^)(?!CHAT )(.*?) has connected\\.$");
-				Matcher matcher2 = pattern2.matcher(strLine);
-				if (matcher2.find())
-				{
-					server.in.flush(); server.in.println("getip " + Functions.escapeQuotes(matcher2.group(1).replace(" ","\\ "))+";\n");
-				}
 
-				// Reading GetIP Player
-				// This method is actually unreliable in vanilla 2.1.2 as multiple people can have the same name :/
-				// A custom binary that disallows duplicate names or shows the IP in the "has connected." line like in 3.0
-				// Once 3.0 is released as stable, this method will be removed.
-				Pattern pattern3 = Pattern.compile("(?:\\n|^)(?!CHAT )(.*?)'s IP is: ([0-9]{1,3}\\.[0-9]{1,3}\\.[0-9]{1,3}\\.[0-9]{1,3})\\:[0-9]{1,5}$");
-				Matcher matcher3 = pattern3.matcher(strLine);
-				if (matcher3.find())
-				{
-					name = matcher3.group(1);
-					ip = matcher3.group(2);
-				}
-				*/
-				// Reading PlayerInfo
-				Pattern pattern4 = Pattern.compile("(?:\\n|^)[0-9]{1,2}\\. (.*?) - IP ([0-9]{1,3}\\.[0-9]{1,3}\\.[0-9]{1,3}\\.[0-9]{1,3})\\:[0-9]{1,5}");
-				Matcher matcher4 = pattern4.matcher(strLine);
-				if (matcher4.find())
-				{
-					name = matcher4.group(1);
-					ip = matcher4.group(2);
-					skipipintel = true;
-				}
-				
-				// If we have an IP and a name, check if they are behind a proxy or are banned
-				if (name != null && ip != null) {
-					if (!MySQL.checkWhitelisted(ip)) {
-						if (server.bot.cfg_data.ipintel_enabled && !skipipintel)
-						{
-							IPIntel.query(ip, name, server);
-						}
-						String decIP = MySQL.checkBanned(ip);
-						String reason = MySQL.getBannedReason(decIP);
-						if (decIP != null)
-						{
-							server.bot.sendLogErrorMessage(bold(name)+" with ip "+bold(ip)+" was kicked from " + bold(server.sender) + "'s server on port "+bold(server.port)+" as they're globally banned with reason: " + bold(reason));
-							server.in.flush(); server.in.println("addban " + ip + " perm " + "\"\\ciBanned from all " + server.bot.cfg_data.service_short + " servers: " + reason + "\";\n");
-						}
-					}
-				}
-				
-				
-				// Check for Hostname changes
-				Pattern pattern5 = Pattern.compile("(?:\\n|^)-> sv_hostname\\s+(.+?)\\s*(?:\\(RCON|$)");
-				Matcher matcher5 = pattern5.matcher(strLine);
-				if (matcher5.find()) {
-					String old = server.servername;
-					server.servername = matcher5.group(1).replaceAll("^\"","").replaceAll("\"$","");
-					if (!Pattern.compile("(?:\\n|^)\\s*$").matcher(server.servername).find()) {
-						if (!old.equals(server.servername)) {
-							if (!AccountType.isAccountTypeOf(server.user_level, AccountType.VIP)) {
-								server.in.flush();
-								server.in.println("sv_hostname \"" + server.bot.cfg_data.bot_hostname_base + " " + Functions.escapeQuotes(server.servername) + "\";\n");
-							}
-							server.bot.sendMessage(server.channel, "Hostname for '%s' on port %d has been changed to: '%s'".formatted(old, server.port, server.servername));
-							server.bot.sendLogServerMessage("Hostname for " + bold(server.sender) + "'s server on port "+bold(server.port)+" has been changed to: "+bold(server.servername));
-						}
-					}
-				}
-
-				// Check for RCON password changes
-				Pattern pattern6 = Pattern.compile("(?:\\n|^)-> sv_rconpassword\\s+(.+?)\\s*(?:\\(RCON|$)");
-				Matcher matcher6 = pattern6.matcher(strLine);
-				if (matcher6.find()) {
-					String old = server.rcon_password;
-					server.rcon_password = matcher6.group(1);
-					if (!Pattern.compile("(?:\\n|^)\\s*$").matcher(server.rcon_password).find()) {
-						if (server.rcon_password.length() < 5) {
-							server.bot.sendMessage(server.channel, "RCON Password change for '%s' on port %d failed: Must be 5 or more characters!".formatted(server.servername, server.port));
-						}
-						else if (!old.equals(server.rcon_password)) {
-							server.bot.sendMessage(server.channel, "RCON Password for '%s' on port %d has been changed to: '%s'".formatted(server.servername, server.port, server.rcon_password));
-						}
-					}
-				}
-
-				// Check for Join password changes
-				Pattern pattern7 = Pattern.compile("(?:\\n|^)-> sv_joinpassword\\s+(.*?)\\s*(?:\\(RCON|$)");
-				Matcher matcher7 = pattern7.matcher(strLine);
-				if (matcher7.find()) {
-					String old = server.join_password;
-					server.join_password = matcher7.group(1);
-					if (!Pattern.compile("(?:\\n|^)\\s*$").matcher(server.join_password).find()) {
-						if (server.join_password.length() < 5) {
-							server.bot.sendMessage(server.channel, "Join Password change for '" + server.servername + "' on port " + server.port + " failed: Must be 5 or more characters!");
-						}
-						else if (!old.equals(server.join_password)) {
-							server.bot.sendMessage(server.channel, "Join Password for '" + server.servername + "' on port " + server.port + " has been changed to: '" + server.join_password + "'");
-						}
-					}
-				}
-
-				// Check for Connect password changes
-				Pattern pattern8 = Pattern.compile("(?:\\n|^)-> sv_password\\s+(.*?)\\s*(?:\\(RCON|$)");
-				Matcher matcher8 = pattern8.matcher(strLine);
-				if (matcher8.find()) {
-					String old = server.connect_password;
-					server.connect_password = matcher8.group(1);
-					if (!Pattern.compile("(?:\\n|^)\\s*$").matcher(server.connect_password).find()) {
-						if (server.connect_password.length() < 5) {
-							server.bot.sendMessage(server.channel, "Connect Password change for '" + server.servername + "' on port " + server.port + " failed: Must be 5 or more characters!");
-						}
-						else if (!old.equals(server.connect_password)) {
-							server.bot.sendMessage(server.channel, "Connect Password for '" + server.servername + "' on port " + server.port + " has been changed to: '" + server.connect_password + "'");
-						}
-					}
-				}
-
-				// If we have a player joining or leaving, mark this server as active
-				if (strLine.endsWith("joined the game."))
-					last_activity = System.currentTimeMillis();
+			// Process server while it outputs text
+			server.bot.processReactor.register(proc, this);
+		} catch (Exception e) {
+			reportException(e);
+			closeLog();
+			releasePorts();
+			server.startup.complete(false);
+		}
+	}
 
-				dateNow = formatter.format(Calendar.getInstance().getTime());
-				bw.write(dateNow + " " + strLine + "\n");
-				bw.flush();
+	/**
+	 * Handles a line of server output and logs it
+	 * @param line The line
+	 * @return False if we should stop reading the output
+	 */
+	@Override
+	public boolean lineRead(String line) {
+		try {
+			if (!handleConsoleEvent(ConsoleEvent.classify(line))) {
+				closeLog();
+				releasePorts();
+				server.startup.complete(false);
+				return false;
 			}
+			log.log(line);
+			return true;
+		} catch (Exception e) {
+			reportException(e);
+			closeLog();
+			releasePorts();
+			server.startup.complete(false);
+			return false;
+		}
+	}
+
+	/**
+	 * Cleans up after the server and tells the owner it stopped
+	 */
+	@Override
+	public void processExited() {
+		try {
 			server.bot.sendDebugMessage("Server possibly stopped.");
 			// Handle cleanup
-			dateNow = formatter.format(Calendar.getInstance().getTime());
 			long end = System.currentTimeMillis();
 			long uptime = end - server.time_started;
-			bw.write(dateNow + " Server stopped! Uptime was " + Functions.calculateTime(uptime));
+			log.log("Server stopped! Uptime was " + Functions.calculateTime(uptime));
 			server.in.close();
 
+			// A server that was killed on purpose should not come back after a restart
+			if (server.being_killed)
+				MySQL.removeServerFromRecovery(server.server_id);
+
 			// Notify the main channel if enabled
 			if (!server.hide_stop_message) {
 				if (server.port != 0) {
 					if (server.being_killed) {
-						if (MySQL.serverInRecovery(server.server_id))
-							MySQL.removeServerFromRecovery(server.server_id);
 						if (server.being_killed_by_owner) {
 							server.bot.sendMessage(server.channel, "Server '" + server.servername + "' on port " + server.port + " stopped! Server ran for " + Functions.calculateTime(uptime));
 						}
@@ -550,33 +390,238 @@ public class ServerProcess extends Thread {
 
 			// Remove from the Linked List
 			server.bot.removeServerFromLinkedList(this.server);
+		} catch (Exception e) {
+			reportException(e);
+		} finally {
+			closeLog();
+			releasePorts();
+			server.startup.complete(false);
+		}
+	}
+
+	/**
+	 * Gives the ports the server was given or ended up on back to the allocator
+	 */
+	private void releasePorts() {
+		server.bot.portAllocator.release(server.temp_port);
+		if (server.port != server.temp_port)
+			server.bot.portAllocator.release(server.port);
+	}
+
+	/**
+	 * Reports an exception that stopped us from handling the server
+	 * @param e The exception
+	 */
+	private void reportException(Exception e) {
+		StackTraceElement[] trace = e.getStackTrace();
+		server.bot.sendMessage(server.channel, "ERROR");
+		server.bot.sendDebugMessage("EXCEPTION - " + e.getMessage());
+		for (StackTraceElement element : trace)
+			server.bot.sendDebugMessage("TRACE - " + element.toString());
+		e.printStackTrace();
+		server.bot.removeServerFromLinkedList(this.server);
+	}
+
+	private void closeLog() {
+		try {
+			if (log != null)
+				log.close();
 		} catch (Exception e) {
 			StackTraceElement[] trace = e.getStackTrace();
-			server.bot.sendMessage(server.channel, "ERROR");
-			server.bot.sendDebugMessage("EXCEPTION - " + e.getMessage());
 			for (StackTraceElement element : trace)
 				server.bot.sendDebugMessage("TRACE - " + element.toString());
 			e.printStackTrace();
-			server.bot.removeServerFromLinkedList(this.server);
-		} finally {
-			try {
-				if (bw != null)
-					bw.close();
-			} catch (Exception e) {
-				StackTraceElement[] trace = e.getStackTrace();
-				for (StackTraceElement element : trace)
-					server.bot.sendDebugMessage("TRACE - " + element.toString());
-				e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Acts on a line of server output
+	 * @param event What the line was classified as
+	 * @return False if the server could not be added and was killed
+	 */
+	private boolean handleConsoleEvent(ConsoleEvent event) throws UnknownHostException {
+		switch (event.type) {
+			// Make sure to get the port [Server using alternate port 10666.]
+			case ALTERNATE_PORT:
+				if (Functions.isNumeric(event.value)) {
+					server.port = Integer.parseInt(event.value);
+					server.bot.portAllocator.claim(server.port);
+				} else
+					server.bot.sendMessage(server.channel, "Warning: port parsing error when setting up server [1]; contact an administrator.");
+				break;
+
+			// If the port is used [NETWORK_Construct: Couldn't bind to 10666. Binding to 10667 instead...]
+			case PORT_REBIND:
+				if (Functions.isNumeric(event.value)) {
+					server.port = Integer.parseInt(event.value);
+					server.bot.portAllocator.claim(server.port);
+				} else
+					server.bot.sendMessage(server.channel, "Warning: port parsing error when setting up server [2]; contact an administrator.");
+				break;
+
+			case IP_ADDRESS:
+				server.address = event.value;
+				break;
+
+			// If we see this, the server started
+			case UDP_INITIALIZED:
+				return serverStarted();
+
+			// Reading "Player (IP) has connected." (3.0+)
+			// This only works in 3.0 as that version prints the IP of who connected within the connect string
+			case PLAYER_CONNECTED:
+				checkPlayer(event.name, event.value, false);
+				break;
+
+			// Reading PlayerInfo
+			case PLAYER_INFO:
+				checkPlayer(event.name, event.value, true);
+				break;
+
+			case CVAR_CHANGED:
+				cvarChanged(event.name, event.value);
+				break;
+
+			// If we have a player joining or leaving, mark this server as active
+			case JOINED_GAME:
+				last_activity = System.currentTimeMillis();
+				break;
+
+			default:
+				break;
+		}
+		return true;
+	}
+
+	/**
+	 * Adds the server to the lists and tells the owner it is up
+	 * @return False if the server could not be added and was killed
+	 */
+	private boolean serverStarted() {
+		server.bot.sendDebugMessage("Found \"UDP Initialized.\" in server output. Assuming the server started.");
+		if (!server.bot.servers.add(server)) {
+			if (this.server.recovering)
+				System.out.println(server.sender+"'s server '" + server.servername + "' with UUID " + server.server_id + " was unable to be added to the linked list - Killing!");
+			else {
+				server.bot.sendMessage(server.channel, "Server '" + server.servername + "' was unable to be added to the server list and has been killed. Please contact an Administrator.");
+				server.bot.sendLogErrorMessage(bold(server.sender) + "'s server with UUID "+bold(server.server_id)+" was unable to be added to the server list - Killing!");
 			}
-			try {
-				if (br != null)
-					br.close();
-			} catch (Exception e) {
-				StackTraceElement[] trace = e.getStackTrace();
-				for (StackTraceElement element : trace)
-					server.bot.sendDebugMessage("TRACE - " + element.toString());
-				e.printStackTrace();
+			server.serverprocess.terminateServer();
+			server.hide_stop_message = true;
+			server.in.close();
+			return false;
+		}
+		if (!this.server.recovering) {
+			MySQL.saveServerForRecovery(server);
+			server.bot.sendLogServerMessage(bold(server.sender) + "'s server '" + server.servername + "' has been assigned port " + bold(""+server.port));
+			server.bot.sendMessage(server.channel, "Server '" + server.servername + "' started successfully on port " + server.port + "! zds://" + server.address + "/za");
+			server.bot.sendMessage(server.channel, "Server '" + server.servername + "' started successfully on port " + server.port + "! - To kill your server, in the channel " + server.bot.cfg_data.discord_channel + ", type .kill " + server.port);
+			server.bot.sendMessage(server.channel, "Your unique server ID is: " + server.server_id + ". You can view your logfile at " + server.bot.cfg_data.static_link + "/logs/" + server.server_id + ".txt");
+			server.bot.sendMessage(server.channel, "Your RCON password is "+server.rcon_password+". Your server's connect and join passwords are "+server.server_password+" if you have either of those enabled.");
+		}
+		else {
+			System.out.println("Server '" + server.servername + "' with UUID " + server.server_id + " started successfully on port " + server.port + "!");
+		}
+		this.server.recovering = false;
+		server.startup.complete(true);
+		return true;
+	}
+
+	/**
+	 * Checks if a player is behind a proxy or is globally banned
+	 * @param name The player name
+	 * @param ip The player IP
+	 * @param skipipintel True if the player was already checked when they connected
+	 */
+	private void checkPlayer(String name, String ip, boolean skipipintel) throws UnknownHostException {
+		if (MySQL.checkWhitelisted(ip))
+			return;
+		if (server.bot.cfg_data.ipintel_enabled && !skipipintel)
+		{
+			server.bot.ipIntel.query(ip, name, server);
+		}
+		String decIP = MySQL.checkBanned(ip);
+		if (decIP != null)
+		{
+			String reason = MySQL.getBannedReason(decIP);
+			server.bot.sendLogErrorMessage(bold(name)+" with ip "+bold(ip)+" was kicked from " + bold(server.sender) + "'s server on port "+bold(server.port)+" as they're globally banned with reason: " + bold(reason));
+			server.in.flush(); server.in.println("addban " + ip + " perm " + "\"\\ciBanned from all " + server.bot.cfg_data.service_short + " servers: " + reason + "\";\n");
+		}
+	}
+
+	/**
+	 * Keeps track of the cvars the owner may change from RCON
+	 * @param cvar The cvar name
+	 * @param value What it was set to
+	 */
+	private void cvarChanged(String cvar, String value) {
+		switch (cvar) {
+			// Check for Hostname changes
+			case "sv_hostname": {
+				if (value.isEmpty())
+					break;
+				String old = server.servername;
+				server.servername = value.replaceAll("^\"","").replaceAll("\"$","");
+				if (!server.servername.isBlank()) {
+					if (!old.equals(server.servername)) {
+						if (!AccountType.isAccountTypeOf(server.user_level, AccountType.VIP)) {
+							server.in.flush();
+							server.in.println("sv_hostname \"" + server.bot.cfg_data.bot_hostname_base + " " + Functions.escapeQuotes(server.servername) + "\";\n");
+						}
+						server.bot.sendMessage(server.channel, "Hostname for '%s' on port %d has been changed to: '%s'".formatted(old, server.port, server.servername));
+						server.bot.sendLogServerMessage("Hostname for " + bold(server.sender) + "'s server on port "+bold(server.port)+" has been changed to: "+bold(server.servername));
+					}
+				}
+				break;
+			}
+
+			// Check for RCON password changes
+			case "sv_rconpassword": {
+				if (value.isEmpty())
+					break;
+				String old = server.rcon_password;
+				server.rcon_password = value;
+				if (server.rcon_password.length() < 5) {
+					server.bot.sendMessage(server.channel, "RCON Password change for '%s' on port %d failed: Must be 5 or more characters!".formatted(server.servername, server.port));
+				}
+				else if (!old.equals(server.rcon_password)) {
+					server.bot.sendMessage(server.channel, "RCON Password for '%s' on port %d has been changed to: '%s'".formatted(server.servername, server.port, server.rcon_password));
+				}
+				break;
+			}
+
+			// Check for Join password changes
+			case "sv_joinpassword": {
+				String old = server.join_password;
+				server.join_password = value;
+				if (!server.join_password.isEmpty()) {
+					if (server.join_password.length() < 5) {
+						server.bot.sendMessage(server.channel, "Join Password change for '" + server.servername + "' on port " + server.port + " failed: Must be 5 or more characters!");
+					}
+					else if (!old.equals(server.join_password)) {
+						server.bot.sendMessage(server.channel, "Join Password for '" + server.servername + "' on port " + server.port + " has been changed to: '" + server.join_password + "'");
+					}
+				}
+				break;
+			}
+
+			// Check for Connect password changes
+			case "sv_password": {
+				String old = server.connect_password;
+				server.connect_password = value;
+				if (!server.connect_password.isEmpty()) {
+					if (server.connect_password.length() < 5) {
+						server.bot.sendMessage(server.channel, "Connect Password change for '" + server.servername + "' on port " + server.port + " failed: Must be 5 or more characters!");
+					}
+					else if (!old.equals(server.connect_password)) {
+						server.bot.sendMessage(server.channel, "Connect Password for '" + server.servername + "' on port " + server.port + " has been changed to: '" + server.connect_password + "'");
+					}
+				}
+				break;
 			}
+
+			default:
+				break;
 		}
 	}
 
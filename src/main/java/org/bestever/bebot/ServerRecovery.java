@@ -0,0 +1,326 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+
+package org.bestever.bebot;
+
+import com.mewna.catnip.entity.channel.MessageChannel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.bestever.bebot.Logger.LOGLEVEL_CRITICAL;
+import static org.bestever.bebot.Logger.LOGLEVEL_NORMAL;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Starts the servers that were running when the bot went down. The saved
+ * servers are streamed from the database and checked in batches (wads on
+ * disk and against the blacklist, saved ports still free) before anything
+ * is spawned, then started a few at a time: each server keeps its slot
+ * until it prints "UDP Initialized." or gives up. Progress goes to the log,
+ * the core channel only gets a summary at the end
+ */
+public final class ServerRecovery implements Runnable {
+
+	/**
+	 * A server saved for recovery
+	 */
+	public static final class Entry {
+		public final String server_id;
+		public final String host_command;
+		public final String owner;
+
+		/**
+		 * The port to start on, 0 if the saved one was taken in the meantime
+		 */
+		public int port;
+
+		public Entry(String server_id, String host_command, int port, String owner) {
+			this.server_id = server_id;
+			this.host_command = host_command;
+			this.port = port;
+			this.owner = owner;
+		}
+	}
+
+	/**
+	 * How many saved servers are checked together
+	 */
+	private static final int BATCH_SIZE = 32;
+
+	/**
+	 * How long a server may take to start before its slot goes to the next one, in milliseconds
+	 */
+	private static final long START_TIMEOUT = 60000;
+
+	/**
+	 * How often progress is logged, in milliseconds
+	 */
+	private static final long PROGRESS_INTERVAL = 10000;
+
+	/**
+	 * Tells the launcher there are no more servers
+	 */
+	private static final Entry END = new Entry(null, null, 0, null);
+
+	private final Bot bot;
+
+	/**
+	 * How many servers may be starting at the same time
+	 */
+	private final int parallel;
+
+	/**
+	 * One permit for every server that may be starting
+	 */
+	private final Semaphore starting;
+
+	/**
+	 * Servers that passed the checks, waiting for a slot
+	 */
+	private final BlockingQueue<Entry> ready = new LinkedBlockingQueue<>();
+
+	/**
+	 * Servers read from the database that have not been checked yet
+	 */
+	private final List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+
+	private final AtomicInteger saved = new AtomicInteger();
+	private final AtomicInteger launched = new AtomicInteger();
+	private final AtomicInteger started = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicInteger timed_out = new AtomicInteger();
+	private final AtomicInteger skipped = new AtomicInteger();
+	private final AtomicInteger moved = new AtomicInteger();
+	private final Set<String> missing_wads = Collections.synchronizedSet(new TreeSet<>());
+	private final Set<String> blacklisted_wads = Collections.synchronizedSet(new TreeSet<>());
+
+	private long start_time;
+	private volatile long last_progress;
+
+	public ServerRecovery(Bot bot) {
+		this.bot = bot;
+		this.parallel = Math.max(1, bot.cfg_data.bot_recover_parallel);
+		this.starting = new Semaphore(parallel);
+	}
+
+	@Override
+	public void run() {
+		MessageChannel channel = bot.getCoreChannel();
+		if (channel == null) {
+			logMessage(LOGLEVEL_CRITICAL, "Can't get core channel, servers were not recovered");
+			return;
+		}
+		start_time = last_progress = System.currentTimeMillis();
+
+		// Servers are started while the rest are still being read and checked
+		Thread launcher = new Thread(() -> launchAll(channel), "ServerRecovery-Launcher");
+		launcher.setDaemon(true);
+		launcher.start();
+
+		int rows = -1;
+		try {
+			rows = MySQL.streamRecovery(this::add);
+			check();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			logMessage(LOGLEVEL_CRITICAL, "Error while reading the servers to recover: " + e);
+		} finally {
+			// The launcher waits for this even if reading failed
+			ready.add(END);
+		}
+		try {
+			launcher.join();
+			// Wait for the servers that are still starting
+			while (!starting.tryAcquire(parallel, PROGRESS_INTERVAL, TimeUnit.MILLISECONDS))
+				progress();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		bot.sendMessageToCoreChannel(summary(rows));
+		logMessage(LOGLEVEL_NORMAL, "Server recovery finished: " + status());
+	}
+
+	/**
+	 * Takes a saved server from the database, a full batch is checked right away
+	 * @param entry The server
+	 */
+	private void add(Entry entry) {
+		saved.incrementAndGet();
+		batch.add(entry);
+		if (batch.size() >= BATCH_SIZE)
+			check();
+	}
+
+	/**
+	 * Checks the wads and ports of the batch in one go and passes the servers
+	 * that can be started to the launcher. The host command checks everything
+	 * again, this only keeps servers that can't start from taking a slot
+	 */
+	private void check() {
+		if (batch.isEmpty())
+			return;
+
+		// Every wad is looked up once, however many servers use it
+		List<Set<String>> wadsOf = new ArrayList<>(batch.size());
+		Set<String> wads = new HashSet<>();
+		for (Entry entry : batch) {
+			Set<String> entryWads = Server.getWads(entry.host_command);
+			wadsOf.add(entryWads);
+			wads.addAll(entryWads);
+		}
+		Set<String> missing = new HashSet<>();
+		for (String wad : wads)
+			if (!bot.wadCatalog.exists(wad))
+				missing.add(wad);
+		wads.removeAll(missing);
+		Map<String, WadBlacklist.Entry> blacklisted = wads.isEmpty() ? Collections.emptyMap() : MySQL.findBlacklisted(wads);
+		if (blacklisted == null)
+			blacklisted = Collections.emptyMap();
+
+		for (int i = 0; i < batch.size(); i++) {
+			Entry entry = batch.get(i);
+			boolean usable = true;
+			for (String wad : wadsOf.get(i)) {
+				if (missing.contains(wad)) {
+					missing_wads.add(wad);
+					usable = false;
+				} else if (blacklisted.containsKey(wad)) {
+					blacklisted_wads.add(wad);
+					usable = false;
+				}
+			}
+			if (!usable) {
+				skipped.incrementAndGet();
+				continue;
+			}
+			// Hold the saved port so a new server does not take it while this one waits for a slot
+			if (!bot.portAllocator.reserveExact(entry.port)) {
+				entry.port = 0;
+				moved.incrementAndGet();
+			}
+			ready.add(entry);
+		}
+		batch.clear();
+	}
+
+	/**
+	 * Starts the servers that passed the checks, no more than {@link #parallel} at a time
+	 * @param channel The channel the servers report to
+	 */
+	private void launchAll(MessageChannel channel) {
+		try {
+			Entry entry;
+			while ((entry = ready.take()) != END) {
+				while (!starting.tryAcquire(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS))
+					progress();
+				launch(entry, channel);
+				if (System.currentTimeMillis() - last_progress >= PROGRESS_INTERVAL)
+					progress();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			for (Entry entry : ready)
+				bot.portAllocator.release(entry.port);
+		}
+	}
+
+	/**
+	 * Runs the host command of a saved server, its slot is given back once it started or stopped
+	 * @param entry The server
+	 * @param channel The channel the server reports to
+	 */
+	private void launch(Entry entry, MessageChannel channel) {
+		launched.incrementAndGet();
+		// The host command reserves the port again
+		bot.portAllocator.release(entry.port);
+		Server server = null;
+		try {
+			server = Server.handleHostCommand(bot, bot.servers, channel, entry.owner, entry.host_command, bot.getRoleOf(entry.owner), false, entry.port, entry.server_id, true);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		if (server == null) {
+			failed.incrementAndGet();
+			starting.release();
+			return;
+		}
+		server.startup.copy().orTimeout(START_TIMEOUT, TimeUnit.MILLISECONDS).whenComplete((up, error) -> {
+			if (error != null)
+				timed_out.incrementAndGet();
+			else if (up)
+				started.incrementAndGet();
+			else
+				failed.incrementAndGet();
+			starting.release();
+		});
+	}
+
+	private void progress() {
+		last_progress = System.currentTimeMillis();
+		logMessage(LOGLEVEL_NORMAL, () -> "Recovering servers: " + status());
+	}
+
+	/**
+	 * @return How far the recovery got
+	 */
+	private String status() {
+		return started.get() + " started, " + failed.get() + " failed, " + timed_out.get() + " timed out, "
+				+ skipped.get() + " skipped, " + (launched.get() - started.get() - failed.get() - timed_out.get()) + " starting, "
+				+ ready.size() + " waiting of " + saved.get() + " saved";
+	}
+
+	/**
+	 * @param rows How many servers were read from the database, -1 if it could not be read
+	 * @return The message for the core channel
+	 */
+	private String summary(int rows) {
+		if (rows < 0 && saved.get() == 0)
+			return "Could not read the servers to recover from the database.";
+		StringBuilder sb = new StringBuilder();
+		sb.append("Recovered ").append(started.get()).append(" of ").append(saved.get()).append(" server(s) in ")
+				.append(Functions.calculateTime(System.currentTimeMillis() - start_time)).append(".");
+		if (failed.get() > 0)
+			sb.append(" ").append(failed.get()).append(" failed to start.");
+		if (timed_out.get() > 0)
+			sb.append(" ").append(timed_out.get()).append(" did not start within ").append(START_TIMEOUT / 1000).append(" seconds.");
+		if (skipped.get() > 0) {
+			sb.append(" ").append(skipped.get()).append(" skipped (");
+			if (!missing_wads.isEmpty())
+				sb.append("missing: ").append(String.join(", ", missing_wads));
+			if (!missing_wads.isEmpty() && !blacklisted_wads.isEmpty())
+				sb.append("; ");
+			if (!blacklisted_wads.isEmpty())
+				sb.append("blacklisted: ").append(String.join(", ", blacklisted_wads));
+			sb.append(").");
+		}
+		if (moved.get() > 0)
+			sb.append(" ").append(moved.get()).append(" could not get their old port back.");
+		if (rows < 0)
+			sb.append(" The rest could not be read from the database.");
+		return sb.toString();
+	}
+}
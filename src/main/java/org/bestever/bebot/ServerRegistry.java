@@ -0,0 +1,168 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+
+package org.bestever.bebot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every running server, looked up by port, owner or version. Servers come and
+ * go rarely compared to how often they are looked up, so every change builds a
+ * new immutable set of indexes and publishes it at once; readers never lock
+ * and iterating never sees the list change under it
+ */
+public class ServerRegistry implements Iterable<Server> {
+
+	/**
+	 * One consistent view of every index
+	 */
+	private static final class Snapshot {
+		static final Snapshot EMPTY = new Snapshot(new Server[0]);
+
+		final List<Server> all;
+		final int[] portKeys;
+		final Server[] portValues;
+		final int portMask;
+		final Map<String, List<Server>> byOwner = new HashMap<>();
+		final Map<String, List<Server>> byVersion = new HashMap<>();
+
+		Snapshot(Server[] servers) {
+			all = Collections.unmodifiableList(Arrays.asList(servers));
+
+			// Open addressing at under half full, ports are never 0 once a server is added
+			int capacity = Integer.highestOneBit(Math.max(8, servers.length * 2 + 1)) << 1;
+			portKeys = new int[capacity];
+			portValues = new Server[capacity];
+			portMask = capacity - 1;
+			for (Server server : servers) {
+				if (server.port > 0) {
+					int slot = slotOf(server.port);
+					portKeys[slot] = server.port;
+					portValues[slot] = server;
+				}
+				if (server.userId != null)
+					byOwner.computeIfAbsent(server.userId, k -> new ArrayList<>()).add(server);
+				if (server.version != null)
+					byVersion.computeIfAbsent(server.version.name, k -> new ArrayList<>()).add(server);
+			}
+		}
+
+		/**
+		 * @return The slot holding the port, or the empty slot it would go in
+		 */
+		int slotOf(int port) {
+			int slot = (port * 0x9E3779B9) >>> 16 & portMask;
+			while (portKeys[slot] != 0 && portKeys[slot] != port)
+				slot = (slot + 1) & portMask;
+			return slot;
+		}
+	}
+
+	private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+	/**
+	 * Adds a server, its port must be known by now
+	 * @param server The server
+	 * @return False if it was already added or another server has its port
+	 */
+	public synchronized boolean add(Server server) {
+		Snapshot current = snapshot;
+		if (current.all.contains(server) || (server.port > 0 && getByPort(server.port) != null))
+			return false;
+		Server[] servers = current.all.toArray(new Server[current.all.size() + 1]);
+		servers[servers.length - 1] = server;
+		snapshot = new Snapshot(servers);
+		return true;
+	}
+
+	/**
+	 * Removes a server
+	 * @param server The server, compared by reference
+	 * @return False if it was not here
+	 */
+	public synchronized boolean remove(Server server) {
+		Snapshot current = snapshot;
+		List<Server> servers = new ArrayList<>(current.all.size());
+		for (Server s : current.all) {
+			if (s != server)
+				servers.add(s);
+		}
+		if (servers.size() == current.all.size())
+			return false;
+		snapshot = new Snapshot(servers.toArray(new Server[0]));
+		return true;
+	}
+
+	/**
+	 * @param port The port
+	 * @return The server on the port, or null if there is none
+	 */
+	public Server getByPort(int port) {
+		if (port <= 0)
+			return null;
+		Snapshot current = snapshot;
+		return current.portValues[current.slotOf(port)];
+	}
+
+	/**
+	 * @param userId The owner
+	 * @return Their servers, in the order they were added (can't be changed)
+	 */
+	public List<Server> getByOwner(String userId) {
+		return unmodifiable(snapshot.byOwner.get(userId));
+	}
+
+	/**
+	 * @param version The version name
+	 * @return The servers running it, in the order they were added (can't be changed)
+	 */
+	public List<Server> getByVersion(String version) {
+		return unmodifiable(snapshot.byVersion.get(version));
+	}
+
+	/**
+	 * @return Every server at this moment, later changes don't show up in it
+	 */
+	public List<Server> snapshot() {
+		return snapshot.all;
+	}
+
+	public int size() {
+		return snapshot.all.size();
+	}
+
+	public boolean isEmpty() {
+		return snapshot.all.isEmpty();
+	}
+
+	/**
+	 * Iterates over the servers there were when this was called
+	 */
+	@Override
+	public Iterator<Server> iterator() {
+		return snapshot.all.iterator();
+	}
+
+	private static List<Server> unmodifiable(List<Server> servers) {
+		return servers == null ? Collections.emptyList() : Collections.unmodifiableList(servers);
+	}
+}
@@ -0,0 +1,205 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+
+package org.bestever.bebot;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bestever.serverquery.QueryManager;
+import org.bestever.serverquery.QueryResult;
+import org.bestever.serverquery.ServerQueryListener;
+import org.bestever.serverquery.ServerQueryRequest;
+
+import static org.bestever.bebot.Logger.LOGLEVEL_DEBUG;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Queries every hosted server over the launcher protocol now and then and
+ * keeps the latest reply of each; servers with people on them are polled
+ * more often than empty ones
+ */
+public class ServerStatusPoller extends TimerTask {
+
+	/**
+	 * How often the poller wakes up to see who is due
+	 */
+	public static final long TICK_MILLISECONDS = 5000;
+
+	/**
+	 * How often a server with people on it is polled
+	 */
+	private static final long BUSY_INTERVAL = 15000;
+
+	/**
+	 * How often an empty server is polled at first, this doubles every time
+	 * it is found empty again
+	 */
+	private static final long EMPTY_INTERVAL = 60000;
+
+	/**
+	 * The longest we wait between polls of an empty (or unreachable) server
+	 */
+	private static final long MAX_EMPTY_INTERVAL = 300000;
+
+	/**
+	 * Holds the bot
+	 */
+	private Bot bot;
+
+	/**
+	 * Where the queries are sent
+	 */
+	private QueryManager queryManager;
+
+	/**
+	 * The polling state of every server we know about
+	 */
+	private final Map<Server, ServerStatus> statuses = new ConcurrentHashMap<>();
+
+	/**
+	 * Constructor
+	 * @param bot Bot - the main bot object
+	 * @param queryManager The query manager to send the queries with
+	 */
+	public ServerStatusPoller(Bot bot, QueryManager queryManager) {
+		this.bot = bot;
+		this.queryManager = queryManager;
+	}
+
+	/**
+	 * Sends a query to every server that is due for one
+	 */
+	public void run() {
+		List<Server> current = bot.servers.snapshot();
+		statuses.keySet().retainAll(current);
+
+		long now = System.currentTimeMillis();
+		for (Server server : current) {
+			String host = hostOf(server);
+			if (host == null)
+				continue; // Not listening yet
+			ServerStatus status = statuses.computeIfAbsent(server, ServerStatus::new);
+			if (status.in_flight || now < status.next_poll)
+				continue;
+			status.in_flight = true;
+			if (!queryManager.addRequest(new ServerQueryRequest(host, server.port, status))) {
+				status.in_flight = false;
+				logMessage(LOGLEVEL_DEBUG, () -> "Query queue is full, not polling the server on port " + server.port + " this time.");
+			}
+		}
+	}
+
+	/**
+	 * Returns the latest reply of a server
+	 * @param server The server
+	 * @return The reply, or null if the server did not answer yet
+	 */
+	public QueryResult getResult(Server server) {
+		ServerStatus status = statuses.get(server);
+		return status == null ? null : status.result;
+	}
+
+	/**
+	 * Returns when people were last seen on the server; until the server has
+	 * answered a query this is what the server process saw on the console
+	 * @param server The server
+	 * @return A timestamp in milliseconds
+	 */
+	public long getLastActivity(Server server) {
+		ServerStatus status = statuses.get(server);
+		if (status == null || status.result == null)
+			return server.serverprocess.last_activity;
+		return status.last_activity;
+	}
+
+	/**
+	 * Gets the address the server can be queried on
+	 * @param server The server
+	 * @return The IP without the port, or null if the server has not told us yet
+	 */
+	private static String hostOf(Server server) {
+		if (server.address == null)
+			return null;
+		int colon = server.address.indexOf(':');
+		return colon < 0 ? server.address : server.address.substring(0, colon);
+	}
+
+	/**
+	 * What we know about one server, and when to ask it again
+	 */
+	private static class ServerStatus implements ServerQueryListener {
+
+		/**
+		 * The latest reply, null until the server answers
+		 */
+		volatile QueryResult result;
+
+		/**
+		 * When people were last seen on the server
+		 */
+		volatile long last_activity;
+
+		/**
+		 * When the server should be queried next
+		 */
+		volatile long next_poll;
+
+		/**
+		 * How long we waited since the last poll
+		 */
+		volatile long interval = EMPTY_INTERVAL;
+
+		/**
+		 * If a query was sent and not answered yet
+		 */
+		volatile boolean in_flight;
+
+		ServerStatus(Server server) {
+			this.last_activity = server.serverprocess.last_activity;
+		}
+
+		@Override
+		public void queryCompleted(ServerQueryRequest request, QueryResult result) {
+			long now = System.currentTimeMillis();
+			this.result = result;
+			if (result.num_players - Math.max(result.num_bots, 0) > 0) {
+				last_activity = now;
+				interval = BUSY_INTERVAL;
+			} else
+				backOff();
+			next_poll = now + interval;
+			in_flight = false;
+		}
+
+		@Override
+		public void queryFailed(ServerQueryRequest request, String reason) {
+			logMessage(LOGLEVEL_DEBUG, () -> "Polling the server on port " + request.getPort() + " failed: " + reason);
+			backOff();
+			next_poll = System.currentTimeMillis() + interval;
+			in_flight = false;
+		}
+
+		/**
+		 * Waits longer before the next poll, up to MAX_EMPTY_INTERVAL
+		 */
+		private void backOff() {
+			interval = interval < EMPTY_INTERVAL ? EMPTY_INTERVAL : Math.min(interval * 2, MAX_EMPTY_INTERVAL);
+		}
+	}
+}
@@ -0,0 +1,168 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+
+package org.bestever.bebot;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An immutable set of blacklisted MD5 hashes. Each hash is kept as two longs
+ * in an open addressing table, so checking a wad is one probe with no strings
+ * or database involved
+ */
+public final class WadBlacklist {
+
+	/**
+	 * One row of the blacklist
+	 */
+	public static final class Entry {
+
+		/**
+		 * The name it was blacklisted under
+		 */
+		public final String name;
+
+		/**
+		 * Why it was blacklisted
+		 */
+		public final String reason;
+
+		/**
+		 * The hash as stored in the database
+		 */
+		public final String md5;
+
+		public Entry(String name, String reason, String md5) {
+			this.name = name;
+			this.reason = reason;
+			this.md5 = md5;
+		}
+	}
+
+	/**
+	 * The high and low halves of every hash, a slot is empty when its value is null
+	 */
+	private final long[] hash_high;
+	private final long[] hash_low;
+	private final Entry[] values;
+
+	private final int count;
+
+	/**
+	 * Builds the set, rows without a valid hash are skipped
+	 * @param list The rows, the first row with a given hash wins
+	 */
+	public WadBlacklist(Collection<Entry> list) {
+		List<Entry> valid = new ArrayList<>(list.size());
+		for (Entry entry : list)
+			if (entry.md5 != null && parseHex(entry.md5, 0) != null)
+				valid.add(entry);
+
+		int capacity = Integer.highestOneBit(Math.max(valid.size(), 4) * 2 - 1) << 1;
+		hash_high = new long[capacity];
+		hash_low = new long[capacity];
+		values = new Entry[capacity];
+		int added = 0;
+		for (Entry entry : valid) {
+			long high = parseHex(entry.md5, 0);
+			long low = parseHex(entry.md5, 16);
+			int slot = findSlot(high, low);
+			if (values[slot] == null) {
+				hash_high[slot] = high;
+				hash_low[slot] = low;
+				values[slot] = entry;
+				added++;
+			}
+		}
+		count = added;
+	}
+
+	/**
+	 * Finds the blacklist row for a hash
+	 * @param md5 The 16 byte digest
+	 * @return The row, or null if the hash is not blacklisted
+	 */
+	public Entry find(byte[] md5) {
+		if (md5 == null || md5.length != 16)
+			return null;
+		return values[findSlot(toLong(md5, 0), toLong(md5, 8))];
+	}
+
+	/**
+	 * Finds the blacklist row for a hash
+	 * @param md5 The hash as 32 hex digits
+	 * @return The row, or null if the hash is not blacklisted or not valid
+	 */
+	public Entry find(String md5) {
+		if (md5 == null)
+			return null;
+		Long high = parseHex(md5, 0);
+		Long low = parseHex(md5, 16);
+		if (high == null || low == null)
+			return null;
+		return values[findSlot(high, low)];
+	}
+
+	/**
+	 * @return How many distinct hashes there are
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Gets the slot that holds the hash, or the empty slot where it would go
+	 */
+	private int findSlot(long high, long low) {
+		int mask = values.length - 1;
+		long h = (high ^ low) * 0x9E3779B97F4A7C15L;
+		int slot = (int) (h ^ (h >>> 32)) & mask;
+		while (values[slot] != null && (hash_high[slot] != high || hash_low[slot] != low))
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/**
+	 * Reads eight bytes big endian
+	 */
+	private static long toLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 8; i++)
+			value = (value << 8) | (bytes[i] & 0xFF);
+		return value;
+	}
+
+	/**
+	 * Reads sixteen hex digits
+	 * @param hex The whole hash, must be 32 digits
+	 * @param offset Where to start
+	 * @return The value, or null if it is not a hash
+	 */
+	private static Long parseHex(String hex, int offset) {
+		if (hex.length() != 32)
+			return null;
+		long value = 0;
+		for (int i = offset; i < offset + 16; i++) {
+			int digit = Character.digit(hex.charAt(i), 16);
+			if (digit < 0)
+				return null;
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+}
@@ -0,0 +1,537 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+
+package org.bestever.bebot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.bestever.bebot.Logger.LOGLEVEL_DEBUG;
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.LOGLEVEL_NORMAL;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Knows the hashes, lump count and maps of every file in the wad directory so
+ * host commands don't have to touch the disk. Files are indexed in the
+ * background when they show up or change, and what we learned is appended to
+ * an index file so a restart only has to look at files whose size or
+ * modification time changed
+ */
+public class WadCatalog {
+
+	/**
+	 * What we know about one file
+	 */
+	public static final class Entry {
+		public final String name;
+		public final long size;
+		public final long modified;
+
+		/**
+		 * Number of lumps if it is a wad, -1 if it is not
+		 */
+		public final int lumpCount;
+
+		private final byte[] md5;
+		private final byte[] sha256;
+		private final List<String> maps;
+
+		Entry(String name, long size, long modified, byte[] md5, byte[] sha256, int lumpCount, List<String> maps) {
+			this.name = name;
+			this.size = size;
+			this.modified = modified;
+			this.md5 = md5;
+			this.sha256 = sha256;
+			this.lumpCount = lumpCount;
+			this.maps = Collections.unmodifiableList(maps);
+		}
+
+		public byte[] getMd5() {
+			return md5.clone();
+		}
+
+		public String getMd5Hex() {
+			return toHex(md5);
+		}
+
+		public String getSha256Hex() {
+			return toHex(sha256);
+		}
+
+		/**
+		 * @return The maps in the wad, or in the maps/ folder of a pk3
+		 */
+		public List<String> getMaps() {
+			return maps;
+		}
+
+		boolean matches(BasicFileAttributes attributes) {
+			return size == attributes.size() && modified == attributes.lastModifiedTime().toMillis();
+		}
+	}
+
+	private static final int INDEX_MAGIC = 0x57434154; // WCAT
+	private static final int INDEX_VERSION = 1;
+	private static final byte RECORD_ENTRY = 1;
+	private static final byte RECORD_REMOVED = 2;
+
+	/**
+	 * How long a file has to stay unchanged before we index it, so uploads
+	 * in progress are not hashed over and over
+	 */
+	private static final long SETTLE_MILLISECONDS = 2000;
+
+	private static final int HASH_BUFFER_SIZE = 256 * 1024;
+
+	private final Path directory;
+
+	/**
+	 * Where the index is kept, null to keep it in memory only
+	 */
+	private final Path indexFile;
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * Does all the indexing and writes the index file, so those need no locking
+	 */
+	private final ScheduledExecutorService executor;
+
+	/**
+	 * Indexing that is waiting for a file to settle, by file name
+	 */
+	private final Map<String, ScheduledFuture<?>> pending = new ConcurrentHashMap<>();
+
+	private DataOutputStream indexOut;
+
+	/**
+	 * Records in the index file, to know when it is worth compacting
+	 */
+	private int indexRecords = 0;
+
+	private WatchService watcher;
+
+	/**
+	 * @param directory The wad directory
+	 * @param indexFile Where to keep the index, null or empty to not keep one
+	 */
+	public WadCatalog(String directory, String indexFile) {
+		this.directory = Paths.get(directory);
+		this.indexFile = indexFile == null || indexFile.isEmpty() ? null : Paths.get(indexFile);
+		this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "WadCatalog");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Loads the index, starts watching the directory and catches up with
+	 * what changed while we were not running
+	 */
+	public void start() {
+		try {
+			watcher = directory.getFileSystem().newWatchService();
+			directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+			Thread thread = new Thread(this::watch, "WadCatalogWatcher");
+			thread.setDaemon(true);
+			thread.start();
+		} catch (IOException e) {
+			logMessage(LOGLEVEL_IMPORTANT, "Could not watch the wad directory, new wads will be indexed when they are first used: " + e.getMessage());
+		}
+		executor.execute(() -> {
+			loadIndex();
+			scan();
+		});
+	}
+
+	/**
+	 * @param name The file name
+	 * @return What we know about the file, or null if it is not indexed (yet)
+	 */
+	public Entry get(String name) {
+		return entries.get(name);
+	}
+
+	/**
+	 * Checks if a file is in the wad directory. Files we did not see yet are
+	 * looked for on disk and queued for indexing
+	 * @param name The file name
+	 * @return True if it exists
+	 */
+	public boolean exists(String name) {
+		if (entries.containsKey(name))
+			return true;
+		Path file = fileOf(name);
+		if (file == null || !Files.isRegularFile(file))
+			return false;
+		schedule(name, 0);
+		return true;
+	}
+
+	/**
+	 * Gets the file a name stands for, names come from users so they must not leave the wad directory
+	 * @param name The file name
+	 * @return The file, or null if the name is not of a file right in the wad directory
+	 */
+	private Path fileOf(String name) {
+		if (name.isEmpty() || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0)
+			return null;
+		try {
+			Path file = directory.resolve(name).normalize();
+			return directory.normalize().equals(file.getParent()) ? file : null;
+		} catch (InvalidPathException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param name The file name
+	 * @return The maps in the file, or null if it is not indexed (yet)
+	 */
+	public List<String> getMaps(String name) {
+		Entry entry = entries.get(name);
+		return entry == null ? null : entry.getMaps();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Stops watching and indexing
+	 */
+	public void shutdown() {
+		try {
+			if (watcher != null)
+				watcher.close();
+		} catch (IOException e) {
+			// We are stopping anyway
+		}
+		executor.shutdownNow();
+	}
+
+	private void watch() {
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						executor.execute(this::scan);
+						continue;
+					}
+					String name = event.context().toString();
+					if (name.startsWith("."))
+						continue;
+					schedule(name, event.kind() == StandardWatchEventKinds.ENTRY_DELETE ? 0 : SETTLE_MILLISECONDS);
+				}
+				if (!key.reset()) {
+					logMessage(LOGLEVEL_IMPORTANT, "The wad directory can no longer be watched");
+					return;
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// Shutting down
+		}
+	}
+
+	/**
+	 * Indexes a file after a delay, a later call for the same file replaces it
+	 */
+	private void schedule(String name, long delayMilliseconds) {
+		pending.compute(name, (k, old) -> {
+			if (old != null)
+				old.cancel(false);
+			return executor.schedule(() -> index(k), delayMilliseconds, TimeUnit.MILLISECONDS);
+		});
+	}
+
+	/**
+	 * Brings the catalog in line with the directory, only files that changed are indexed again
+	 */
+	private void scan() {
+		Set<String> seen = new HashSet<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				if (name.startsWith("."))
+					continue;
+				BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+				if (!attributes.isRegularFile())
+					continue;
+				seen.add(name);
+				Entry entry = entries.get(name);
+				if (entry == null || !entry.matches(attributes))
+					index(name);
+			}
+		} catch (IOException e) {
+			logMessage(LOGLEVEL_IMPORTANT, "Could not list the wad directory: " + e.getMessage());
+			return;
+		}
+		for (String name : entries.keySet()) {
+			if (!seen.contains(name))
+				remove(name);
+		}
+		logMessage(LOGLEVEL_NORMAL, "Wad catalog has " + entries.size() + " files");
+		if (indexRecords > Math.max(64, entries.size() * 2))
+			compactIndex();
+	}
+
+	/**
+	 * Hashes and inspects a file, only runs on the executor
+	 */
+	private void index(String name) {
+		Path file = fileOf(name);
+		if (file == null)
+			return;
+		try {
+			BasicFileAttributes before = Files.readAttributes(file, BasicFileAttributes.class);
+			if (!before.isRegularFile()) {
+				remove(name);
+				return;
+			}
+			Entry old = entries.get(name);
+			if (old != null && old.matches(before))
+				return;
+
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+				while (channel.read(buffer) >= 0) {
+					buffer.flip();
+					md5.update(buffer.array(), 0, buffer.limit());
+					sha256.update(buffer.array(), 0, buffer.limit());
+					buffer.clear();
+				}
+			}
+
+			int lumpCount = -1;
+			List<String> maps = Collections.emptyList();
+			String lower = name.toLowerCase();
+			try {
+				if (lower.endsWith(".pk3") || lower.endsWith(".zip")) {
+					maps = DoomFile.getPK3MapList(file.toString());
+				} else if (lower.endsWith(".wad")) {
+					DoomFile wad = new DoomFile(file.toString());
+					lumpCount = wad.headerTotalLumps;
+					maps = Arrays.asList(wad.levelNames);
+				}
+			} catch (IOException | RuntimeException e) {
+				logMessage(LOGLEVEL_DEBUG, () -> "Could not read the contents of " + name + ": " + e.getMessage());
+			}
+
+			BasicFileAttributes after = Files.readAttributes(file, BasicFileAttributes.class);
+			if (after.size() != before.size() || !after.lastModifiedTime().equals(before.lastModifiedTime())) {
+				// Still being written, try again once it settles
+				schedule(name, SETTLE_MILLISECONDS);
+				return;
+			}
+			Entry entry = new Entry(name, before.size(), before.lastModifiedTime().toMillis(), md5.digest(), sha256.digest(), lumpCount, maps);
+			entries.put(name, entry);
+			appendEntry(entry);
+		} catch (IOException e) {
+			if (Files.exists(file))
+				logMessage(LOGLEVEL_IMPORTANT, "Could not index " + name + ": " + e.getMessage());
+			else
+				remove(name);
+		} catch (NoSuchAlgorithmException e) {
+			logMessage(LOGLEVEL_IMPORTANT, "Could not index " + name + ": " + e.getMessage());
+		}
+	}
+
+	private void remove(String name) {
+		if (entries.remove(name) == null)
+			return;
+		if (indexOut == null)
+			return;
+		try {
+			indexOut.writeByte(RECORD_REMOVED);
+			indexOut.writeUTF(name);
+			indexOut.flush();
+			indexRecords++;
+		} catch (IOException e) {
+			indexFailed(e);
+		}
+	}
+
+	/**
+	 * Reads the index file, the last record of a file wins
+	 */
+	private void loadIndex() {
+		if (indexFile == null)
+			return;
+		boolean damaged = false;
+		if (Files.exists(indexFile)) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+				if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION)
+					throw new IOException("not a wad catalog index");
+				while (true) {
+					int type = in.read();
+					if (type < 0)
+						break;
+					String name = in.readUTF();
+					indexRecords++;
+					if (type == RECORD_REMOVED) {
+						entries.remove(name);
+						continue;
+					}
+					if (type != RECORD_ENTRY)
+						throw new IOException("unknown record " + type);
+					long size = in.readLong();
+					long modified = in.readLong();
+					byte[] md5 = new byte[16];
+					in.readFully(md5);
+					byte[] sha256 = new byte[32];
+					in.readFully(sha256);
+					int lumpCount = in.readInt();
+					String[] maps = new String[in.readInt()];
+					for (int i = 0; i < maps.length; i++)
+						maps[i] = in.readUTF();
+					entries.put(name, new Entry(name, size, modified, md5, sha256, lumpCount, Arrays.asList(maps)));
+				}
+			} catch (EOFException e) {
+				damaged = true; // Cut off in the middle of a record, keep what we have
+			} catch (IOException e) {
+				logMessage(LOGLEVEL_IMPORTANT, "Wad catalog index " + indexFile + " is unreadable, rebuilding it: " + e.getMessage());
+				entries.clear();
+				damaged = true;
+			}
+		}
+		if (damaged || !Files.exists(indexFile))
+			compactIndex();
+		else
+			openIndexForAppend();
+	}
+
+	/**
+	 * Rewrites the index with one record per file
+	 */
+	private void compactIndex() {
+		if (indexFile == null)
+			return;
+		closeIndex();
+		Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+		try {
+			if (indexFile.getParent() != null)
+				Files.createDirectories(indexFile.getParent());
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				out.writeInt(INDEX_MAGIC);
+				out.writeInt(INDEX_VERSION);
+				for (Entry entry : entries.values())
+					writeEntry(out, entry);
+			}
+			Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			indexRecords = entries.size();
+		} catch (IOException e) {
+			indexFailed(e);
+			return;
+		}
+		openIndexForAppend();
+	}
+
+	private void openIndexForAppend() {
+		try {
+			indexOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexFile, StandardOpenOption.APPEND)));
+		} catch (IOException e) {
+			indexFailed(e);
+		}
+	}
+
+	private void appendEntry(Entry entry) {
+		if (indexOut == null)
+			return;
+		try {
+			writeEntry(indexOut, entry);
+			indexOut.flush();
+			indexRecords++;
+		} catch (IOException e) {
+			indexFailed(e);
+		}
+	}
+
+	private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+		out.writeByte(RECORD_ENTRY);
+		out.writeUTF(entry.name);
+		out.writeLong(entry.size);
+		out.writeLong(entry.modified);
+		out.write(entry.md5);
+		out.write(entry.sha256);
+		out.writeInt(entry.lumpCount);
+		out.writeInt(entry.maps.size());
+		for (String map : entry.maps)
+			out.writeUTF(map);
+	}
+
+	/**
+	 * Stops writing the index, the catalog keeps working from memory
+	 */
+	private void indexFailed(IOException e) {
+		logMessage(LOGLEVEL_IMPORTANT, "Could not write the wad catalog index " + indexFile + ", it will not be saved: " + e.getMessage());
+		closeIndex();
+	}
+
+	private void closeIndex() {
+		if (indexOut == null)
+			return;
+		try {
+			indexOut.close();
+		} catch (IOException e) {
+			// Nothing more to write to it anyway
+		}
+		indexOut = null;
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return sb.toString();
+	}
+}
@@ -12,6 +12,7 @@
 
 package org.bestever.serverquery;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 public class Huffman
@@ -23,6 +24,18 @@ public class Huffman
 	private static HuffmanNode[] myWork;
 	private static HuffmanNode[] myTmp;
 
+	//How many bits of input one decode table lookup looks at, must be at least the longest code
+	private static final int LOOKUP_BITS = 12;
+	private static final int LOOKUP_MASK = (1 << LOOKUP_BITS) - 1;
+	//Indexed by the next LOOKUP_BITS bits of input (first bit in the lowest bit),
+	//each entry is the decoded byte in the low 8 bits and the code length above it
+	private static final int[] decodeTable = new int[1 << LOOKUP_BITS];
+	//The code of each byte with its bits reversed, so it can be written out lowest bit first
+	private static final int[] encodeBits = new int[256];
+	private static final int[] encodeLen = new int[256];
+	//The shortest code, used to bound the size of decoded data
+	private static int minCodeLen;
+
 	private static final int[] masks = { 0x1, 0x2, 0x4, 0x8, 0x10, 0x20, 0x40, 0x80 };
 	private static final double[] freq=
 	{
@@ -107,6 +120,30 @@ public class Huffman
 		}
 		if(!buildTree())
 			System.out.println("Error");
+		if(!buildTables())
+			System.out.println("Huffman init error: code longer than " + LOOKUP_BITS + " bits");
+	}
+
+	static boolean buildTables()
+	{
+		minCodeLen = 32;
+		for(int i = 0;i < 256;i++)
+		{
+			int len = huffLookup[i].len;
+			if(len > LOOKUP_BITS)
+				return false;
+			//Codes are stored first bit highest, the stream is read first bit lowest
+			int reversed = 0;
+			for(int j = 0;j < len;j++)
+				reversed |= (int)((huffLookup[i].bits >> j) & 1) << (len - j - 1);
+			encodeBits[i] = reversed;
+			encodeLen[i] = len;
+			minCodeLen = Math.min(minCodeLen, len);
+			//Every index whose low len bits are this code decodes to this byte
+			for(int k = reversed;k <= LOOKUP_MASK;k += 1 << len)
+				decodeTable[k] = i | (len << 8);
+		}
+		return true;
 	}
 
 	static boolean findTab(HuffmanNode tmp, int len, long bits)
@@ -206,70 +243,142 @@ public class Huffman
 		huffTree = tmp;
 		return findTab(huffTree, 0, 0);
 	}
+	/**
+	 * Returns how large the output of decode can be at most for the given input
+	 */
+	public static int maxDecodedLength(int length)
+	{
+		if(length <= 1)
+			return 0;
+		return Math.max(length - 1, (length - 1) * 8 / minCodeLen);
+	}
 	static public byte[] decode(byte[] in)
 	{
-		String out = ""; //We'll use a string so we don't need any expanding arrays
-		int bits, tbits;
-		HuffmanNode tmp;
-		if(unsigned(in[0]) == 0xFF)
+		byte[] out = new byte[maxDecodedLength(in.length)];
+		int outlen = decode(in, 0, in.length, out, 0);
+		return Arrays.copyOf(out, outlen);
+	}
+	/**
+	 * Decodes length bytes of in starting at offset into out starting at outOffset
+	 * @return how many bytes were written to out
+	 * @throws ArrayIndexOutOfBoundsException if out is too small, see maxDecodedLength
+	 */
+	static public int decode(byte[] in, int offset, int length, byte[] out, int outOffset)
+	{
+		if(length < 1)
+			return 0;
+		if(unsigned(in[offset]) == 0xFF)
 		{
-			return Arrays.copyOfRange(in, 1, in.length);
+			System.arraycopy(in, offset + 1, out, outOffset, length - 1);
+			return length - 1;
 		}
-		tbits = (in.length-1)*8 - unsigned(in[0]);
-		bits = 0;
-		in = Arrays.copyOfRange(in, 1, in.length);
+		long tbits = (long)(length-1)*8 - unsigned(in[offset]);
+		long bits = 0;
+		int inpos = offset + 1;
+		int inend = offset + length;
+		int outpos = outOffset;
+		long acc = 0; //Buffered input, next bit is the lowest one
+		int accbits = 0;
 		while(bits < tbits)
 		{
-			tmp = huffTree;
-			do
+			while(accbits <= 56 && inpos < inend)
 			{
-				if(getBit(in, bits))
-					tmp = tmp.one;
-				else
-					tmp = tmp.zero;
-				bits++;
+				acc |= (long)(in[inpos++] & 0xFF) << accbits;
+				accbits += 8;
 			}
-			while(tmp.zero != null);
-			char[] outTmp = {tmp.val};
-			out += new String(outTmp);
+			int entry = decodeTable[(int)acc & LOOKUP_MASK];
+			int len = entry >>> 8;
+			bits += len;
+			if(bits > tbits)
+				break; //Truncated code in the padding
+			out[outpos++] = (byte)entry;
+			acc >>>= len;
+			accbits -= len;
 		}
-		return out.getBytes();
+		return outpos - outOffset;
 	}
-	static public byte[] encode(byte[] in)
+	/**
+	 * Decodes the remaining bytes of in into out, advancing both positions
+	 * @throws java.nio.BufferOverflowException if out does not have enough room
+	 */
+	static public void decode(ByteBuffer in, ByteBuffer out)
 	{
-		byte[] out = new byte[20000];
-		int i, j, bitat, outlen, firstByte;
-		long t;
-		bitat = 0;
-		for(i = 0;i < in.length;i++)
+		int length = in.remaining();
+		byte[] src;
+		int offset;
+		if(in.hasArray())
 		{
-			t = huffLookup[unsigned(in[i])].bits;
-			for(j = 0;j < huffLookup[unsigned(in[i])].len;j++)
-			{
-				putBit(out, bitat + huffLookup[unsigned(in[i])].len - j - 1, t&1);
-				t >>= 1;
-			}
-			bitat += huffLookup[unsigned(in[i])].len;
+			src = in.array();
+			offset = in.arrayOffset() + in.position();
 		}
-		outlen = 1 + (bitat+7)/8;
-		firstByte = 8*(outlen-1) - bitat;
-		if(outlen >= in.length+1)
+		else
+		{
+			src = new byte[length];
+			in.duplicate().get(src);
+			offset = 0;
+		}
+		if(out.hasArray() && out.remaining() >= maxDecodedLength(length))
+		{
+			int outlen = decode(src, offset, length, out.array(), out.arrayOffset() + out.position());
+			out.position(out.position() + outlen);
+		}
+		else
 		{
-			byte[] returnVal = new byte[in.length+1];
-			returnVal[0] = (byte) 0xFF;
-			for(int k = 0;k < in.length;k++)
+			byte[] tmp = new byte[maxDecodedLength(length)];
+			out.put(tmp, 0, decode(src, offset, length, tmp, 0));
+		}
+		in.position(in.limit());
+	}
+	static public byte[] encode(byte[] in)
+	{
+		byte[] out = new byte[in.length + 1];
+		int outlen = encode(in, 0, in.length, out, 0);
+		return outlen == out.length ? out : Arrays.copyOf(out, outlen);
+	}
+	/**
+	 * Encodes length bytes of in starting at offset into out starting at outOffset,
+	 * out needs room for length + 1 bytes (the size when the data does not compress)
+	 * @return how many bytes were written to out
+	 */
+	static public int encode(byte[] in, int offset, int length, byte[] out, int outOffset)
+	{
+		int outpos = outOffset + 1;
+		int outlimit = outOffset + length; //Compressed must be smaller than raw + 1
+		long acc = 0; //Bits not written yet, next bit is the lowest one
+		int accbits = 0;
+		long bitat = 0;
+		for(int i = offset;i < offset + length;i++)
+		{
+			int c = in[i] & 0xFF;
+			acc |= (long)encodeBits[c] << accbits;
+			accbits += encodeLen[c];
+			bitat += encodeLen[c];
+			while(accbits >= 8)
 			{
-				returnVal[k+1] = in[k];
+				if(outpos >= outlimit)
+					return storeRaw(in, offset, length, out, outOffset);
+				out[outpos++] = (byte)acc;
+				acc >>>= 8;
+				accbits -= 8;
 			}
-			return returnVal;
 		}
-		byte[] returnVal = new byte[outlen];
-		returnVal[0] = (byte) firstByte;
-		for(int k = 0;k < outlen-1;k++)
+		if(accbits > 0)
 		{
-			returnVal[k+1] = out[k];
+			if(outpos >= outlimit)
+				return storeRaw(in, offset, length, out, outOffset);
+			out[outpos++] = (byte)acc;
 		}
-		return returnVal;
+		if(outpos > outlimit)
+			return storeRaw(in, offset, length, out, outOffset);
+		int outlen = outpos - outOffset;
+		out[outOffset] = (byte)(8*(outlen-1) - bitat);
+		return outlen;
+	}
+	private static int storeRaw(byte[] in, int offset, int length, byte[] out, int outOffset)
+	{
+		out[outOffset] = (byte) 0xFF;
+		System.arraycopy(in, offset, out, outOffset + 1, length);
+		return length + 1;
 	}
 	public static int unsigned(byte in) //Same as Main.unsigned but redefined here so this can be re-used.
 	{
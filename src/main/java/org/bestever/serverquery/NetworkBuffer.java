@@ -17,10 +17,15 @@ package org.bestever.serverquery;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.charset.StandardCharsets;
 
 /**
- * Encapsulation of inbound network data, can be extended to outbound as well
+ * Encapsulation of inbound network data, can be extended to outbound as well <br>
+ * The data is held in a single ByteBuffer where the position is the read cursor
+ * and the limit is the write cursor, so primitives are read in place without any
+ * boxing or temporary buffers. A buffer can also wrap a received datagram directly
+ * (see {@link #wrap(byte[], int)} and {@link #wrap(ByteBuffer)}), in which case
+ * nothing is copied at all.
  */
 public class NetworkBuffer {
 	
@@ -31,15 +36,16 @@ public class NetworkBuffer {
 	private int max_capacity;
 	
 	/**
-	 * Indicates how many bytes are in the buffer and where it will start any
-	 * byte additions to the data structure
+	 * The data for the FIFO structure, position is where the next extraction
+	 * starts and limit is where the next addition goes
 	 */
-	private int offset_pointer;
+	private ByteBuffer data;
 	
 	/**
-	 * The list of data for FIFO structure
+	 * Scratch space for decoding strings out of buffers that have no backing
+	 * array (direct buffers), grown on demand and reused between extractions
 	 */
-	private LinkedBlockingQueue<Byte> data;
+	private byte[] stringScratch;
 	
 	/**
 	 * Constructs a network buffer with 1024 bytes
@@ -54,8 +60,49 @@ public class NetworkBuffer {
 	 */
 	public NetworkBuffer(int size) {
 		this.max_capacity = size;
-		this.offset_pointer = 0;
-		this.data = new LinkedBlockingQueue<>(size);
+		this.data = ByteBuffer.allocate(size);
+		this.data.limit(0);
+	}
+	
+	/**
+	 * Constructs a network buffer in reader mode over existing data, the data
+	 * is not copied so it must not be modified while this buffer is in use
+	 * @param wrapped The data to read, from its position up to its limit
+	 */
+	private NetworkBuffer(ByteBuffer wrapped) {
+		this.max_capacity = wrapped.remaining();
+		this.data = wrapped.slice();
+	}
+	
+	/**
+	 * Creates a reader over the first length bytes of the array without copying them
+	 * @param b The data (for example a decoded datagram)
+	 * @param length How many bytes of the array are valid [0 - length)
+	 * @return A buffer ready for extraction
+	 */
+	public static NetworkBuffer wrap(byte[] b, int length) {
+		return new NetworkBuffer(ByteBuffer.wrap(b, 0, length));
+	}
+	
+	/**
+	 * Creates a reader over the remaining bytes of a (possibly direct) byte buffer
+	 * without copying them; the position of the passed buffer is not changed
+	 * @param b The data (for example a buffer filled by a DatagramChannel)
+	 * @return A buffer ready for extraction
+	 */
+	public static NetworkBuffer wrap(ByteBuffer b) {
+		return new NetworkBuffer(b);
+	}
+	
+	/**
+	 * Points this buffer at new data so one instance can be reused for every
+	 * packet, the data is not copied
+	 * @param b The data
+	 * @param length How many bytes of the array are valid [0 - length)
+	 */
+	public void reset(byte[] b, int length) {
+		this.max_capacity = length;
+		this.data = ByteBuffer.wrap(b, 0, length).slice();
 	}
 	
 	/**
@@ -72,7 +119,22 @@ public class NetworkBuffer {
 	 * @return The number of bytes in the buffer
 	 */
 	public int getNumberOfBytesInBuffer() {
-		return offset_pointer;
+		return data.remaining();
+	}
+	
+	/**
+	 * Makes room for the given number of bytes at the end of the buffer,
+	 * discarding the bytes that were already extracted if needed
+	 * @param length How many bytes are about to be added
+	 * @param errorMessage What to throw with if it still does not fit
+	 */
+	private void ensureWritable(int length, String errorMessage) {
+		if (data.remaining() + length > max_capacity)
+			throw new NetworkBufferException(errorMessage);
+		if (data.limit() + length > data.capacity()) {
+			data.compact();
+			data.flip();
+		}
 	}
 	
 	/**
@@ -80,10 +142,10 @@ public class NetworkBuffer {
 	 * @param b The byte to add
 	 */
 	public void add(byte b) {
-		if (offset_pointer + 1 > max_capacity)
-			throw new NetworkBufferException("Buffer is full, adding a byte would cause an overflow.");
-		data.add(b);
-		offset_pointer++;
+		ensureWritable(1, "Buffer is full, adding a byte would cause an overflow.");
+		int end = data.limit();
+		data.limit(end + 1);
+		data.put(end, b);
 	}
 	
 	/**
@@ -91,12 +153,8 @@ public class NetworkBuffer {
 	 * @param b The byte array to add
 	 */
 	public void add(byte[] b) {
-		if (offset_pointer + b.length > max_capacity)
-			throw new NetworkBufferException("Buffer is full, adding a byte array would cause an overflow.");
-		for (int i = 0; i < b.length; i++) {
-			data.add(b[i]);
-			offset_pointer++;
-		}
+		ensureWritable(b.length, "Buffer is full, adding a byte array would cause an overflow.");
+		put(b, b.length);
 	}
 	
 	/**
@@ -105,12 +163,22 @@ public class NetworkBuffer {
 	 * @param length The length to add [0 - length)
 	 */
 	public void add(byte[] b, int length) {
-		if (offset_pointer + length > max_capacity)
-			throw new NetworkBufferException("Buffer is full, adding a byte array with length would cause an overflow.");
-		for (int i = 0; i < length; i++) {
-			data.add(b[i]);
-			offset_pointer++;
-		}
+		ensureWritable(length, "Buffer is full, adding a byte array with length would cause an overflow.");
+		put(b, length);
+	}
+	
+	/**
+	 * Copies the bytes after the current limit and moves the limit past them
+	 * @param b The data
+	 * @param length The length to add [0 - length)
+	 */
+	private void put(byte[] b, int length) {
+		int start = data.position();
+		int end = data.limit();
+		data.limit(end + length);
+		data.position(end);
+		data.put(b, 0, length);
+		data.position(start);
 	}
 	
 	/**
@@ -118,10 +186,9 @@ public class NetworkBuffer {
 	 * @return The byte from the front of the buffer
 	 */
 	public byte extractByte() {
-		if (offset_pointer - 1 < 0)
+		if (data.remaining() < 1)
 			throw new NetworkBufferException("Buffer is empty, cannot extract a byte.");
-		offset_pointer--;
-		return data.poll();
+		return data.get();
 	}
 	
 	/**
@@ -131,15 +198,9 @@ public class NetworkBuffer {
 	 * @return The short from the front of the buffer
 	 */
 	public short extractShort(boolean littleEndian) {
-		if (offset_pointer - 2 < 0)
+		if (data.remaining() < 2)
 			throw new NetworkBufferException("Buffer is empty, cannot extract a short.");
-		ByteBuffer byteBuffer = ByteBuffer.allocate(2);
-		byteBuffer.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
-		for (int i = 0; i < 2; i++)
-			byteBuffer.put(data.poll()); // Unroll me one day
-		offset_pointer -= 2;
-		byteBuffer.rewind();
-		return byteBuffer.getShort();
+		return data.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN).getShort();
 	}
 	
 	/**
@@ -149,15 +210,9 @@ public class NetworkBuffer {
 	 * @return The int from the front of the buffer
 	 */
 	public int extractInt(boolean littleEndian) {
-		if (offset_pointer - 4 < 0)
+		if (data.remaining() < 4)
 			throw new NetworkBufferException("Buffer is empty, cannot extract an integer.");
-		ByteBuffer byteBuffer = ByteBuffer.allocate(4);
-		byteBuffer.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
-		for (int i = 0; i < 4; i++)
-			byteBuffer.put(data.poll()); // Unroll me one day
-		offset_pointer -= 4;
-		byteBuffer.rewind();
-		return byteBuffer.getInt();
+		return data.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN).getInt();
 	}
 	
 	/**
@@ -167,15 +222,23 @@ public class NetworkBuffer {
 	 * @return The long from the front of the buffer
 	 */
 	public long extractLong(boolean littleEndian) {
-		if (offset_pointer - 8 < 0)
+		if (data.remaining() < 8)
 			throw new NetworkBufferException("Buffer is empty, cannot extract a long.");
-		ByteBuffer byteBuffer = ByteBuffer.allocate(8);
-		byteBuffer.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
-		for (int i = 0; i < 8; i++)
-			byteBuffer.put(data.poll()); // Unroll me one day
-		offset_pointer -= 8;
-		byteBuffer.rewind();
-		return byteBuffer.getLong();
+		return data.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN).getLong();
+	}
+	
+	/**
+	 * Finds the length of the null terminated string at the front of the queue
+	 * @return The number of bytes before the null terminator, or -1 if the string is
+	 * not terminated before the end of the buffer
+	 */
+	private int stringLength() {
+		int start = data.position();
+		int end = data.limit();
+		for (int i = start; i < end; i++)
+			if (data.get(i) == 0)
+				return i - start;
+		return -1;
 	}
 	
 	/**
@@ -184,36 +247,70 @@ public class NetworkBuffer {
 	 * @return The string from the front of the buffer
 	 */
 	public String extractString() {
-		if (offset_pointer <= 0)
+		return extractString(false);
+	}
+	
+	/**
+	 * Extracts a null terminated string like extractString(), for fields that
+	 * are allowed to be empty
+	 * @param allowEmpty If an empty string should be returned instead of throwing
+	 * @return The string from the front of the buffer
+	 */
+	public String extractString(boolean allowEmpty) {
+		if (data.remaining() <= 0)
 			throw new NetworkBufferException("Buffer is empty, cannot extract a string.");
-		StringBuilder sb = new StringBuilder(max_capacity); // Just to be safe in case the string is the length of our array
-		Byte b = null;
-		for (int i = 0; i < offset_pointer; i++) {
-			b = data.poll();
-			if (b == null)
-				throw new NetworkBufferException("Buffer offset pointer was desynchronized from the data, attempted extraction of a non-existing byte.");
-			offset_pointer--;
-			if (b == 0)
-				break; // End of string while still taking the null terminator out
-			sb.append((char)((byte)b));
-		}
-		String returnString = sb.toString();
-		if (returnString == null)
-			throw new NetworkBufferException("String extraction resulted in a null string.");
-		else if (returnString.equals(""))
+		int length = stringLength();
+		if (length < 0)
+			length = data.remaining(); // Unterminated, take everything that is left like before
+		if (length == 0) {
+			data.get(); // Still take the null terminator out
+			if (allowEmpty)
+				return "";
 			throw new NetworkBufferException("String extraction resulted in an empty string.");
+		}
+		String returnString;
+		if (data.hasArray()) {
+			returnString = new String(data.array(), data.arrayOffset() + data.position(), length, StandardCharsets.ISO_8859_1);
+			data.position(data.position() + length);
+		} else {
+			if (stringScratch == null || stringScratch.length < length)
+				stringScratch = new byte[Math.max(length, 64)];
+			data.get(stringScratch, 0, length);
+			returnString = new String(stringScratch, 0, length, StandardCharsets.ISO_8859_1);
+		}
+		if (data.hasRemaining())
+			data.get(); // End of string while still taking the null terminator out
 		return returnString;
 	}
 	
+	/**
+	 * Removes a null terminated string from the front of the queue without
+	 * creating it, for fields we do not care about
+	 */
+	public void skipString() {
+		if (data.remaining() <= 0)
+			throw new NetworkBufferException("Buffer is empty, cannot skip a string.");
+		int length = stringLength();
+		data.position(length < 0 ? data.limit() : data.position() + length + 1);
+	}
+	
+	/**
+	 * Removes the given number of bytes from the front of the queue
+	 * @param length How many bytes to skip
+	 */
+	public void skip(int length) {
+		if (data.remaining() < length)
+			throw new NetworkBufferException("Buffer is empty, cannot skip " + length + " bytes.");
+		data.position(data.position() + length);
+	}
+	
 	/**
 	 * Extracts the entire buffer
 	 * @return The entire buffer as a byte array
 	 */
 	public byte[] extractAll() {
-		byte[] outData = new byte[offset_pointer];
-		for (int i = 0; i < offset_pointer; i++)
-			outData[i] = data.poll();
-		offset_pointer = 0;
+		byte[] outData = new byte[data.remaining()];
+		data.get(outData);
 		return outData;
 	}
 }
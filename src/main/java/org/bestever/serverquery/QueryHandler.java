@@ -18,30 +18,12 @@ package org.bestever.serverquery;
 
 import org.bestever.bebot.Bot;
 
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
-
 /**
- * This is designed to handle a single process by messaging the server and then
- * waiting for a response; if a response is gotten it will then create the info
- * needed for the user, or state there was an error
+ * Parses the launcher protocol reply of a server and, when used as the default
+ * listener of the query manager, creates the info needed for the user or states
+ * there was an error
  */
-public class QueryHandler extends Thread {
-
-	/**
-	 * The object to notify when we are done
-	 */
-	private QueryManager handlerThread;
-	
-	/**
-	 * The requested IP/port to query
-	 */
-	private ServerQueryRequest request;
+public class QueryHandler implements ServerQueryListener {
 	
 	/**
 	 * A reference to the main bot
@@ -54,193 +36,192 @@ public class QueryHandler extends Thread {
 	public static final int SOCKET_TIMEOUT_MS = 5000;
 	
 	/**
-	 * This constructs the object so upon .run() it will gather the data and send it to the bot properly <br>
-	 * Note that this does NOT invoke .run() automatically, the user must do so or else there
-	 * will never be proper communication to the query manager about being done
-	 * @param request The requested site
-	 * @param handlerThread The query manager that we shall signal when we are done
+	 * Constructs a handler which reports every result to the core channel
+	 * @param bot The bot to send the messages with
 	 */
-	public QueryHandler(ServerQueryRequest request, Bot bot, QueryManager handlerThread) {
-		this.request = request;
-		this.handlerThread = handlerThread;
+	public QueryHandler(Bot bot) {
 		this.bot = bot;
 	}
 	
 	/**
 	 * Handles the incoming packet we received
-	 * @param data The data from the server
+	 * @param networkBuffer The decoded data from the server
+	 * @return The parsed result
+	 * @throws NetworkPacketProcessException If the server refused to answer
+	 * @throws NetworkBufferException If the packet is truncated
 	 */
-	private void processIncomingPacket(byte[] data) {
-		NetworkBuffer networkBuffer = new NetworkBuffer(data.length);
-		try {
-			networkBuffer.add(data);
-			QueryResult queryResult = new QueryResult();
-			
-			// Basic extractions we don't care about
-			int header = networkBuffer.extractInt(true);
-			if (header == 5660024)
-				throw new NetworkPacketProcessException("Querying server too much.");
-			else if (header == 5660025)
-				throw new NetworkPacketProcessException("Host has banned the IP.");
-			
-			// Extract time, as it's useles to us right now
-			networkBuffer.extractInt(true); 
-			
-			// Extract version string, as it's useles to us right now
-			networkBuffer.extractString(); 
-			
-			// What the server wants to send back to us (and read every flag safely)
-			int inboundFlags = networkBuffer.extractInt(true);
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_NAME) == ServerQueryFlags.SQF_NAME)
-				networkBuffer.extractString(); // Server name
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_URL) == ServerQueryFlags.SQF_URL)
-				networkBuffer.extractString(); // Server URL
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_EMAIL) == ServerQueryFlags.SQF_EMAIL)
-				networkBuffer.extractString(); // Server email
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_MAPNAME) == ServerQueryFlags.SQF_MAPNAME)
-				networkBuffer.extractString(); // Map name
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_MAXCLIENTS) == ServerQueryFlags.SQF_MAXCLIENTS)
-				networkBuffer.extractByte(); // Max clients allowed in the server (sv_maxclients)
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_MAXPLAYERS) == ServerQueryFlags.SQF_MAXPLAYERS)
-				networkBuffer.extractByte(); // Max players allowed in the server (sv_maxplayers)
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_PWADS) == ServerQueryFlags.SQF_PWADS) {
-				byte numOfPwads = networkBuffer.extractByte(); // How many loaded wads there are
-				if (numOfPwads > 0) {
-					String pwadList = "";
-					for (int n = 0; n < numOfPwads; n++)
-						if (n == numOfPwads - 1)
-							pwadList += networkBuffer.extractString(); // Don't add a delimiter for the end of the list
-						else
-							pwadList += networkBuffer.extractString() + ",";
-					queryResult.pwad_names = pwadList;
-				}
-			}
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_GAMETYPE) == ServerQueryFlags.SQF_GAMETYPE) {
-				queryResult.gamemode = networkBuffer.extractByte(); // Gamemode
-				queryResult.instagib = networkBuffer.extractByte(); // Instagib
-				queryResult.buckshot = networkBuffer.extractByte(); // Buckshot
+	static QueryResult processIncomingPacket(NetworkBuffer networkBuffer) throws NetworkPacketProcessException {
+		QueryResult.Builder queryResult = new QueryResult.Builder();
+		
+		int header = networkBuffer.extractInt(true);
+		if (header == ServerQueryFlags.SQRF_TOOQUICKREQUEST)
+			throw new NetworkPacketProcessException("Querying server too much.");
+		else if (header == ServerQueryFlags.SQRF_IPISBANNED)
+			throw new NetworkPacketProcessException("Host has banned the IP.");
+		
+		// Extract time, as it's useles to us right now
+		networkBuffer.extractInt(true); 
+		
+		queryResult.version = networkBuffer.extractString(true);
+		
+		// What the server wants to send back to us (and read every flag safely)
+		int inboundFlags = networkBuffer.extractInt(true);
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_NAME) == ServerQueryFlags.SQF_NAME)
+			queryResult.servername = networkBuffer.extractString(true); // Server name
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_URL) == ServerQueryFlags.SQF_URL)
+			queryResult.url = networkBuffer.extractString(true); // Server URL
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_EMAIL) == ServerQueryFlags.SQF_EMAIL)
+			queryResult.email = networkBuffer.extractString(true); // Server email
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_MAPNAME) == ServerQueryFlags.SQF_MAPNAME)
+			queryResult.mapname = networkBuffer.extractString(true); // Map name
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_MAXCLIENTS) == ServerQueryFlags.SQF_MAXCLIENTS)
+			queryResult.max_clients = networkBuffer.extractByte() & 0xFF; // Max clients allowed in the server (sv_maxclients)
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_MAXPLAYERS) == ServerQueryFlags.SQF_MAXPLAYERS)
+			queryResult.max_players = networkBuffer.extractByte() & 0xFF; // Max players allowed in the server (sv_maxplayers)
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_PWADS) == ServerQueryFlags.SQF_PWADS) {
+			int numOfPwads = networkBuffer.extractByte() & 0xFF; // How many loaded wads there are
+			String[] pwads = new String[numOfPwads];
+			for (int n = 0; n < numOfPwads; n++)
+				pwads[n] = networkBuffer.extractString();
+			queryResult.pwads = pwads;
+		}
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_GAMETYPE) == ServerQueryFlags.SQF_GAMETYPE) {
+			queryResult.gamemode = networkBuffer.extractByte(); // Gamemode
+			queryResult.instagib = networkBuffer.extractByte(); // Instagib
+			queryResult.buckshot = networkBuffer.extractByte(); // Buckshot
+		}
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_GAMENAME) == ServerQueryFlags.SQF_GAMENAME)
+			queryResult.gamename = networkBuffer.extractString(true); // Game base name (ex: DOOM, DOOM II, ...etc)
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_IWAD) == ServerQueryFlags.SQF_IWAD)
+			queryResult.iwad = networkBuffer.extractString(); // IWAD name
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_FORCEPASSWORD) == ServerQueryFlags.SQF_FORCEPASSWORD)
+			queryResult.force_password = networkBuffer.extractByte(); // If a password is required
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_FORCEJOINPASSWORD) == ServerQueryFlags.SQF_FORCEJOINPASSWORD)
+			queryResult.force_join_password = networkBuffer.extractByte(); // If a join password is required
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_GAMESKILL) == ServerQueryFlags.SQF_GAMESKILL)
+			queryResult.skill = networkBuffer.extractByte(); // Skill level
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_BOTSKILL) == ServerQueryFlags.SQF_BOTSKILL)
+			queryResult.bot_skill = networkBuffer.extractByte(); // Bot skill level
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_DMFLAGS) == ServerQueryFlags.SQF_DMFLAGS) {
+			queryResult.dmflags = networkBuffer.extractInt(true); // dmflags
+			queryResult.dmflags2 = networkBuffer.extractInt(true); // dmflags2
+			queryResult.compatflags = networkBuffer.extractInt(true); // compatflags
+		}
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_LIMITS) == ServerQueryFlags.SQF_LIMITS) {
+			queryResult.fraglimit = networkBuffer.extractShort(true); // fraglimit
+			queryResult.timelimit = networkBuffer.extractShort(true); // timelimit
+			if (queryResult.timelimit != 0)
+				queryResult.timeleft = networkBuffer.extractShort(true); // time left (in minutes), only sent with a timelimit
+			else
+				queryResult.timeleft = 0;
+			queryResult.duellimit = networkBuffer.extractShort(true); // duellimit
+			queryResult.pointlimit = networkBuffer.extractShort(true); // pointlimit
+			queryResult.winlimit = networkBuffer.extractShort(true); // winlimit
+		}
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_TEAMDAMAGE) == ServerQueryFlags.SQF_TEAMDAMAGE)
+			queryResult.team_damage = Float.intBitsToFloat(networkBuffer.extractInt(true)); // 32 bit float
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_TEAMSCORES) == ServerQueryFlags.SQF_TEAMSCORES)
+			networkBuffer.extractShort(true); // UNSURE: Claims deprecated, supposed to be the score for each team...
+		
+		int numPlayers = 0;
+		if ((inboundFlags & ServerQueryFlags.SQF_NUMPLAYERS) == ServerQueryFlags.SQF_NUMPLAYERS) {
+			numPlayers = networkBuffer.extractByte() & 0xFF; // Number of players in the server
+			queryResult.num_players = numPlayers;
+		}
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_PLAYERDATA) == ServerQueryFlags.SQF_PLAYERDATA) {
+			// The team is only sent when players are on teams, so we need the gamemode for this
+			boolean hasTeam = ServerQueryFlags.isTeamGame(queryResult.gamemode);
+			queryResult.allocatePlayers(numPlayers);
+			for (int n = 0; n < numPlayers; n++) {
+				queryResult.player_names[n] = networkBuffer.extractString(true); // Player's name
+				queryResult.player_scores[n] = networkBuffer.extractShort(true); // Score
+				queryResult.player_pings[n] = networkBuffer.extractShort(true); // Ping
+				byte flags = 0;
+				if (networkBuffer.extractByte() != 0) // Spectating
+					flags |= QueryResult.PLAYER_SPECTATOR;
+				if (networkBuffer.extractByte() != 0) // Bot
+					flags |= QueryResult.PLAYER_BOT;
+				queryResult.player_flags[n] = flags;
+				queryResult.player_teams[n] = hasTeam ? networkBuffer.extractByte() : -1; // Team (if a team game)
+				queryResult.player_minutes[n] = networkBuffer.extractByte(); // Time in minutes
 			}
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_GAMENAME) == ServerQueryFlags.SQF_GAMENAME)
-				networkBuffer.extractString(); // Game base name (ex: DOOM, DOOM II, ...etc)
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_IWAD) == ServerQueryFlags.SQF_IWAD)
-				queryResult.iwad = networkBuffer.extractString(); // IWAD name
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_FORCEPASSWORD) == ServerQueryFlags.SQF_FORCEPASSWORD)
-				networkBuffer.extractByte(); // If a password is required
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_FORCEJOINPASSWORD) == ServerQueryFlags.SQF_FORCEJOINPASSWORD)
-				networkBuffer.extractByte(); // If a join password is required
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_GAMESKILL) == ServerQueryFlags.SQF_GAMESKILL)
-				queryResult.skill = networkBuffer.extractByte(); // Skill level
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_BOTSKILL) == ServerQueryFlags.SQF_BOTSKILL)
-				networkBuffer.extractByte(); // Bot skill level
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_DMFLAGS) == ServerQueryFlags.SQF_DMFLAGS) {
+		}
+		
+		int numTeams = 0;
+		if ((inboundFlags & ServerQueryFlags.SQF_TEAMINFO_NUMBER) == ServerQueryFlags.SQF_TEAMINFO_NUMBER) {
+			numTeams = networkBuffer.extractByte() & 0xFF; // Number of teams
+			queryResult.num_teams = numTeams;
+		}
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_TEAMINFO_NAME) == ServerQueryFlags.SQF_TEAMINFO_NAME) {
+			queryResult.team_names = new String[numTeams];
+			for (int n = 0; n < numTeams; n++)
+				queryResult.team_names[n] = networkBuffer.extractString(true); // Team's name
+		}
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_TEAMINFO_COLOR) == ServerQueryFlags.SQF_TEAMINFO_COLOR) {
+			queryResult.team_colors = new int[numTeams];
+			for (int n = 0; n < numTeams; n++)
+				queryResult.team_colors[n] = networkBuffer.extractInt(true); // Team's color
+		}
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_TEAMINFO_SCORE) == ServerQueryFlags.SQF_TEAMINFO_SCORE) {
+			queryResult.team_scores = new short[numTeams];
+			for (int n = 0; n < numTeams; n++)
+				queryResult.team_scores[n] = networkBuffer.extractShort(true); // Team's score
+		}
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_TESTING_SERVER) == ServerQueryFlags.SQF_TESTING_SERVER) {
+			queryResult.testing_server = networkBuffer.extractByte(); // True/false if using a custom binary
+			queryResult.testing_binary = networkBuffer.extractString(true); // Empty string if stable binary, testing binary name otherwise
+		}
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_DATA_MD5SUM) == ServerQueryFlags.SQF_DATA_MD5SUM)
+			queryResult.data_md5sum = networkBuffer.extractString(true); // MD5 sum
+		
+		if ((inboundFlags & ServerQueryFlags.SQF_ALL_DMFLAGS) == ServerQueryFlags.SQF_ALL_DMFLAGS) {
+			int numOfFlags = networkBuffer.extractByte();
+			if (numOfFlags > 0)
 				queryResult.dmflags = networkBuffer.extractInt(true); // dmflags
+			if (numOfFlags > 1)
 				queryResult.dmflags2 = networkBuffer.extractInt(true); // dmflags2
+			if (numOfFlags > 2)
+				queryResult.dmflags3 = networkBuffer.extractInt(true); // dmflags3
+			if (numOfFlags > 3)
 				queryResult.compatflags = networkBuffer.extractInt(true); // compatflags
-			}
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_LIMITS) == ServerQueryFlags.SQF_LIMITS) {
-				networkBuffer.extractShort(true); // fraglimit
-				networkBuffer.extractShort(true); // timelimit
-				networkBuffer.extractShort(true); // time left (in minutes)
-				networkBuffer.extractShort(true); // duellimit
-				networkBuffer.extractShort(true); // pointlimit
-				networkBuffer.extractShort(true); // winlimit
-			}
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_TEAMDAMAGE) == ServerQueryFlags.SQF_TEAMDAMAGE)
-				networkBuffer.extractInt(true); // This is a 32 bit float, no support right now
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_TEAMSCORES) == ServerQueryFlags.SQF_TEAMSCORES)
-				networkBuffer.extractShort(true); // UNSURE: Claims deprecated, supposed to be the score for each team...
-			
-			byte numPlayers = 0;
-			if ((inboundFlags & ServerQueryFlags.SQF_NUMPLAYERS) == ServerQueryFlags.SQF_NUMPLAYERS)
-				numPlayers = networkBuffer.extractByte(); // Number of players in the server
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_PLAYERDATA) == ServerQueryFlags.SQF_PLAYERDATA)
-				for (int n = 0; n < numPlayers; n++) {
-					networkBuffer.extractString(); // Player's name
-					networkBuffer.extractShort(true); // Player's pointcount/fragcount/killcount
-					networkBuffer.extractShort(true); // Player's ping
-					networkBuffer.extractByte(); // Is spectator
-					networkBuffer.extractByte(); // Is bot
-					networkBuffer.extractByte(); // Player team (255 = no team)
-					networkBuffer.extractByte(); // Player time in minutes in he server
-				}
-			
-			byte numTeams = 0;
-			if ((inboundFlags & ServerQueryFlags.SQF_TEAMINFO_NUMBER) == ServerQueryFlags.SQF_TEAMINFO_NUMBER)
-				numTeams = networkBuffer.extractByte(); // Number of teams
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_TEAMINFO_NAME) == ServerQueryFlags.SQF_TEAMINFO_NAME)
-				for (int n = 0; n < numTeams; n++)
-					networkBuffer.extractString(); // Team's name
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_TEAMINFO_COLOR) == ServerQueryFlags.SQF_TEAMINFO_COLOR)
-				for (int n = 0; n < numTeams; n++)
-					networkBuffer.extractInt(true); // Team's color
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_TEAMINFO_SCORE) == ServerQueryFlags.SQF_TEAMINFO_SCORE)
-				for (int n = 0; n < numTeams; n++)
-					networkBuffer.extractShort(true); // Team's score
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_TESTING_SERVER) == ServerQueryFlags.SQF_TESTING_SERVER) {
-				networkBuffer.extractByte(); // True/false if using a custom binary
-				networkBuffer.extractString(); // Empty string if stable binary, testing binary name otherwise
-			}
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_DATA_MD5SUM) == ServerQueryFlags.SQF_DATA_MD5SUM)
-				networkBuffer.extractString(); // MD5 sum
-			
-			if ((inboundFlags & ServerQueryFlags.SQF_ALL_DMFLAGS) == ServerQueryFlags.SQF_ALL_DMFLAGS) {
-				int numOfFlags = networkBuffer.extractByte();
-				if (numOfFlags > 0)
-					queryResult.dmflags = networkBuffer.extractInt(true); // dmflags
-				if (numOfFlags > 1)
-					queryResult.dmflags2 = networkBuffer.extractInt(true); // dmflags2
-				if (numOfFlags > 2)
-					queryResult.dmflags3 = networkBuffer.extractInt(true); // dmflags3
-				if (numOfFlags > 3)
-					queryResult.compatflags = networkBuffer.extractInt(true); // compatflags
-				if (numOfFlags > 4)
-					queryResult.compatflags2 = networkBuffer.extractInt(true); // compatflags2
-			}
-				
-			if ((inboundFlags & ServerQueryFlags.SQF_SECURITY_SETTINGS) == ServerQueryFlags.SQF_SECURITY_SETTINGS)
-				networkBuffer.extractByte(); // If enforcing the master
-			
-			// Display the final result in the channel
-			displayQueryResult(queryResult);
-		} catch (NetworkBufferException nbe) {
-			nbe.printStackTrace();
-			if (nbe.getMessage() != null)
-				bot.sendMessageToCoreChannel(nbe.getMessage());
-			else
-				bot.sendMessageToCoreChannel("NetworkBufferException was thrown, please contact an administrator now.");
-		} catch (NetworkPacketProcessException nppe) {
-			nppe.printStackTrace();
-			bot.sendMessageToCoreChannel("Network exception: " + nppe.getMessage());
-		} catch (Exception e) {
-			e.printStackTrace();
-			bot.sendMessageToCoreChannel("Exception thrown, please contact an administrator now.");
+			if (numOfFlags > 4)
+				queryResult.compatflags2 = networkBuffer.extractInt(true); // compatflags2
 		}
+			
+		if ((inboundFlags & ServerQueryFlags.SQF_SECURITY_SETTINGS) == ServerQueryFlags.SQF_SECURITY_SETTINGS)
+			queryResult.security_settings = networkBuffer.extractByte(); // If enforcing the master
+		
+		return queryResult.build();
 	}
 	
+	/**
+	 * Sends the result to the core channel as a .host line
+	 * @param queryResult The parsed result
+	 */
 	public void displayQueryResult(QueryResult queryResult) {
 		String queryOutput = ".host";
 
@@ -287,61 +268,12 @@ public class QueryHandler extends Thread {
 	}
 	
 	@Override
-	public void run() {
-		// If any of these stay the same then something is wrong
-		InetAddress IPAddress;
-		try {
-			IPAddress = InetAddress.getByName(request.getIP());
-		} catch (UnknownHostException e1) {
-			e1.printStackTrace();
-			bot.sendMessageToCoreChannel("Error: Query IP address could not be resolved or is using IPv6.");
-			return;
-		}
-		int port = request.getPort();
-		byte[] dataToSend = null;
-		byte[] dataToReceive = new byte[2048]; // Doubled standard size in case there's some dumb wad list with a lot of characters
-		
-		// Try with resources, we want to always have the socket close
-		try (DatagramSocket connectionSocket = new DatagramSocket()) {		
-			// Prepare our send packet		
-			dataToSend = new byte[] { (byte)199, 0, 0, 0, -64, 18, 0, 8 }; // Send challenge and then SQF_FlagsStuff
-			byte[] huffmanToSend = Huffman.encode(dataToSend);
-			
-			// Now send the data
-			DatagramPacket sendPacket = new DatagramPacket(huffmanToSend, huffmanToSend.length, IPAddress, port);
-			connectionSocket.send(sendPacket);
-			
-			// Block until we receive something or time out
-			DatagramPacket receivePacket = new DatagramPacket(dataToReceive, dataToReceive.length);
-			connectionSocket.setSoTimeout(SOCKET_TIMEOUT_MS);
-			connectionSocket.receive(receivePacket);
-			
-			// Prepare the data for processing
-			byte[] receivedData = receivePacket.getData();
-			byte[] receivedTruncatedData = new byte[receivePacket.getLength()];
-			System.arraycopy(receivedData, 0, receivedTruncatedData, 0, receivePacket.getLength());
-			byte[] decodedData = Huffman.decode(receivedTruncatedData);
-				
-			// Process it
-			processIncomingPacket(decodedData);	
-		} catch (UnknownHostException e) {
-			bot.sendMessageToCoreChannel("IP of the host to query could not be determined. Please see if your IP is a valid address that can be reached.");
-			e.printStackTrace();
-		} catch (SocketException e) {
-			bot.sendMessageToCoreChannel("Error with the socket when handling query. Please try again or contact an administrator.");
-			e.printStackTrace();
-		} catch (SocketTimeoutException e) {
-			bot.sendMessageToCoreChannel("Socket timeout, IP is incorrect or server is down/unreachable (consider trying again if it is your first try).");
-			e.printStackTrace();
-		} catch (IOException e) {
-			bot.sendMessageToCoreChannel("IOException from query. Please try again or contact an administrator.");
-			e.printStackTrace();
-		} catch (Exception e) {
-			bot.sendMessageToCoreChannel("Unknown exception occured, contact an administrator now.");
-			e.printStackTrace();
-		}
-		
-		// Always alert the handler thread we are done
-		handlerThread.signalProcessQueryComplete();
+	public void queryCompleted(ServerQueryRequest request, QueryResult result) {
+		displayQueryResult(result);
+	}
+	
+	@Override
+	public void queryFailed(ServerQueryRequest request, String reason) {
+		bot.sendMessageToCoreChannel(reason);
 	}
 }
@@ -18,29 +18,67 @@ package org.bestever.serverquery;
 
 import org.bestever.bebot.Bot;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Runs on its own thread and handles incoming requests for servery querying <br>
- * This is on it's own thread so it can control any bottlenecking/spam safely
- * via a queue
+ * Every query goes out through a single non-blocking datagram channel, so any
+ * number of servers can be asked at once; replies are matched to requests by
+ * the address they come from and requests that do not get an answer in
+ * {@link QueryHandler#SOCKET_TIMEOUT_MS} are failed by a timer wheel
  */
 public class QueryManager extends Thread {
 	
 	/**
-	 * Contains a list of requests that it will process in order
+	 * A request that was sent and is waiting for its reply
 	 */
-	private LinkedBlockingQueue<ServerQueryRequest> queryRequests;
+	private static final class PendingQuery {
+		final InetSocketAddress address;
+		final List<ServerQueryRequest> requests = new ArrayList<>(1);
+		boolean done = false;
+
+		PendingQuery(InetSocketAddress address) {
+			this.address = address;
+		}
+	}
+	
+	/**
+	 * Contains a list of requests that have not been sent yet
+	 */
+	private ConcurrentLinkedQueue<ServerQueryRequest> queryRequests;
+	
+	/**
+	 * How many requests were accepted and have not finished yet
+	 */
+	private AtomicInteger outstandingRequests = new AtomicInteger();
+	
+	/**
+	 * Requests that were sent, by the address we expect the reply from
+	 */
+	private HashMap<SocketAddress, PendingQuery> inFlight = new HashMap<>();
 	
 	/**
 	 * Tells us if the thread is to be terminated or not
 	 */
-	private boolean threadTerminate = false;
+	private volatile boolean threadTerminate = false;
 	
 	/**
-	 * Indicates if this thread is processing a query or not
+	 * Wakes the thread up when a reply arrives or a request is added
 	 */
-	private boolean processingQuery = false;
+	private volatile Selector selector;
 	
 	/**
 	 * Reference to the bot
@@ -48,17 +86,51 @@ public class QueryManager extends Thread {
 	private Bot bot;
 	
 	/**
-	 * We should not exceed four requests at the same time, this would
-	 * indicate we are getting flooded
+	 * Reports results of requests that did not come with their own listener
+	 */
+	private QueryHandler defaultListener;
+	
+	/**
+	 * We should not have more than this many requests waiting or in flight at
+	 * the same time, this would indicate we are getting flooded
+	 */
+	public static final int MAX_REQUESTS = 512;
+	
+	/**
+	 * Resolution of the request deadlines
+	 */
+	private static final int TIMEOUT_TICK_MS = 100;
+	
+	/**
+	 * Largest datagram we expect to receive
+	 */
+	private static final int RECEIVE_BUFFER_SIZE = 8192;
+	
+	/**
+	 * Replies are decoded into this, reused for every datagram
+	 */
+	private final byte[] decodeBuffer = new byte[Huffman.maxDecodedLength(RECEIVE_BUFFER_SIZE)];
+	
+	/**
+	 * The challenge (199) and the flags we want, already Huffman encoded
 	 */
-	public static final int MAX_REQUESTS = 4;
+	private static final byte[] CHALLENGE_PACKET = Huffman.encode(new byte[] {
+			(byte) 199, 0, 0, 0,
+			(byte) ServerQueryFlags.SQF_ALL_REQUEST_FLAGS,
+			(byte) (ServerQueryFlags.SQF_ALL_REQUEST_FLAGS >> 8),
+			(byte) (ServerQueryFlags.SQF_ALL_REQUEST_FLAGS >> 16),
+			(byte) (ServerQueryFlags.SQF_ALL_REQUEST_FLAGS >> 24)
+	});
 	
 	/**
 	 * Initializes the QueryManager object, does not run it (must be done manually)
 	 */
 	public QueryManager(Bot bot) {
-		this.queryRequests = new LinkedBlockingQueue<>(MAX_REQUESTS);
+		this.queryRequests = new ConcurrentLinkedQueue<>();
 		this.bot = bot;
+		this.defaultListener = new QueryHandler(bot);
+		setName("QueryManager");
+		setDaemon(true);
 	}
 	
 	/**
@@ -67,40 +139,159 @@ public class QueryManager extends Thread {
 	 * @return True if it was added, false if the queue is full or it could not be added
 	 */
 	public boolean addRequest(ServerQueryRequest query) {
-		if (queryRequests.size() >= MAX_REQUESTS)
+		if (threadTerminate)
 			return false;
-		return queryRequests.add(query);
+		if (outstandingRequests.incrementAndGet() > MAX_REQUESTS) {
+			outstandingRequests.decrementAndGet();
+			return false;
+		}
+		// Resolve here so a slow lookup does not hold up the queries of everyone else
+		query.resolve();
+		queryRequests.add(query);
+		Selector s = selector;
+		if (s != null)
+			s.wakeup();
+		return true;
 	}
 	
 	/**
-	 * Prepares the thread to terminate, will probably finish any request it is in
+	 * Prepares the thread to terminate, requests that are still in flight are dropped
 	 */
 	public void kill() {
 		threadTerminate = true;
+		Selector s = selector;
+		if (s != null)
+			s.wakeup();
+	}
+	
+	/**
+	 * Gets who should be told about the request
+	 * @param request The request
+	 * @return The listener of the request, or the default one
+	 */
+	private ServerQueryListener listenerOf(ServerQueryRequest request) {
+		return request.getListener() != null ? request.getListener() : defaultListener;
+	}
+	
+	/**
+	 * Tells everyone waiting on the query that it failed and forgets about it
+	 * @param pending The query
+	 * @param reason Why it failed
+	 */
+	private void fail(PendingQuery pending, String reason) {
+		finish(pending);
+		for (ServerQueryRequest request : pending.requests)
+			notifyFailed(request, reason);
 	}
 	
 	/**
-	 * Allows an external thread (socket handler) to tell this thread it is done
+	 * Tells the listener of the request that it failed, a listener that throws must not stop the thread
+	 * @param request The request
+	 * @param reason Why it failed
 	 */
-	public void signalProcessQueryComplete() {
-		processingQuery = false;
+	private void notifyFailed(ServerQueryRequest request, String reason) {
+		try {
+			listenerOf(request).queryFailed(request, reason);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
 	}
 	
 	/**
-	 * Begins processing a query in the queue
-	 */
-	private void processQuery() {
-		// Prevent our thread from trying to do two queries at once
-		processingQuery = true;
-		
-		// This should never be null because we check in run() if the size is > 0
-		ServerQueryRequest targetQuery = queryRequests.poll();
-		if (targetQuery != null) {
-			QueryHandler query = new QueryHandler(targetQuery, bot, this); // Must give it a reference to ourselves to signal query completion
-			query.start();
-		} else {
-			bot.sendMessageToCoreChannel("targetQuery was somehow null, aborting query.");
-			signalProcessQueryComplete();
+	 * Marks the query as done and removes it from the in flight table
+	 * @param pending The query
+	 */
+	private void finish(PendingQuery pending) {
+		pending.done = true;
+		inFlight.remove(pending.address);
+		outstandingRequests.addAndGet(-pending.requests.size());
+	}
+	
+	/**
+	 * Sends every request that was added since the last time
+	 * @param channel The channel to send with
+	 * @param wheel Where to put the deadlines
+	 * @param now The current time in ms
+	 */
+	private void sendQueuedRequests(DatagramChannel channel, TimeoutWheel<PendingQuery> wheel, long now) {
+		ServerQueryRequest request;
+		while ((request = queryRequests.poll()) != null) {
+			InetSocketAddress address = request.getAddress();
+			PendingQuery pending = inFlight.get(address);
+			if (pending != null) {
+				// Someone is already asking this server, share the reply instead of getting throttled
+				pending.requests.add(request);
+				continue;
+			}
+			pending = new PendingQuery(address);
+			pending.requests.add(request);
+			if (address.isUnresolved()) {
+				outstandingRequests.decrementAndGet();
+				notifyFailed(request, "Error: Query IP address could not be resolved or is using IPv6.");
+				continue;
+			}
+			try {
+				channel.send(ByteBuffer.wrap(CHALLENGE_PACKET), address);
+			} catch (IOException e) {
+				e.printStackTrace();
+				outstandingRequests.decrementAndGet();
+				notifyFailed(request, "Error with the socket when handling query. Please try again or contact an administrator.");
+				continue;
+			}
+			inFlight.put(address, pending);
+			wheel.schedule(pending, now + QueryHandler.SOCKET_TIMEOUT_MS);
+		}
+	}
+	
+	/**
+	 * Reads every datagram that is waiting and hands it to whoever asked for it
+	 * @param channel The channel to read from
+	 * @param receiveBuffer A buffer to receive into
+	 */
+	private void receiveReplies(DatagramChannel channel, ByteBuffer receiveBuffer) throws IOException {
+		SocketAddress source;
+		receiveBuffer.clear();
+		while ((source = channel.receive(receiveBuffer)) != null) {
+			PendingQuery pending = inFlight.get(source);
+			if (pending != null) {
+				int length = Huffman.decode(receiveBuffer.array(), 0, receiveBuffer.position(), decodeBuffer, 0);
+				finish(pending);
+				for (ServerQueryRequest request : pending.requests)
+					deliver(request, length);
+			}
+			receiveBuffer.clear();
+		}
+	}
+	
+	/**
+	 * Parses the reply for the request and tells its listener
+	 * @param request The request that was answered
+	 * @param length How many bytes of the decode buffer hold the reply
+	 */
+	private void deliver(ServerQueryRequest request, int length) {
+		QueryResult queryResult;
+		try {
+			queryResult = QueryHandler.processIncomingPacket(NetworkBuffer.wrap(decodeBuffer, length));
+		} catch (NetworkBufferException nbe) {
+			nbe.printStackTrace();
+			if (nbe.getMessage() != null)
+				notifyFailed(request, nbe.getMessage());
+			else
+				notifyFailed(request, "NetworkBufferException was thrown, please contact an administrator now.");
+			return;
+		} catch (NetworkPacketProcessException nppe) {
+			nppe.printStackTrace();
+			notifyFailed(request, "Network exception: " + nppe.getMessage());
+			return;
+		} catch (Exception e) {
+			e.printStackTrace();
+			notifyFailed(request, "Exception thrown, please contact an administrator now.");
+			return;
+		}
+		try {
+			listenerOf(request).queryCompleted(request, queryResult);
+		} catch (Exception e) {
+			e.printStackTrace();
 		}
 	}
 	
@@ -109,14 +300,48 @@ public class QueryManager extends Thread {
 	 */
 	@Override
 	public void run() {
-		while (!threadTerminate) {
-			// If we are not processing a request and we have a query, handle it
-			if (!processingQuery && !queryRequests.isEmpty())
-				processQuery();
+		try (Selector sel = Selector.open(); DatagramChannel channel = DatagramChannel.open()) {
+			channel.configureBlocking(false);
+			channel.bind(null);
+			channel.register(sel, SelectionKey.OP_READ);
+			selector = sel;
 			
-			// This thread should only check requests every few seconds or so
-			// The thread should not be demanding at all
-			try { Thread.sleep(1000); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+			ByteBuffer receiveBuffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+			TimeoutWheel<PendingQuery> wheel = new TimeoutWheel<>(TIMEOUT_TICK_MS, 128, System.currentTimeMillis());
+			while (!threadTerminate) {
+				try {
+					long now = System.currentTimeMillis();
+					sendQueuedRequests(channel, wheel, now);
+					
+					// Sleep until a reply comes, a request is added or the next deadline tick
+					if (inFlight.isEmpty())
+						sel.select();
+					else
+						sel.select(wheel.millisUntilNextTick(now));
+					sel.selectedKeys().clear();
+					
+					receiveReplies(channel, receiveBuffer);
+					wheel.advance(System.currentTimeMillis(), pending -> {
+						if (!pending.done)
+							fail(pending, "Socket timeout, IP is incorrect or server is down/unreachable (consider trying again if it is your first try).");
+					});
+				} catch (IOException e) {
+					// Only a closed channel or selector is the end, anything else may not happen again
+					if (!channel.isOpen() || !sel.isOpen())
+						throw e;
+					e.printStackTrace();
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(TIMEOUT_TICK_MS));
+				} catch (RuntimeException e) {
+					// A listener that throws must not stop the queries of everyone else
+					e.printStackTrace();
+				}
+			}
+		} catch (IOException e) {
+			bot.sendMessageToCoreChannel("Error with the query socket, server queries are disabled. Please contact an administrator.");
+			e.printStackTrace();
+		} finally {
+			threadTerminate = true;
+			selector = null;
 		}
 	}
 }
@@ -16,79 +16,412 @@
 package org.bestever.serverquery;
 
 /**
- * A loose encapsulation of the query result
+ * Everything a server told us in one launcher reply; values the server did not
+ * send are -1 (or null for strings). Player and team data is kept in parallel
+ * arrays indexed by player (or team) number rather than an object per player
  */
-public class QueryResult {
+public final class QueryResult {
 	
 	/**
-	 * A list of all the pwads
+	 * Player flag: the player is spectating
 	 */
-	public String pwad_names;
-
+	public static final byte PLAYER_SPECTATOR = 0x01;
+	
+	/**
+	 * Player flag: the player is a bot
+	 */
+	public static final byte PLAYER_BOT = 0x02;
+	
+	/**
+	 * The version of the server
+	 */
+	public final String version;
+	
+	/**
+	 * The name of the server
+	 */
+	public final String servername;
+	
+	/**
+	 * The website of the server
+	 */
+	public final String url;
+	
+	/**
+	 * The e-mail of the host
+	 */
+	public final String email;
+	
+	/**
+	 * The map being played
+	 */
+	public final String mapname;
+	
+	/**
+	 * How many clients may connect (sv_maxclients)
+	 */
+	public final int max_clients;
+	
+	/**
+	 * How many players may join (sv_maxplayers)
+	 */
+	public final int max_players;
+	
+	/**
+	 * A list of all the pwads, separated by commas
+	 */
+	public final String pwad_names;
+	
 	/**
 	 * The gamemode constant (can be found in ServerQueryFlags
 	 */
-	public byte gamemode;
+	public final byte gamemode;
 	
 	/**
 	 * If instagib is on (acts like a boolean)
 	 */
-	public byte instagib;
+	public final byte instagib;
 	
 	/**
 	 * If buckshot is on (acts like a boolean)
 	 */
-	public byte buckshot;
+	public final byte buckshot;
+	
+	/**
+	 * The name of the game (ex: DOOM, DOOM II, ...etc)
+	 */
+	public final String gamename;
 	
 	/**
 	 * What iwad is being used
 	 */
-	public String iwad;
+	public final String iwad;
+	
+	/**
+	 * If a password is needed to connect (acts like a boolean)
+	 */
+	public final byte force_password;
+	
+	/**
+	 * If a password is needed to join the game (acts like a boolean)
+	 */
+	public final byte force_join_password;
 
 	/**
 	 * The skill level of the server
 	 */
-	public byte skill;
+	public final byte skill;
+	
+	/**
+	 * The skill level of the bots
+	 */
+	public final byte bot_skill;
 
 	/**
 	 * In-game flags bitmask
 	 */
-	public int dmflags;
+	public final int dmflags;
 	
 	/**
 	 * In-game flags bitmask
 	 */
-	public int dmflags2;
+	public final int dmflags2;
 	
 	/**
 	 * In-game flags bitmask
 	 */
-	public int dmflags3;
+	public final int dmflags3;
 	
 	/**
 	 * In-game flags bitmask
 	 */
-	public int compatflags;
+	public final int compatflags;
 	
 	/**
 	 * In-game flags bitmask
 	 */
-	public int compatflags2;
+	public final int compatflags2;
+	
+	/**
+	 * Game limits
+	 */
+	public final short fraglimit, timelimit, timeleft, duellimit, pointlimit, winlimit;
+	
+	/**
+	 * How much damage teammates do to each other, NaN if not sent
+	 */
+	public final float team_damage;
+	
+	/**
+	 * How many players are in the server, including bots and spectators
+	 */
+	public final int num_players;
+	
+	/**
+	 * How many of the players are bots, -1 if the player data was not sent
+	 */
+	public final int num_bots;
+	
+	/**
+	 * How many teams there are
+	 */
+	public final int num_teams;
+	
+	/**
+	 * If the server runs a testing binary (acts like a boolean)
+	 */
+	public final byte testing_server;
+	
+	/**
+	 * The name of the testing binary, empty for a stable one
+	 */
+	public final String testing_binary;
+	
+	/**
+	 * The MD5 sum of the game data
+	 */
+	public final String data_md5sum;
+	
+	/**
+	 * If the server enforces the master's ban list (acts like a boolean)
+	 */
+	public final byte security_settings;
+	
+	/**
+	 * The pwads, in load order
+	 */
+	private final String[] pwads;
+	
+	/**
+	 * Per player data, null if the player data was not sent
+	 */
+	private final String[] player_names;
+	private final short[] player_scores;
+	private final short[] player_pings;
+	private final byte[] player_flags;
+	private final byte[] player_teams;
+	private final byte[] player_minutes;
+	
+	/**
+	 * Per team data, null if not sent
+	 */
+	private final String[] team_names;
+	private final int[] team_colors;
+	private final short[] team_scores;
+	
+	private QueryResult(Builder b) {
+		this.version = b.version;
+		this.servername = b.servername;
+		this.url = b.url;
+		this.email = b.email;
+		this.mapname = b.mapname;
+		this.max_clients = b.max_clients;
+		this.max_players = b.max_players;
+		this.pwads = b.pwads;
+		this.pwad_names = b.pwads != null && b.pwads.length > 0 ? String.join(",", b.pwads) : null;
+		this.gamemode = b.gamemode;
+		this.instagib = b.instagib;
+		this.buckshot = b.buckshot;
+		this.gamename = b.gamename;
+		this.iwad = b.iwad;
+		this.force_password = b.force_password;
+		this.force_join_password = b.force_join_password;
+		this.skill = b.skill;
+		this.bot_skill = b.bot_skill;
+		this.dmflags = b.dmflags;
+		this.dmflags2 = b.dmflags2;
+		this.dmflags3 = b.dmflags3;
+		this.compatflags = b.compatflags;
+		this.compatflags2 = b.compatflags2;
+		this.fraglimit = b.fraglimit;
+		this.timelimit = b.timelimit;
+		this.timeleft = b.timeleft;
+		this.duellimit = b.duellimit;
+		this.pointlimit = b.pointlimit;
+		this.winlimit = b.winlimit;
+		this.team_damage = b.team_damage;
+		this.num_players = b.num_players;
+		this.num_teams = b.num_teams;
+		this.testing_server = b.testing_server;
+		this.testing_binary = b.testing_binary;
+		this.data_md5sum = b.data_md5sum;
+		this.security_settings = b.security_settings;
+		this.player_names = b.player_names;
+		this.player_scores = b.player_scores;
+		this.player_pings = b.player_pings;
+		this.player_flags = b.player_flags;
+		this.player_teams = b.player_teams;
+		this.player_minutes = b.player_minutes;
+		this.team_names = b.team_names;
+		this.team_colors = b.team_colors;
+		this.team_scores = b.team_scores;
+		
+		int bots = -1;
+		if (player_flags != null) {
+			bots = 0;
+			for (byte flags : player_flags)
+				if ((flags & PLAYER_BOT) != 0)
+					bots++;
+		}
+		this.num_bots = bots;
+	}
+	
+	/**
+	 * @return How many pwads are loaded
+	 */
+	public int getNumberOfPwads() {
+		return pwads == null ? 0 : pwads.length;
+	}
+	
+	/**
+	 * @param n The index of the pwad, in load order
+	 * @return The name of the pwad
+	 */
+	public String getPwad(int n) {
+		return pwads[n];
+	}
+	
+	/**
+	 * @return If the server sent the data of each player
+	 */
+	public boolean hasPlayerData() {
+		return player_names != null;
+	}
+	
+	/**
+	 * @return How many players there is data for
+	 */
+	public int getNumberOfPlayers() {
+		return player_names == null ? 0 : player_names.length;
+	}
+	
+	/**
+	 * @return A copy of the names of all the players
+	 */
+	public String[] getPlayerNames() {
+		return player_names == null ? new String[0] : player_names.clone();
+	}
+	
+	public String getPlayerName(int n) {
+		return player_names[n];
+	}
+	
+	public short getPlayerScore(int n) {
+		return player_scores[n];
+	}
+	
+	public short getPlayerPing(int n) {
+		return player_pings[n];
+	}
+	
+	public boolean isPlayerSpectator(int n) {
+		return (player_flags[n] & PLAYER_SPECTATOR) != 0;
+	}
+	
+	public boolean isPlayerBot(int n) {
+		return (player_flags[n] & PLAYER_BOT) != 0;
+	}
+	
+	/**
+	 * @param n The index of the player
+	 * @return The team of the player, -1 if this is not a team game
+	 */
+	public byte getPlayerTeam(int n) {
+		return player_teams[n];
+	}
+	
+	/**
+	 * @param n The index of the player
+	 * @return How many minutes the player has been in the server
+	 */
+	public int getPlayerMinutes(int n) {
+		return player_minutes[n] & 0xFF;
+	}
+	
+	/**
+	 * @param n The index of the team
+	 * @return The name of the team, null if not sent
+	 */
+	public String getTeamName(int n) {
+		return team_names == null ? null : team_names[n];
+	}
+	
+	/**
+	 * @param n The index of the team
+	 * @return The color of the team as 0xRRGGBB, -1 if not sent
+	 */
+	public int getTeamColor(int n) {
+		return team_colors == null ? -1 : team_colors[n];
+	}
+	
+	/**
+	 * @param n The index of the team
+	 * @return The score of the team, -1 if not sent
+	 */
+	public short getTeamScore(int n) {
+		return team_scores == null ? -1 : team_scores[n];
+	}
 	
 	/**
-	 * Default constructor for now
+	 * Collects the values while a reply is parsed, the arrays are handed over
+	 * to the result as they are
 	 */
-	public QueryResult() {
-		this.pwad_names = null;
-		this.gamemode = -1;
-		this.instagib = -1;
-		this.buckshot = -1;
-		this.iwad = null;
-		this.skill = -1;
-		this.dmflags = -1;
-		this.dmflags2 = -1;
-		this.dmflags3 = -1;
-		this.compatflags = -1;
-		this.compatflags2 = -1;
+	static final class Builder {
+		String version = null;
+		String servername = null;
+		String url = null;
+		String email = null;
+		String mapname = null;
+		int max_clients = -1;
+		int max_players = -1;
+		String[] pwads = null;
+		byte gamemode = -1;
+		byte instagib = -1;
+		byte buckshot = -1;
+		String gamename = null;
+		String iwad = null;
+		byte force_password = -1;
+		byte force_join_password = -1;
+		byte skill = -1;
+		byte bot_skill = -1;
+		int dmflags = -1;
+		int dmflags2 = -1;
+		int dmflags3 = -1;
+		int compatflags = -1;
+		int compatflags2 = -1;
+		short fraglimit = -1, timelimit = -1, timeleft = -1, duellimit = -1, pointlimit = -1, winlimit = -1;
+		float team_damage = Float.NaN;
+		int num_players = -1;
+		int num_teams = -1;
+		byte testing_server = -1;
+		String testing_binary = null;
+		String data_md5sum = null;
+		byte security_settings = -1;
+		String[] player_names;
+		short[] player_scores;
+		short[] player_pings;
+		byte[] player_flags;
+		byte[] player_teams;
+		byte[] player_minutes;
+		String[] team_names;
+		int[] team_colors;
+		short[] team_scores;
+		
+		/**
+		 * Makes room for the data of the given number of players
+		 * @param count How many players there are
+		 */
+		void allocatePlayers(int count) {
+			player_names = new String[count];
+			player_scores = new short[count];
+			player_pings = new short[count];
+			player_flags = new byte[count];
+			player_teams = new byte[count];
+			player_minutes = new byte[count];
+		}
+		
+		QueryResult build() {
+			return new QueryResult(this);
+		}
 	}
 }
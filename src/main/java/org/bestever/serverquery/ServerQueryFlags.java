@@ -57,7 +57,9 @@ public final class ServerQueryFlags {
 	public static final int SQF_SECURITY_SETTINGS = 0x10000000;
 	
 	// This is what we will send to the server
-	public static final int SQF_ALL_REQUEST_FLAGS = SQF_PWADS | SQF_IWAD | SQF_GAMETYPE | SQF_GAMESKILL | SQF_ALL_DMFLAGS;
+	public static final int SQF_ALL_REQUEST_FLAGS = SQF_NAME | SQF_MAPNAME | SQF_MAXPLAYERS | SQF_PWADS | SQF_GAMETYPE | SQF_IWAD
+			| SQF_GAMESKILL | SQF_LIMITS | SQF_NUMPLAYERS | SQF_PLAYERDATA | SQF_TEAMINFO_NUMBER
+			| SQF_TEAMINFO_NAME | SQF_TEAMINFO_SCORE | SQF_ALL_DMFLAGS;
 	
 	// Game mode enumeration
 	public static final int GAMEMODE_COOPERATIVE = 0;
@@ -124,4 +126,25 @@ public final class ServerQueryFlags {
 		}
 		return "ERROR";
 	}
+	
+	/**
+	 * Checks if players are put on teams in the gamemode, the server only
+	 * sends a player's team in this case
+	 * @param flag The constant number from the SQF result
+	 * @return True if it is a team game
+	 */
+	public static boolean isTeamGame(int flag) {
+		switch (flag) {
+		case GAMEMODE_TEAMPLAY:
+		case GAMEMODE_TEAMLMS:
+		case GAMEMODE_TEAMPOSSESSION:
+		case GAMEMODE_TEAMGAME:
+		case GAMEMODE_CTF:
+		case GAMEMODE_ONEFLAGCTF:
+		case GAMEMODE_SKULLTAG:
+		case GAMEMODE_DOMINATION:
+			return true;
+		}
+		return false;
+	}
 }
@@ -0,0 +1,37 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+package org.bestever.serverquery;
+
+/**
+ * Receives the outcome of a query; both methods are called on the query
+ * manager thread so they should hand off anything slow
+ */
+public interface ServerQueryListener {
+
+	/**
+	 * Called when the server replied and the reply was parsed
+	 * @param request The request that was answered
+	 * @param result The parsed reply
+	 */
+	void queryCompleted(ServerQueryRequest request, QueryResult result);
+
+	/**
+	 * Called when the server did not reply in time or the reply could not be used
+	 * @param request The request that failed
+	 * @param reason A message that can be shown to the user
+	 */
+	void queryFailed(ServerQueryRequest request, String reason);
+}
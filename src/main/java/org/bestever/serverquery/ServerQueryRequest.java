@@ -15,6 +15,8 @@
 
 package org.bestever.serverquery;
 
+import java.net.InetSocketAddress;
+
 /**
  * Fusion between a tuple and InetSocketAddress
  */
@@ -30,6 +32,16 @@ public class ServerQueryRequest {
 	 */
 	private int port;
 	
+	/**
+	 * Who gets the result, null to use the default handler of the query manager
+	 */
+	private ServerQueryListener listener;
+	
+	/**
+	 * Where the query goes, set by {@link #resolve()}
+	 */
+	private InetSocketAddress address;
+	
 	/**
 	 * Creates a new request which can be passed to a queue; all the data values
 	 * should be checked before hand, this does no fail-safe checking
@@ -37,8 +49,19 @@ public class ServerQueryRequest {
 	 * @param port The port the server is on
 	 */
 	public ServerQueryRequest(String ip, int port) {
+		this(ip, port, null);
+	}
+	
+	/**
+	 * Creates a new request whose result is delivered to the given listener
+	 * @param ip The IP of the server
+	 * @param port The port the server is on
+	 * @param listener Who to tell about the result, or null for the default handler
+	 */
+	public ServerQueryRequest(String ip, int port, ServerQueryListener listener) {
 		this.ip = ip;
 		this.port = port;
+		this.listener = listener;
 	}
 	
 	/**
@@ -56,4 +79,27 @@ public class ServerQueryRequest {
 	public int getPort() {
 		return port;
 	}
+	
+	/**
+	 * Looks up the address of the server, this can block on DNS so it should
+	 * not be done on the thread that sends the queries
+	 */
+	void resolve() {
+		address = new InetSocketAddress(ip, port);
+	}
+	
+	/**
+	 * @return The address of the server, null if it was not resolved yet
+	 */
+	InetSocketAddress getAddress() {
+		return address;
+	}
+	
+	/**
+	 * Gets who should receive the result
+	 * @return The listener, or null if the default handler should be used
+	 */
+	public ServerQueryListener getListener() {
+		return listener;
+	}
 }
@@ -0,0 +1,114 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2021 TarCV
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+
+package org.bestever.serverquery;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timer wheel for request deadlines; scheduling and expiring are O(1)
+ * per entry no matter how many requests are in flight. Entries are never removed
+ * early, whoever owns them should ignore the expiry of an entry that already
+ * finished. This is not thread safe, it is meant to be driven by one thread.
+ * @param <T> The type of the scheduled entries
+ */
+class TimeoutWheel<T> {
+
+	/**
+	 * A scheduled entry together with how many more turns of the wheel it has to wait
+	 */
+	private static final class Slot<T> {
+		final T entry;
+		long rounds;
+
+		Slot(T entry, long rounds) {
+			this.entry = entry;
+			this.rounds = rounds;
+		}
+	}
+
+	/**
+	 * The buckets, one per tick
+	 */
+	private final ArrayDeque<Slot<T>>[] buckets;
+
+	/**
+	 * How long a single tick is in ms
+	 */
+	private final long tickMs;
+
+	/**
+	 * The tick we have expired up to
+	 */
+	private long currentTick;
+
+	/**
+	 * Creates a wheel
+	 * @param tickMs The resolution of the deadlines in ms
+	 * @param size How many buckets there are, one turn of the wheel is tickMs * size
+	 * @param nowMs The current time in ms
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	TimeoutWheel(long tickMs, int size, long nowMs) {
+		this.tickMs = tickMs;
+		this.buckets = new ArrayDeque[size];
+		for (int i = 0; i < size; i++)
+			this.buckets[i] = new ArrayDeque<>();
+		this.currentTick = nowMs / tickMs;
+	}
+
+	/**
+	 * Schedules an entry to expire at the given time (rounded up to the next tick)
+	 * @param entry The entry
+	 * @param deadlineMs When it expires, in the same clock as the other arguments
+	 */
+	void schedule(T entry, long deadlineMs) {
+		long tick = Math.max((deadlineMs + tickMs - 1) / tickMs, currentTick + 1);
+		long distance = tick - currentTick;
+		buckets[(int) (tick % buckets.length)].add(new Slot<>(entry, (distance - 1) / buckets.length));
+	}
+
+	/**
+	 * Expires every entry whose deadline has passed
+	 * @param nowMs The current time in ms
+	 * @param expired Called for each expired entry
+	 */
+	void advance(long nowMs, Consumer<T> expired) {
+		long targetTick = nowMs / tickMs;
+		while (currentTick < targetTick) {
+			currentTick++;
+			ArrayDeque<Slot<T>> bucket = buckets[(int) (currentTick % buckets.length)];
+			int count = bucket.size();
+			for (int i = 0; i < count; i++) {
+				Slot<T> slot = bucket.poll();
+				if (slot.rounds > 0) {
+					slot.rounds--;
+					bucket.add(slot);
+				} else
+					expired.accept(slot.entry);
+			}
+		}
+	}
+
+	/**
+	 * Returns how long until the next tick should be processed
+	 * @param nowMs The current time in ms
+	 * @return Milliseconds to wait, at least 1
+	 */
+	long millisUntilNextTick(long nowMs) {
+		return Math.max(1, (currentTick + 1) * tickMs - nowMs);
+	}
+}